@@ -0,0 +1,394 @@
+package me.helloc.iot.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory {@link MessageBuffer} holding at most {@code capacity} messages.
+ * <p>
+ * What happens to a message arriving while the buffer is full is decided by its
+ * {@link OverflowPolicy}. With {@link OverflowPolicy#SPILL_TO_DISK} overflowing messages
+ * are appended to a spill file and moved back into memory, in arrival order, as consumers
+ * make room. Drops and occupancy are exposed as counters so they can be exported as metrics.
+ *
+ * <pre>{@code
+ * BoundedMessageBuffer buffer = BoundedMessageBuffer.builder()
+ *         .capacity(10_000)
+ *         .overflowPolicy(OverflowPolicy.BLOCK)
+ *         .build();
+ * }</pre>
+ */
+public class BoundedMessageBuffer implements MessageBuffer, Closeable {
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<Map.Entry<String, String>> queue;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final Path spillFile;
+    private final long maxSpillBytes;
+    private FileChannel spill;
+    private boolean closed;
+    private long spillReadPosition;
+    private long spillWritePosition;
+    private int spillCount;
+
+    private BoundedMessageBuffer(Builder builder) {
+        this.capacity = builder.capacity;
+        this.policy = builder.overflowPolicy;
+        this.queue = new ArrayDeque<>(Math.min(capacity, 1024));
+        this.maxSpillBytes = builder.maxSpillBytes;
+        if (policy == OverflowPolicy.SPILL_TO_DISK) {
+            try {
+                this.spillFile = Files.createTempFile(builder.spillDirectory, "message-buffer-", ".spill");
+                this.spill = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create spill file in " + builder.spillDirectory, e);
+            }
+        } else {
+            this.spillFile = null;
+        }
+    }
+
+    /**
+     * Adds a message, applying the overflow policy if the buffer is full. With
+     * {@link OverflowPolicy#BLOCK}, an interrupted wait drops the message and leaves the
+     * thread's interrupt flag set, and a wait ended by {@link #close()} drops it too.
+     */
+    @Override
+    public void add(String topic, String message) {
+        Map.Entry<String, String> entry = new AbstractMap.SimpleEntry<>(topic, message);
+        lock.lock();
+        try {
+            if (spillCount > 0) {
+                // Older messages are on disk; keep arrival order by queuing behind them.
+                spill(entry);
+                return;
+            }
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        queue.poll();
+                        dropped.increment();
+                        break;
+                    case DROP_NEWEST:
+                        dropped.increment();
+                        return;
+                    case BLOCK:
+                        blocked.increment();
+                        while (queue.size() >= capacity) {
+                            if (closed) {
+                                dropped.increment();
+                                return;
+                            }
+                            try {
+                                notFull.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                dropped.increment();
+                                return;
+                            }
+                        }
+                        break;
+                    case SPILL_TO_DISK:
+                        spill(entry);
+                        return;
+                    default:
+                        throw new IllegalStateException("Unknown overflow policy " + policy);
+                }
+            }
+            queue.add(entry);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = dequeue()) == null) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Transfers up to {@code maxElements} messages while holding the lock once, so a batch
+     * costs a single lock acquisition.
+     */
+    @Override
+    public int drainTo(Collection<? super Map.Entry<String, String>> target, int maxElements) {
+        lock.lock();
+        try {
+            int count = 0;
+            Map.Entry<String, String> entry;
+            while (count < maxElements && (entry = dequeue()) != null) {
+                target.add(entry);
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@code true} with {@link OverflowPolicy#BLOCK}, or with
+     * {@link OverflowPolicy#SPILL_TO_DISK} and no {@link Builder#maxSpillBytes(long)} cap.
+     */
+    @Override
+    public boolean isFifo() {
+        return policy == OverflowPolicy.BLOCK
+                || policy == OverflowPolicy.SPILL_TO_DISK && maxSpillBytes == Long.MAX_VALUE;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy overflowPolicy() {
+        return policy;
+    }
+
+    /**
+     * Number of buffered messages, including those spilled to disk.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size() + spillCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of messages currently held on disk.
+     */
+    public int spilledSize() {
+        lock.lock();
+        try {
+            return spillCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Total number of messages discarded by the overflow policy, or because a spill file
+     * could not be written or read.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Total number of messages written to the spill file.
+     */
+    public long spilledCount() {
+        return spilled.sum();
+    }
+
+    /**
+     * Total number of {@link #add} calls that had to wait for room.
+     */
+    public long blockedCount() {
+        return blocked.sum();
+    }
+
+    /**
+     * Deletes the spill file, discarding any message still on disk, and releases producers
+     * waiting for room under {@link OverflowPolicy#BLOCK}; their messages are dropped.
+     * Messages in memory stay available to consumers.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+            if (spillFile == null) return;
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+            Files.deleteIfExists(spillFile);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the head and refills memory from the spill file, or lets a blocked producer
+     * in. Must be called with the lock held.
+     */
+    private Map.Entry<String, String> dequeue() {
+        Map.Entry<String, String> entry = queue.poll();
+        if (entry != null) {
+            if (spillCount > 0) {
+                unspill();
+            } else {
+                notFull.signal();
+            }
+        }
+        return entry;
+    }
+
+    private void spill(Map.Entry<String, String> entry) {
+        byte[] topic = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] message = entry.getValue().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(8 + topic.length + message.length);
+        record.putInt(topic.length).put(topic).putInt(message.length).put(message).flip();
+        if (spillWritePosition - spillReadPosition + record.remaining() > maxSpillBytes) {
+            dropped.increment();
+            return;
+        }
+        try {
+            if (spill == null) throw new IOException("Buffer is closed");
+            while (record.hasRemaining()) {
+                spillWritePosition += spill.write(record, spillWritePosition);
+            }
+            spillCount++;
+            spilled.increment();
+        } catch (IOException e) {
+            // Rewind the partial record; a write failure is treated like a dropped message.
+            spillWritePosition -= record.position();
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Moves the oldest spilled message into memory. Once the spill file is drained it is
+     * truncated so it does not grow without bound.
+     */
+    private void unspill() {
+        try {
+            String topic = readString();
+            String message = readString();
+            queue.add(new AbstractMap.SimpleEntry<>(topic, message));
+            spillCount--;
+            if (spillCount == 0) {
+                spill.truncate(0);
+                spillReadPosition = 0;
+                spillWritePosition = 0;
+            }
+        } catch (IOException e) {
+            // Unreadable or corrupt: without a trustworthy length the records behind this one
+            // cannot be framed either, so the rest of the file is dropped.
+            dropped.add(spillCount);
+            spillCount = 0;
+            spillReadPosition = 0;
+            spillWritePosition = 0;
+            try {
+                if (spill != null) spill.truncate(0);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length);
+        int size = length.getInt(0);
+        if (size < 0 || size > spillWritePosition - spillReadPosition) {
+            throw new IOException("Corrupt spill record length " + size + " at " + (spillReadPosition - 4));
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        readFully(bytes);
+        return new String(bytes.array(), StandardCharsets.UTF_8);
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        if (spill == null) throw new IOException("Buffer is closed");
+        while (buffer.hasRemaining()) {
+            int read = spill.read(buffer, spillReadPosition);
+            if (read < 0) throw new IOException("Truncated spill file");
+            spillReadPosition += read;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int capacity = 10_000;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        private Path spillDirectory;
+        private long maxSpillBytes = Long.MAX_VALUE;
+
+        public Builder capacity(int capacity) {
+            if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+            this.capacity = capacity;
+            return this;
+        }
+        public Builder overflowPolicy(OverflowPolicy policy) { this.overflowPolicy = Objects.requireNonNull(policy, "overflowPolicy"); return this; }
+        public Builder spillDirectory(Path directory) { this.spillDirectory = directory; return this; }
+        /**
+         * Largest size the spill file may reach. Messages that would grow it further are
+         * dropped and counted. Unlimited by default.
+         */
+        public Builder maxSpillBytes(long bytes) {
+            if (bytes <= 0) throw new IllegalArgumentException("maxSpillBytes must be positive");
+            this.maxSpillBytes = bytes;
+            return this;
+        }
+
+        public BoundedMessageBuffer build() {
+            if (overflowPolicy == OverflowPolicy.SPILL_TO_DISK && spillDirectory == null) {
+                throw new IllegalArgumentException("spillDirectory is required for SPILL_TO_DISK");
+            }
+            return new BoundedMessageBuffer(this);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package me.helloc.iot.tunnel;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Finds the next byte of interest in a JSON buffer: the end of a string, or the next
+ * structural character inside a container.
+ * <p>
+ * {@link #SWAR} examines eight bytes per step by reading them as one {@code long} and
+ * testing every byte lane with carry-free arithmetic ("SIMD within a register"). It only
+ * needs a {@link VarHandle} view of the byte array, so it runs on the Java 11 baseline
+ * without incubator modules. {@link #SCALAR} is the byte-at-a-time reference
+ * implementation; both must always return the same index. Setting the system property
+ * {@code iot.tunnel.scalarScan} to {@code true} forces the scalar implementation.
+ */
+abstract class ByteScanner {
+    static final ByteScanner SCALAR = new Scalar();
+    static final ByteScanner SWAR = new Swar();
+    static final ByteScanner DEFAULT = Boolean.getBoolean("iot.tunnel.scalarScan") ? SCALAR : SWAR;
+
+    /**
+     * Returns the index of the first {@code '"'} or {@code '\\'} in {@code json[from, to)},
+     * or {@code to} if there is none.
+     */
+    abstract int indexOfQuoteOrBackslash(byte[] json, int from, int to);
+
+    /**
+     * Returns the index of the first {@code '"'}, {@code '{'}, {@code '}'}, {@code '['} or
+     * {@code ']'} in {@code json[from, to)}, or {@code to} if there is none.
+     */
+    abstract int indexOfStructural(byte[] json, int from, int to);
+
+    private static final class Scalar extends ByteScanner {
+        @Override
+        int indexOfQuoteOrBackslash(byte[] json, int from, int to) {
+            for (int i = from; i < to; i++) {
+                byte b = json[i];
+                if (b == '"' || b == '\\') return i;
+            }
+            return to;
+        }
+
+        @Override
+        int indexOfStructural(byte[] json, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (isStructural(json[i])) return i;
+            }
+            return to;
+        }
+    }
+
+    private static final class Swar extends ByteScanner {
+        private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final long ONES = 0x0101010101010101L;
+        private static final long HIGHS = 0x8080808080808080L;
+        private static final long QUOTES = ONES * '"';
+        private static final long BACKSLASHES = ONES * '\\';
+        private static final long CASE_BIT = ONES * 0x20;
+        // '[' and ']' differ from '{' and '}' only in bit 0x20.
+        private static final long OPEN_BRACES = ONES * '{';
+        private static final long CLOSE_BRACES = ONES * '}';
+
+        @Override
+        int indexOfQuoteOrBackslash(byte[] json, int from, int to) {
+            int i = from;
+            for (; i + Long.BYTES <= to; i += Long.BYTES) {
+                long word = (long) LONGS.get(json, i);
+                long found = zeroBytes(word ^ QUOTES) | zeroBytes(word ^ BACKSLASHES);
+                if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+            for (; i < to; i++) {
+                byte b = json[i];
+                if (b == '"' || b == '\\') return i;
+            }
+            return to;
+        }
+
+        @Override
+        int indexOfStructural(byte[] json, int from, int to) {
+            int i = from;
+            for (; i + Long.BYTES <= to; i += Long.BYTES) {
+                long word = (long) LONGS.get(json, i);
+                long folded = word | CASE_BIT;
+                long found = zeroBytes(word ^ QUOTES) | zeroBytes(folded ^ OPEN_BRACES) | zeroBytes(folded ^ CLOSE_BRACES);
+                if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+            for (; i < to; i++) {
+                if (isStructural(json[i])) return i;
+            }
+            return to;
+        }
+
+        /**
+         * Sets the high bit of every zero byte lane. A borrow can only produce false
+         * positives in lanes above a real zero byte, so the lowest set lane is exact.
+         */
+        private static long zeroBytes(long word) {
+            return (word - ONES) & ~word & HIGHS;
+        }
+    }
+
+    static boolean isStructural(byte b) {
+        return b == '"' || b == '{' || b == '}' || b == '[' || b == ']';
+    }
+}
@@ -0,0 +1,437 @@
+package me.helloc.iot.tunnel;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * In-memory {@link MessageBuffer} that keeps messages compressed in blocks.
+ * <p>
+ * Messages are appended to an open block of raw UTF-8 records. Once the block reaches the
+ * configured size it is compressed with Deflate. Same-shaped sensor payloads repeat the same
+ * keys and structure, so they compress well. Each block is primed with a dictionary: either
+ * one given to the builder or, by default, the tail of the first full block. That dictionary
+ * works as a shape template, so even the first messages of a block compress well. Blocks are
+ * decompressed one at a time, only when a consumer reaches them. Consumers that keep up read
+ * straight from the open block and never pay for compression. Topics are interned while
+ * they have buffered messages and forgotten when their last one is read.
+ *
+ * <pre>{@code
+ * CompressedMessageBuffer buffer = CompressedMessageBuffer.builder()
+ *         .blockSize(64 * 1024)
+ *         .build();
+ * }</pre>
+ */
+public class CompressedMessageBuffer implements MessageBuffer, Closeable {
+    /** Deflate only looks back 32 KiB, so a longer dictionary would be wasted. */
+    private static final int MAX_DICTIONARY = 32 * 1024;
+
+    private final int blockSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    private final Map<String, Integer> topicIds = new HashMap<>();
+    /** Topic by id; {@code null} for a free id. */
+    private final List<String> topics = new ArrayList<>();
+    /** Number of buffered messages per topic id. */
+    private int[] topicRefs = new int[16];
+    private final ArrayDeque<Integer> freeTopicIds = new ArrayDeque<>();
+    private final ArrayDeque<Block> sealed = new ArrayDeque<>();
+    private byte[] dictionary;
+    /** Records of the block being written: [topic id][length][UTF-8 payload]. */
+    private byte[] open;
+    private int openLength;
+    private int openRead;
+    private int openCount;
+    /** Decompressed block the consumer is reading, if any. */
+    private byte[] current;
+    private int currentRead;
+    private int currentCount;
+    private int count;
+    private long compressedBytes;
+    private long uncompressedBytes;
+    private boolean closed;
+
+    private CompressedMessageBuffer(Builder builder) {
+        this.blockSize = builder.blockSize;
+        this.deflater = new Deflater(builder.level);
+        this.dictionary = builder.dictionary;
+        this.open = new byte[Math.min(blockSize, 4096)];
+    }
+
+    @Override
+    public void add(String topic, String message) {
+        append(topic, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compresses the payload bytes without decoding them.
+     */
+    @Override
+    public void add(MqttMessageView message) {
+        append(message.topic(), message.payload());
+    }
+
+    private void append(String topic, byte[] payload) {
+        lock.lock();
+        try {
+            if (closed) throw new IllegalStateException("Buffer is closed");
+            int id = topicId(topic);
+            ensureCapacity(8 + payload.length);
+            writeInt(id);
+            writeInt(payload.length);
+            System.arraycopy(payload, 0, open, openLength, payload.length);
+            openLength += payload.length;
+            openCount++;
+            count++;
+            if (openLength >= blockSize) seal();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to {@code timeout} for a message. Returns {@code null} as soon as the buffer
+     * is closed.
+     */
+    @Override
+    public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = dequeue()) == null) {
+                if (nanos <= 0 || closed) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a message.
+     *
+     * @throws IllegalStateException if the buffer is closed, including while waiting
+     */
+    @Override
+    public Map.Entry<String, String> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = dequeue()) == null) {
+                if (closed) throw new IllegalStateException("Buffer is closed");
+                notEmpty.await();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Map.Entry<String, String>> target, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            Map.Entry<String, String> entry;
+            while (drained < maxElements && (entry = dequeue()) != null) {
+                target.add(entry);
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isFifo() {
+        return true;
+    }
+
+    /**
+     * Number of buffered messages.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of topics with buffered messages, which is the size of the topic registry.
+     */
+    public int topicCount() {
+        lock.lock();
+        try {
+            return topicIds.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes held by compressed blocks not yet read.
+     */
+    public long compressedBytes() {
+        lock.lock();
+        try {
+            return compressedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Raw size of the records in compressed blocks not yet read.
+     */
+    public long uncompressedBytes() {
+        lock.lock();
+        try {
+            return uncompressedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Raw size divided by compressed size of the blocks not yet read, or 1 if there are none.
+     */
+    public double compressionRatio() {
+        lock.lock();
+        try {
+            return compressedBytes == 0 ? 1 : (double) uncompressedBytes / compressedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the native compression state and discards buffered messages. Consumers
+     * waiting in {@link #take()} or {@link #poll(long, TimeUnit)} are woken.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            deflater.end();
+            inflater.end();
+            sealed.clear();
+            current = null;
+            count = 0;
+            openLength = openRead = openCount = 0;
+            compressedBytes = uncompressedBytes = 0;
+            topicIds.clear();
+            topics.clear();
+            freeTopicIds.clear();
+            Arrays.fill(topicRefs, 0);
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Map.Entry<String, String> dequeue() {
+        if (count == 0) return null;
+        if (currentCount == 0 && !sealed.isEmpty()) {
+            inflate(sealed.poll());
+        }
+        if (currentCount > 0) {
+            Map.Entry<String, String> entry = read(current, currentRead);
+            currentRead += 8 + readInt(current, currentRead + 4);
+            if (--currentCount == 0) current = null;
+            count--;
+            return entry;
+        }
+        Map.Entry<String, String> entry = read(open, openRead);
+        openRead += 8 + readInt(open, openRead + 4);
+        openCount--;
+        count--;
+        if (openCount == 0) openLength = openRead = 0;
+        return entry;
+    }
+
+    /**
+     * Compresses the unread records of the open block into a sealed block.
+     */
+    private void seal() {
+        int rawLength = openLength - openRead;
+        if (dictionary == null) {
+            dictionary = Arrays.copyOfRange(open, Math.max(openRead, openLength - MAX_DICTIONARY), openLength);
+        }
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(open, openRead, rawLength);
+        deflater.finish();
+        byte[] out = new byte[rawLength / 2 + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) out = Arrays.copyOf(out, out.length * 2);
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        sealed.add(new Block(Arrays.copyOf(out, length), rawLength, openCount));
+        compressedBytes += length;
+        uncompressedBytes += rawLength;
+        openLength = openRead = openCount = 0;
+        if (open.length > blockSize * 2) open = new byte[blockSize];
+    }
+
+    private void inflate(Block block) {
+        byte[] raw = new byte[block.rawLength];
+        inflater.reset();
+        inflater.setInput(block.data);
+        try {
+            int length = 0;
+            while (length < raw.length) {
+                int read = inflater.inflate(raw, length, raw.length - length);
+                if (read == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                } else if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException("Truncated block");
+                }
+                length += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed block", e);
+        }
+        compressedBytes -= block.data.length;
+        uncompressedBytes -= block.rawLength;
+        current = raw;
+        currentRead = 0;
+        currentCount = block.count;
+    }
+
+    private Map.Entry<String, String> read(byte[] records, int at) {
+        int id = readInt(records, at);
+        String topic = topics.get(id);
+        if (--topicRefs[id] == 0) {
+            topicIds.remove(topics.set(id, null));
+            freeTopicIds.push(id);
+        }
+        int length = readInt(records, at + 4);
+        return new AbstractMap.SimpleEntry<>(topic, new String(records, at + 8, length, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the id of {@code topic}, registering it if needed, and counts one more
+     * buffered message for it.
+     */
+    private int topicId(String topic) {
+        Integer id = topicIds.get(topic);
+        if (id == null) {
+            id = freeTopicIds.poll();
+            if (id == null) {
+                id = topics.size();
+                topics.add(topic);
+                if (id == topicRefs.length) topicRefs = Arrays.copyOf(topicRefs, id * 2);
+            } else {
+                topics.set(id, topic);
+            }
+            topicIds.put(topic, id);
+        }
+        topicRefs[id]++;
+        return id;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (openLength + extra > open.length) {
+            open = Arrays.copyOf(open, Math.max(open.length * 2, openLength + extra));
+        }
+    }
+
+    private void writeInt(int value) {
+        open[openLength++] = (byte) (value >>> 24);
+        open[openLength++] = (byte) (value >>> 16);
+        open[openLength++] = (byte) (value >>> 8);
+        open[openLength++] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int at) {
+        return (bytes[at] & 0xFF) << 24 | (bytes[at + 1] & 0xFF) << 16 | (bytes[at + 2] & 0xFF) << 8 | (bytes[at + 3] & 0xFF);
+    }
+
+    private static final class Block {
+        final byte[] data;
+        final int rawLength;
+        final int count;
+
+        Block(byte[] data, int rawLength, int count) {
+            this.data = data;
+            this.rawLength = rawLength;
+            this.count = count;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int blockSize = 64 * 1024;
+        private int level = Deflater.BEST_SPEED;
+        private byte[] dictionary;
+
+        /**
+         * Raw bytes collected before a block is compressed. Larger blocks compress better
+         * but cost more to decompress when a consumer reaches them.
+         */
+        public Builder blockSize(int bytes) {
+            if (bytes < 1024) throw new IllegalArgumentException("blockSize must be at least 1024 bytes");
+            this.blockSize = bytes;
+            return this;
+        }
+        /**
+         * Deflate level from 1 (fastest, the default) to 9 (smallest).
+         */
+        public Builder compressionLevel(int level) {
+            if (level < 1 || level > 9) throw new IllegalArgumentException("compressionLevel must be between 1 and 9");
+            this.level = level;
+            return this;
+        }
+        /**
+         * Sample payloads shaped like the expected messages. Without one, the first full block
+         * is used.
+         */
+        public Builder dictionary(byte[] dictionary) {
+            if (dictionary == null || dictionary.length == 0) throw new IllegalArgumentException("dictionary must not be empty");
+            this.dictionary = Arrays.copyOfRange(dictionary, Math.max(0, dictionary.length - MAX_DICTIONARY), dictionary.length);
+            return this;
+        }
+
+        public CompressedMessageBuffer build() {
+            return new CompressedMessageBuffer(this);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package me.helloc.iot.tunnel;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link MessageBuffer} that keeps only the latest pending message per key.
+ * <p>
+ * The key is the topic, or, with {@link Builder#keyPath(String)}, the topic together with
+ * the value at a JSON path such as {@code $.id}. A message whose key is already pending
+ * replaces the older message in place, in constant time. The replacement keeps the older
+ * message's position in line, so frequently updated keys are not starved. Memory is bounded
+ * by the number of distinct keys rather than by the message rate, and after a reconnect
+ * consumers see one current reading per key instead of the whole backlog. Messages that
+ * are not JSON or lack the key path are keyed by topic alone.
+ *
+ * <pre>{@code
+ * ConflatingMessageBuffer buffer = ConflatingMessageBuffer.builder()
+ *         .keyPath("$.id")
+ *         .build();
+ * }</pre>
+ */
+public class ConflatingMessageBuffer implements MessageBuffer {
+    private final PathQuery keyQuery;
+    private final LinkedHashMap<Object, Map.Entry<String, String>> pending = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LongAdder conflated = new LongAdder();
+
+    private ConflatingMessageBuffer(Builder builder) {
+        this.keyQuery = builder.keyPath != null ? PathQuery.compile(builder.keyPath) : null;
+    }
+
+    @Override
+    public void add(String topic, String message) {
+        Object key = key(topic, message);
+        Map.Entry<String, String> entry = new AbstractMap.SimpleEntry<>(topic, message);
+        lock.lock();
+        try {
+            // Replacing a value keeps the key's original insertion position.
+            if (pending.put(key, entry) != null) {
+                conflated.increment();
+            } else {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = dequeue()) == null) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Map.Entry<String, String>> target, int maxElements) {
+        lock.lock();
+        try {
+            int count = 0;
+            Map.Entry<String, String> entry;
+            while (count < maxElements && (entry = dequeue()) != null) {
+                target.add(entry);
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of pending messages, which is also the number of distinct pending keys.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Total number of pending messages replaced by a newer one with the same key.
+     */
+    public long conflatedCount() {
+        return conflated.sum();
+    }
+
+    private Map.Entry<String, String> dequeue() {
+        Iterator<Map.Entry<String, String>> oldest = pending.values().iterator();
+        if (!oldest.hasNext()) return null;
+        Map.Entry<String, String> entry = oldest.next();
+        oldest.remove();
+        return entry;
+    }
+
+    private Object key(String topic, String message) {
+        if (keyQuery == null) return topic;
+        Object value = keyQuery.extractFirst(message, Object.class);
+        // {"id":1} and {"id":1.0} name the same key.
+        return value == null ? topic : new AbstractMap.SimpleImmutableEntry<>(topic, QueryableMessageBuffer.normalize(value));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private String keyPath;
+
+        /**
+         * Conflates by topic and the value at {@code path} instead of by topic alone.
+         *
+         * @throws IllegalArgumentException if the path is malformed
+         */
+        public Builder keyPath(String path) {
+            PathQuery.compile(Objects.requireNonNull(path, "keyPath"));
+            this.keyPath = path;
+            return this;
+        }
+
+        public ConflatingMessageBuffer build() {
+            return new ConflatingMessageBuffer(this);
+        }
+    }
+}
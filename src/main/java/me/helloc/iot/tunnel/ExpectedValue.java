@@ -0,0 +1,81 @@
+package me.helloc.iot.tunnel;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Expected value of a path filter, compiled so it can be compared against the raw bytes
+ * of a JSON value while a message is being scanned.
+ * <p>
+ * Semantics follow the tree based comparison: numbers are compared by their double value,
+ * everything else with {@link Object#equals}, and a JSON {@code null} never matches.
+ */
+final class ExpectedValue {
+    private final Object expected;
+    private final byte[] utf8;
+    private final double expectedDouble;
+
+    ExpectedValue(Object expected) {
+        this.expected = expected;
+        if (expected instanceof String) {
+            this.utf8 = ((String) expected).getBytes(StandardCharsets.UTF_8);
+        } else if (expected instanceof Boolean) {
+            this.utf8 = expected.toString().getBytes(StandardCharsets.US_ASCII);
+        } else {
+            this.utf8 = null;
+        }
+        this.expectedDouble = expected instanceof Number ? ((Number) expected).doubleValue() : Double.NaN;
+    }
+
+    /**
+     * Tests the JSON value stored in {@code json[start, end)}. Numbers are read into
+     * {@code number}, so numeric filters neither allocate nor box.
+     */
+    boolean matches(byte[] json, int start, int end, JsonNumber number) {
+        if (start >= end) return false;
+        byte first = json[start];
+        if (expected instanceof String) {
+            if (first != '"') return false;
+            if (!containsBackslash(json, start + 1, end - 1)) {
+                return regionEquals(json, start + 1, end - 1, utf8);
+            }
+        } else if (expected instanceof Boolean) {
+            return regionEquals(json, start, end, utf8);
+        } else if (expected instanceof Number) {
+            if (first != '-' && (first < '0' || first > '9')) return false;
+            return number.read(json, start, end) && number.doubleValue == expectedDouble;
+        } else if (first == 'n') {
+            return false;
+        }
+        return matches(new SimpleJsonParser(json, start, end - start).parse());
+    }
+
+    boolean matches(Object actual) {
+        if (actual == null) {
+            return false;
+        }
+        if (actual instanceof Number && expected instanceof Number) {
+            return ((Number) actual).doubleValue() == ((Number) expected).doubleValue();
+        }
+        return actual.equals(expected);
+    }
+
+    private static boolean containsBackslash(byte[] json, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (json[i] == '\\') return true;
+        }
+        return false;
+    }
+
+    private static boolean regionEquals(byte[] json, int start, int end, byte[] expected) {
+        if (end - start != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (json[start + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(expected);
+    }
+}
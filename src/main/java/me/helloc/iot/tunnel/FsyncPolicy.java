@@ -0,0 +1,16 @@
+package me.helloc.iot.tunnel;
+
+/**
+ * When a {@link PersistentMessageBuffer} forces written data to the storage device.
+ * <p>
+ * Data written to a memory-mapped file survives a crash of the process as soon as it is
+ * written; forcing only matters for power loss and operating system crashes.
+ */
+public enum FsyncPolicy {
+    /** Leaves flushing to the operating system. Fastest; survives process crashes. */
+    NEVER,
+    /** Forces on a timer, once per configured interval, whenever something was written. */
+    INTERVAL,
+    /** Forces after every add and every poll. Slowest; nothing acknowledged is ever lost. */
+    ALWAYS
+}
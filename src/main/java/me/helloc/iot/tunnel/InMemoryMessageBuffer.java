@@ -4,20 +4,81 @@ import java.util.AbstractMap;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Simple in-memory implementation of {@link MessageBuffer}.
+ * <p>
+ * Adding stays lock-free. Only while a consumer is blocked in {@link #poll(long, TimeUnit)}
+ * or {@link #take()} does a producer take the lock to wake it up.
  */
 public class InMemoryMessageBuffer implements MessageBuffer {
     private final Queue<Map.Entry<String, String>> queue = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
 
     @Override
     public void add(String topic, String message) {
         queue.add(new AbstractMap.SimpleEntry<>(topic, message));
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     @Override
     public Map.Entry<String, String> poll() {
         return queue.poll();
     }
+
+    @Override
+    public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Map.Entry<String, String> entry = queue.poll();
+        if (entry != null) return entry;
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        // Registered before re-checking the queue, so a producer that adds after the
+        // check is guaranteed to see the waiter and signal.
+        waiters.incrementAndGet();
+        try {
+            while ((entry = queue.poll()) == null) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return entry;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> take() throws InterruptedException {
+        Map.Entry<String, String> entry = queue.poll();
+        if (entry != null) return entry;
+        lock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            while ((entry = queue.poll()) == null) {
+                notEmpty.await();
+            }
+            return entry;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isFifo() {
+        return true;
+    }
 }
@@ -0,0 +1,204 @@
+package me.helloc.iot.tunnel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A JSON message together with a structural index of every value in it.
+ * <p>
+ * The message is scanned once when the index is built. Each value, and each object key,
+ * becomes an entry of a flat {@code int[]} tape holding its kind, its byte range and the
+ * entry that follows its subtree. Queries run against an indexed message then walk the
+ * tape, jumping over siblings in constant time, instead of scanning bytes again. Worth it
+ * when several different queries look at the same message:
+ *
+ * <pre>{@code
+ * IndexedMessage indexed = IndexedMessage.of(payload);
+ * if (alarms.matches(indexed)) { ... }
+ * double temp = temperature.extractDouble(indexed, Double.NaN);
+ * }</pre>
+ *
+ * Unlike a direct scan, indexing reads and validates the whole message. An indexed
+ * message is immutable and may be shared between threads; the underlying bytes must not
+ * be modified while it is in use.
+ */
+public final class IndexedMessage {
+    /** Entry kinds. */
+    static final int OBJECT = 0;
+    static final int ARRAY = 1;
+    static final int SCALAR = 2;
+    /** Object key; {@code start} and {@code end} delimit the raw key without quotes. */
+    static final int KEY = 3;
+    /** Object key containing escape sequences. */
+    static final int ESCAPED_KEY = 4;
+
+    private static final int KIND = 0;
+    private static final int START = 1;
+    private static final int END = 2;
+    private static final int NEXT = 3;
+    private static final int STRIDE = 4;
+
+    final byte[] json;
+    final int offset;
+    final int length;
+    private final int[] tape;
+    private final int size;
+
+    private IndexedMessage(byte[] json, int offset, int length) {
+        this.json = json;
+        this.offset = offset;
+        this.length = length;
+        Builder builder = new Builder(length);
+        JsonCursor cursor = new JsonCursor().reset(json, offset, length);
+        try {
+            builder.index(cursor);
+            if (cursor.skipWhitespace() != -1) {
+                throw new IllegalStateException("Unexpected character at position " + cursor.pos);
+            }
+        } catch (IllegalStateException e) {
+            throw new IllegalArgumentException("Malformed JSON message", e);
+        }
+        this.tape = builder.tape;
+        this.size = builder.size;
+    }
+
+    public static IndexedMessage of(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        return new IndexedMessage(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Indexes UTF-8 encoded JSON bytes, e.g. an MQTT payload. The array is not copied.
+     *
+     * @throws IllegalArgumentException if the message is not valid JSON
+     */
+    public static IndexedMessage of(byte[] message) {
+        return new IndexedMessage(message, 0, message.length);
+    }
+
+    public static IndexedMessage of(byte[] message, int offset, int length) {
+        return new IndexedMessage(message, offset, length);
+    }
+
+    /**
+     * Indexes the remaining bytes of the given buffer without changing its position.
+     * Heap buffers are indexed in place; direct buffers are copied once.
+     */
+    public static IndexedMessage of(ByteBuffer message) {
+        if (message.hasArray()) {
+            return new IndexedMessage(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        }
+        byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        return new IndexedMessage(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Number of entries on the tape. Entry {@code 0} is the root value.
+     */
+    int size() {
+        return size;
+    }
+
+    int kind(int entry) {
+        return tape[entry * STRIDE + KIND];
+    }
+
+    int start(int entry) {
+        return tape[entry * STRIDE + START];
+    }
+
+    int end(int entry) {
+        return tape[entry * STRIDE + END];
+    }
+
+    /**
+     * Entry following the subtree of {@code entry}. For a container, its children are the
+     * entries in between; for a key, it is the key's value.
+     */
+    int next(int entry) {
+        return tape[entry * STRIDE + NEXT];
+    }
+
+    private static final class Builder {
+        private int[] tape;
+        private int size;
+
+        Builder(int length) {
+            this.tape = new int[STRIDE * Math.max(16, length / 8)];
+        }
+
+        void index(JsonCursor cursor) {
+            int b = cursor.skipWhitespace();
+            int entry = add(cursor.pos);
+            switch (b) {
+                case '{':
+                    set(entry, KIND, OBJECT);
+                    indexObject(cursor);
+                    break;
+                case '[':
+                    set(entry, KIND, ARRAY);
+                    indexArray(cursor);
+                    break;
+                case -1:
+                    throw new IllegalStateException("Unexpected end of input");
+                default:
+                    set(entry, KIND, SCALAR);
+                    cursor.skipValue();
+            }
+            set(entry, END, cursor.pos);
+            set(entry, NEXT, size);
+        }
+
+        private void indexObject(JsonCursor cursor) {
+            cursor.expect('{');
+            if (cursor.skipWhitespace() == '}') {
+                cursor.pos++;
+                return;
+            }
+            while (true) {
+                cursor.skipWhitespace();
+                int key = add(cursor.pos + 1);
+                set(key, END, cursor.scanString());
+                set(key, KIND, cursor.escaped ? ESCAPED_KEY : KEY);
+                set(key, NEXT, size);
+                cursor.skipWhitespace();
+                cursor.expect(':');
+                index(cursor);
+                int next = cursor.skipWhitespace();
+                cursor.pos++;
+                if (next == '}') return;
+                if (next != ',') throw new IllegalStateException("Unexpected character at position " + (cursor.pos - 1));
+            }
+        }
+
+        private void indexArray(JsonCursor cursor) {
+            cursor.expect('[');
+            if (cursor.skipWhitespace() == ']') {
+                cursor.pos++;
+                return;
+            }
+            while (true) {
+                index(cursor);
+                int next = cursor.skipWhitespace();
+                cursor.pos++;
+                if (next == ']') return;
+                if (next != ',') throw new IllegalStateException("Unexpected character at position " + (cursor.pos - 1));
+            }
+        }
+
+        private int add(int start) {
+            if ((size + 1) * STRIDE > tape.length) {
+                int[] grown = new int[tape.length * 2];
+                System.arraycopy(tape, 0, grown, 0, tape.length);
+                tape = grown;
+            }
+            set(size, START, start);
+            return size++;
+        }
+
+        private void set(int entry, int field, int value) {
+            tape[entry * STRIDE + field] = value;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package me.helloc.iot.tunnel;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * At-least-once acknowledgement for a {@link MqttBufferedSubscriber} built with
+ * {@link MqttBufferedSubscriber.Builder#ackWindow(int)}.
+ * <p>
+ * Each message added to the {@link MessageBuffer} is given the next offset, starting at 1,
+ * in the order it was added, and stays unacknowledged until the consumer commits it. A
+ * process that crashes before committing loses nothing: the broker redelivers the
+ * unacknowledged messages to a persistent session. Committing acknowledges the whole range
+ * in one pass, so the cost is one call per batch instead of one round trip per message.
+ * At most {@code maxInflight} messages are uncommitted at a time; the thread delivering the
+ * next message waits for a commit, which also throttles the broker.
+ * <p>
+ * The broker usually throttles first: it stops sending a connection more unacknowledged
+ * QoS 1 and 2 messages than its own limit, 20 by default on Mosquitto, so a larger window
+ * never fills. See {@link MqttBufferedSubscriber.Builder#brokerReceiveMaximum(int)}. With
+ * {@link MessageDispatcher#inline()} a full window blocks Paho's callback thread, and the
+ * client soon stops reading the socket, keepalive responses included; a consumer that does
+ * not commit within the keepalive interval then loses the connection. Prefer a dispatcher
+ * pool when the window can fill, for instance with QoS 0 messages, which take a place in
+ * the window but are not limited by the broker.
+ * <p>
+ * Offsets follow the order of {@link MessageBuffer#add}, and the buffer must be
+ * {@linkplain MessageBuffer#isFifo() first-in first-out}, so the consumer can commit the
+ * number of messages it has processed:
+ *
+ * <pre>{@code
+ * InflightWindow window = subscriber.inflightWindow();
+ * List<Map.Entry<String, String>> batch = new ArrayList<>();
+ * subscriber.messageBuffer.drainTo(batch, 500);
+ * store(batch);
+ * window.commit(batch.size());
+ * }</pre>
+ */
+public final class InflightWindow {
+    private final int maxInflight;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    /**
+     * Serializes adding to the buffer with assigning offsets. Separate from {@link #lock} so
+     * a buffer that blocks while full does not hold up commits.
+     */
+    private final ReentrantLock addLock = new ReentrantLock();
+    /** Acknowledgements of the uncommitted messages, oldest first. */
+    private final ArrayDeque<Runnable> uncommitted = new ArrayDeque<>();
+    private final LongAdder dropped = new LongAdder();
+    /** Uncommitted messages plus those with a place reserved that are still being added. */
+    private int reserved;
+    private long deliveredOffset;
+    private long committedOffset;
+
+    InflightWindow(int maxInflight) {
+        this.maxInflight = maxInflight;
+    }
+
+    /**
+     * Waits for room in the window and reserves a place, then runs {@code add} and assigns
+     * the message the next offset. Adding happens outside the window's lock, so commits go
+     * ahead while the buffer blocks, but adds are serialized so offsets match the buffer's
+     * order.
+     * <p>
+     * An interrupted wait drops the message: it is acknowledged without being buffered, so
+     * the broker does not hold its inflight slot forever, and counted in
+     * {@link #droppedCount()}. The thread's interrupt flag is left set.
+     */
+    void add(Runnable add, Runnable ack) {
+        try {
+            lock.lockInterruptibly();
+            try {
+                while (reserved >= maxInflight) {
+                    notFull.await();
+                }
+                reserved++;
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.increment();
+            ack.run();
+            return;
+        }
+        addLock.lock();
+        try {
+            add.run();
+            lock.lock();
+            try {
+                uncommitted.add(ack);
+                deliveredOffset++;
+            } finally {
+                lock.unlock();
+            }
+        } catch (RuntimeException | Error e) {
+            release(1);
+            throw e;
+        } finally {
+            addLock.unlock();
+        }
+    }
+
+    /**
+     * Commits the next {@code count} uncommitted messages and acknowledges them.
+     *
+     * @throws IllegalArgumentException if {@code count} is negative or larger than
+     *                                  {@link #inflightCount()}
+     */
+    public void commit(int count) {
+        if (count < 0) throw new IllegalArgumentException("count must not be negative");
+        Runnable[] acks;
+        lock.lock();
+        try {
+            if (count > uncommitted.size()) {
+                throw new IllegalArgumentException("Only " + uncommitted.size() + " messages are uncommitted, got " + count);
+            }
+            acks = take(count);
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable ack : acks) {
+            ack.run();
+        }
+    }
+
+    /**
+     * Commits every message up to and including {@code offset} and acknowledges them.
+     * Offsets already committed are ignored.
+     *
+     * @throws IllegalArgumentException if {@code offset} is beyond {@link #deliveredOffset()}
+     */
+    public void commitOffset(long offset) {
+        Runnable[] acks;
+        lock.lock();
+        try {
+            if (offset > deliveredOffset) {
+                throw new IllegalArgumentException("Offset " + offset + " has not been delivered, last is " + deliveredOffset);
+            }
+            acks = take((int) Math.max(0, offset - committedOffset));
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable ack : acks) {
+            ack.run();
+        }
+    }
+
+    private Runnable[] take(int count) {
+        Runnable[] acks = new Runnable[count];
+        for (int i = 0; i < count; i++) {
+            acks[i] = uncommitted.poll();
+        }
+        committedOffset += count;
+        release(count);
+        return acks;
+    }
+
+    private void release(int count) {
+        if (count == 0) return;
+        lock.lock();
+        try {
+            reserved -= count;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Offset of the last message added to the buffer, or {@code 0} if none.
+     */
+    public long deliveredOffset() {
+        lock.lock();
+        try {
+            return deliveredOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Offset of the last committed message, or {@code 0} if none.
+     */
+    public long committedOffset() {
+        lock.lock();
+        try {
+            return committedOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of buffered messages not yet committed.
+     */
+    public int inflightCount() {
+        lock.lock();
+        try {
+            return uncommitted.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of messages dropped because the delivering thread was interrupted while
+     * waiting for room. They were acknowledged without reaching the buffer.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public int maxInflight() {
+        return maxInflight;
+    }
+}
@@ -0,0 +1,192 @@
+package me.helloc.iot.tunnel;
+
+/**
+ * Forward-only scanner over UTF-8 encoded JSON bytes.
+ * <p>
+ * The cursor only recognizes structure: it finds the bounds of strings and values and
+ * skips whole objects and arrays using bracket and quote matching, without building
+ * any Java objects. Higher level readers use it to jump over parts of a message they
+ * are not interested in. Searches for quotes and brackets are delegated to a
+ * {@link ByteScanner}, which checks eight bytes at a time.
+ */
+final class JsonCursor {
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    private final ByteScanner scanner;
+    private byte[] json;
+    private int limit;
+    int pos;
+    /** Whether the string last scanned by {@link #scanString()} contained escape sequences. */
+    boolean escaped;
+
+    JsonCursor() {
+        this(ByteScanner.DEFAULT);
+    }
+
+    JsonCursor(ByteScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    JsonCursor reset(byte[] json, int offset, int length) {
+        this.json = json;
+        this.pos = offset;
+        this.limit = offset + length;
+        this.escaped = false;
+        return this;
+    }
+
+    byte[] json() {
+        return json;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * Skips whitespace and returns the next byte without consuming it, or {@code -1} at
+     * the end of input.
+     */
+    int skipWhitespace() {
+        while (pos < limit) {
+            byte b = json[pos];
+            if (b > ' ' || b < 0) return b & 0xFF;
+            pos++;
+        }
+        return -1;
+    }
+
+    void expect(char ch) {
+        if (pos >= limit || json[pos] != ch) {
+            throw new IllegalStateException("Expected '" + ch + "' at position " + pos);
+        }
+        pos++;
+    }
+
+    /**
+     * Scans the string starting at the current position, which must be an opening quote.
+     * Returns the index of the closing quote and leaves the cursor after it.
+     */
+    int scanString() {
+        expect('"');
+        boolean sawEscape = false;
+        while ((pos = scanner.indexOfQuoteOrBackslash(json, pos, limit)) < limit) {
+            if (json[pos] == '"') {
+                escaped = sawEscape;
+                return pos++;
+            }
+            sawEscape = true;
+            pos += 2;
+        }
+        pos = limit;
+        throw new IllegalStateException("Unterminated string");
+    }
+
+    /**
+     * Skips the value at the current position, including any nested objects and arrays.
+     */
+    void skipValue() {
+        int b = skipWhitespace();
+        switch (b) {
+            case '"':
+                scanString();
+                return;
+            case '{':
+            case '[':
+                skipContainer();
+                return;
+            case -1:
+                throw new IllegalStateException("Unexpected end of input");
+            default:
+                skipScalar();
+        }
+    }
+
+    private void skipContainer() {
+        int depth = 0;
+        while ((pos = scanner.indexOfStructural(json, pos, limit)) < limit) {
+            switch (json[pos]) {
+                case '"':
+                    scanString();
+                    continue;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    if (--depth == 0) {
+                        pos++;
+                        return;
+                    }
+                    break;
+                default:
+            }
+            pos++;
+        }
+        throw new IllegalStateException("Unterminated container");
+    }
+
+    /**
+     * Skips a literal or number, checking that it is well formed so that a truncated
+     * {@code tru} or a number with trailing junk such as {@code 12x} is rejected here
+     * rather than when the value is decoded.
+     */
+    private void skipScalar() {
+        int start = pos;
+        while (pos < limit) {
+            byte b = json[pos];
+            if (b == ',' || b == '}' || b == ']' || (b <= ' ' && b >= 0)) break;
+            pos++;
+        }
+        if (!isLiteral(start, TRUE) && !isLiteral(start, FALSE) && !isLiteral(start, NULL) && !isNumber(start)) {
+            throw new IllegalStateException("Invalid value at position " + start);
+        }
+    }
+
+    private boolean isLiteral(int start, byte[] literal) {
+        return regionEquals(start, pos, literal);
+    }
+
+    /**
+     * Whether {@code [start, pos)} is an optionally signed run of digits with an optional
+     * fraction and exponent.
+     */
+    private boolean isNumber(int start) {
+        int i = start;
+        if (i < pos && json[i] == '-') i++;
+        int digits = i;
+        while (i < pos && isDigit(json[i])) i++;
+        if (i == digits) return false;
+        if (i < pos && json[i] == '.') {
+            int fraction = ++i;
+            while (i < pos && isDigit(json[i])) i++;
+            if (i == fraction) return false;
+        }
+        if (i < pos && (json[i] == 'e' || json[i] == 'E')) {
+            i++;
+            if (i < pos && (json[i] == '+' || json[i] == '-')) i++;
+            int exponent = i;
+            while (i < pos && isDigit(json[i])) i++;
+            if (i == exponent) return false;
+        }
+        return i == pos;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Compares the raw, unescaped string bytes in {@code [start, end)} with {@code key}.
+     */
+    boolean regionEquals(int start, int end, byte[] key) {
+        if (end - start != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (json[start + i] != key[i]) return false;
+        }
+        return true;
+    }
+}
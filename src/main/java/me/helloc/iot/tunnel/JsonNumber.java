@@ -0,0 +1,140 @@
+package me.helloc.iot.tunnel;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads JSON numbers straight from UTF-8 bytes into primitives.
+ * <p>
+ * Digits are accumulated directly from the buffer: no substring is created, nothing is
+ * boxed and malformed input is reported through the return value instead of an exception.
+ * Decimal numbers with at most 15 significant digits and a small exponent, which covers
+ * virtually all sensor readings, are converted exactly with a single multiplication or
+ * division. Only the rare remaining cases fall back to {@link Double#parseDouble}.
+ * <p>
+ * An instance holds the result of the last {@link #read} call and is not thread-safe.
+ */
+final class JsonNumber {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /** Whether the last number was an integer that fits in a {@code long}. */
+    boolean integral;
+    /** Value of the last number if {@link #integral}, otherwise its truncation. */
+    long longValue;
+    double doubleValue;
+
+    /**
+     * Whether the last number is a whole number within the range of an {@code int}, such
+     * as {@code 17} or {@code 17.0}, but not {@code 1.9} or {@code 3000000000}.
+     */
+    boolean fitsInt() {
+        return integral ? longValue == (int) longValue : doubleValue == (int) doubleValue;
+    }
+
+    /**
+     * Parses the number in {@code json[start, end)}. Returns {@code false} if the range
+     * is not a number, in which case the fields are left unspecified.
+     */
+    boolean read(byte[] json, int start, int end) {
+        int i = start;
+        boolean negative = i < end && json[i] == '-';
+        if (negative) i++;
+
+        // Integer part, accumulated negatively so Long.MIN_VALUE is representable.
+        long accumulator = 0;
+        boolean overflow = false;
+        int digits = 0;
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        while (i < end && isDigit(json[i])) {
+            int digit = json[i++] - '0';
+            if (!overflow) {
+                if (accumulator < Long.MIN_VALUE / 10 || accumulator * 10 < Long.MIN_VALUE + digit) {
+                    overflow = true;
+                } else {
+                    accumulator = accumulator * 10 - digit;
+                }
+            }
+            if (significant < 18) {
+                if (mantissa != 0 || digit != 0) significant++;
+                mantissa = mantissa * 10 + digit;
+            } else {
+                exponent++;
+            }
+            digits++;
+        }
+
+        boolean fraction = false;
+        if (i < end && json[i] == '.') {
+            fraction = true;
+            i++;
+            while (i < end && isDigit(json[i])) {
+                int digit = json[i++] - '0';
+                if (significant < 18) {
+                    if (mantissa != 0 || digit != 0) significant++;
+                    mantissa = mantissa * 10 + digit;
+                    exponent--;
+                }
+                digits++;
+            }
+        }
+        if (digits == 0) return false;
+
+        boolean exponentPart = false;
+        if (i < end && (json[i] == 'e' || json[i] == 'E')) {
+            exponentPart = true;
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (json[i] == '+' || json[i] == '-')) {
+                negativeExponent = json[i] == '-';
+                i++;
+            }
+            int explicit = 0;
+            int exponentDigits = 0;
+            while (i < end && isDigit(json[i])) {
+                if (explicit < 100_000) explicit = explicit * 10 + (json[i] - '0');
+                i++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) return false;
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (i != end) return false;
+
+        if (!fraction && !exponentPart && !overflow && (negative || accumulator != Long.MIN_VALUE)) {
+            integral = true;
+            longValue = negative ? accumulator : -accumulator;
+            doubleValue = longValue;
+            return true;
+        }
+
+        integral = false;
+        if (mantissa == 0) {
+            doubleValue = negative ? -0.0 : 0.0;
+        } else if (mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            double value = mantissa;
+            value = exponent < 0 ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+            doubleValue = negative ? -value : value;
+        } else {
+            doubleValue = Double.parseDouble(new String(json, start, end - start, StandardCharsets.US_ASCII));
+        }
+        longValue = (long) doubleValue;
+        return true;
+    }
+
+    /**
+     * Returns the last number boxed the way {@link SimpleJsonParser} represents it:
+     * a {@link Long} when integral, a {@link Double} otherwise.
+     */
+    Number boxed() {
+        return integral ? (Number) longValue : (Number) doubleValue;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
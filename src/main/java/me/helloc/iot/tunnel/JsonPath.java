@@ -0,0 +1,198 @@
+package me.helloc.iot.tunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsed form of a path expression such as {@code $.sensor[0].value}.
+ * <p>
+ * Besides keys and indices, a step may be a wildcard ({@code [*]} or {@code .*}) matching
+ * every element or member, or a filter such as {@code [?(@.type=='temp')]} matching the
+ * elements whose relative path equals a literal. The relative path of a filter may only
+ * contain keys and indices; the literal is a quoted string, a number or a boolean.
+ * <p>
+ * Instances are immutable and can be shared between threads. Parsed paths are cached by
+ * expression, so builders created per message do not tokenize the same path again.
+ */
+final class JsonPath {
+    private static final int CACHE_LIMIT = 1024;
+    private static final Map<String, JsonPath> CACHE = new ConcurrentHashMap<>();
+
+    final String expression;
+    final PathToken[] tokens;
+    /** Whether the path selects at most one value, i.e. has no wildcard or filter step. */
+    final boolean singular;
+
+    private JsonPath(String expression, PathToken[] tokens) {
+        this.expression = expression;
+        this.tokens = tokens;
+        boolean singular = true;
+        for (PathToken token : tokens) {
+            if (token instanceof PathToken.Wildcard || token instanceof PathToken.Filter) singular = false;
+        }
+        this.singular = singular;
+    }
+
+    static JsonPath compile(String expression) {
+        JsonPath path = CACHE.get(expression);
+        if (path == null) {
+            path = new JsonPath(expression, parseTokens(expression));
+            if (CACHE.size() < CACHE_LIMIT) {
+                CACHE.putIfAbsent(expression, path);
+            }
+        }
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    interface PathToken {
+        final class Key implements PathToken {
+            final String name;
+            Key(String name) { this.name = name; }
+        }
+        final class Index implements PathToken {
+            final int index;
+            Index(int index) { this.index = index; }
+        }
+        final class Wildcard implements PathToken {
+            static final Wildcard INSTANCE = new Wildcard();
+            private Wildcard() { }
+        }
+        final class Filter implements PathToken {
+            /** Source text, e.g. {@code ?(@.type=='temp')}, used to merge identical filters. */
+            final String expression;
+            final PathToken[] path;
+            final Object expected;
+            Filter(String expression, PathToken[] path, Object expected) {
+                this.expression = expression;
+                this.path = path;
+                this.expected = expected;
+            }
+        }
+    }
+
+    private static PathToken[] parseTokens(String path) {
+        if (!path.startsWith("$")) {
+            throw new IllegalArgumentException("Path must start with $");
+        }
+        return parseSteps(path, 1, path.length(), true);
+    }
+
+    /**
+     * Parses the steps in {@code path[from, to)}. Wildcards and filters are only allowed
+     * when {@code nested} is {@code true}, i.e. not inside a filter's relative path.
+     */
+    private static PathToken[] parseSteps(String path, int from, int to, boolean nested) {
+        List<PathToken> tokens = new ArrayList<>();
+        int i = from;
+        while (i < to) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                i++;
+                int start = i;
+                while (i < to && path.charAt(i) != '.' && path.charAt(i) != '[') i++;
+                String key = path.substring(start, i);
+                if (key.equals("*") && nested) {
+                    tokens.add(PathToken.Wildcard.INSTANCE);
+                } else if (!key.isEmpty()) {
+                    tokens.add(new PathToken.Key(key));
+                }
+            } else if (c == '[') {
+                i++;
+                if (nested && i < to && path.charAt(i) == '?') {
+                    int end = filterEnd(path, i, to);
+                    tokens.add(parseFilter(path, i, end));
+                    i = end + 1;
+                    continue;
+                }
+                int start = i;
+                while (i < to && path.charAt(i) != ']') i++;
+                String index = path.substring(start, i);
+                if (index.equals("*") && nested) {
+                    tokens.add(PathToken.Wildcard.INSTANCE);
+                } else {
+                    int idx;
+                    try {
+                        idx = Integer.parseInt(index);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid numeric index in path: '" + path + "'");
+                    }
+                    tokens.add(new PathToken.Index(idx));
+                }
+                if (i < to && path.charAt(i) == ']') i++;
+            } else {
+                i++;
+            }
+        }
+        return tokens.toArray(new PathToken[0]);
+    }
+
+    /**
+     * Returns the index of the {@code ']'} closing the filter starting at {@code from},
+     * skipping over quoted literals and the indices of the relative path.
+     */
+    private static int filterEnd(String path, int from, int to) {
+        char quote = 0;
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            char c = path.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') i++;
+                else if (c == quote) quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && depth-- == 0) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unterminated filter in path: '" + path + "'");
+    }
+
+    /**
+     * Parses {@code ?(@<relative path> == <literal>)} in {@code path[from, to)}.
+     */
+    private static PathToken.Filter parseFilter(String path, int from, int to) {
+        String expression = path.substring(from, to).trim();
+        int equals = expression.indexOf("==");
+        if (!expression.startsWith("?(@") || !expression.endsWith(")") || equals < 0) {
+            throw new IllegalArgumentException("Invalid filter expression in path: '" + path + "'");
+        }
+        String relative = expression.substring(3, equals).trim();
+        String literal = expression.substring(equals + 2, expression.length() - 1).trim();
+        PathToken[] steps = parseSteps(relative, 0, relative.length(), false);
+        return new PathToken.Filter(expression, steps, parseLiteral(literal, path));
+    }
+
+    private static Object parseLiteral(String literal, String path) {
+        if (literal.length() >= 2 && (literal.charAt(0) == '\'' || literal.charAt(0) == '"')
+                && literal.charAt(literal.length() - 1) == literal.charAt(0)) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1; i < literal.length() - 1; i++) {
+                char c = literal.charAt(i);
+                if (c == '\\' && i + 1 < literal.length() - 1) c = literal.charAt(++i);
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+        if (literal.equals("true") || literal.equals("false")) {
+            return Boolean.valueOf(literal);
+        }
+        try {
+            return Long.valueOf(literal);
+        } catch (NumberFormatException e) {
+            try {
+                return Double.valueOf(literal);
+            } catch (NumberFormatException notANumber) {
+                throw new IllegalArgumentException("Invalid filter literal in path: '" + path + "'");
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package me.helloc.iot.tunnel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with power-of-two buckets.
+ * <p>
+ * Recording is a couple of atomic increments and never allocates, so it can sit on the
+ * consumer path. Percentiles are approximate: they report the upper bound of the bucket
+ * holding the requested rank, which is at most twice the true value.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    /** Bucket {@code i} counts durations in {@code [2^(i-1), 2^i)}; bucket 0 counts zero. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one duration. Negative durations are recorded as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public double mean(TimeUnit unit) {
+        long recorded = count.sum();
+        return recorded == 0 ? 0 : (double) sum.sum() / recorded / unit.toNanos(1);
+    }
+
+    /**
+     * Returns an upper bound for the duration below which {@code percentile} percent of the
+     * recordings fall, or 0 if nothing was recorded.
+     *
+     * @throws IllegalArgumentException if {@code percentile} is not between 0 and 100
+     */
+    public long percentile(double percentile, TimeUnit unit) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                long upper = i == 0 ? 0 : (1L << i) - 1;
+                return unit.convert(Math.min(upper, max.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        return max(unit);
+    }
+
+    /**
+     * Clears all recordings, for example after exporting them as metrics.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + count() + ", p50=" + percentile(50, TimeUnit.MICROSECONDS)
+                + "us, p99=" + percentile(99, TimeUnit.MICROSECONDS) + "us, max=" + max(TimeUnit.MICROSECONDS) + "us}";
+    }
+}
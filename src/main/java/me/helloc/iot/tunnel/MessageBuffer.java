@@ -1,10 +1,18 @@
 package me.helloc.iot.tunnel;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Buffer storage for messages delivered via MQTT.
  * Implementations may store messages in memory or external systems.
+ * <p>
+ * Consumers that should not spin can wait with {@link #poll(long, TimeUnit)} or
+ * {@link #take()}, and process messages in batches with {@link #drainTo}. The built-in
+ * buffers wake waiting consumers as soon as a message arrives; the default methods, kept
+ * for custom implementations, fall back to polling with a short back-off.
  */
 public interface MessageBuffer {
     /**
@@ -12,8 +20,70 @@ public interface MessageBuffer {
      */
     void add(String topic, String message);
 
+    /**
+     * Adds a received MQTT message. The default decodes the payload and calls
+     * {@link #add(String, String)}; buffers that store bytes override it to skip decoding.
+     */
+    default void add(MqttMessageView message) {
+        add(message.topic(), message.text());
+    }
+
     /**
      * Retrieves and removes the earliest buffered message or returns {@code null} if empty.
      */
     Map.Entry<String, String> poll();
+
+    /**
+     * Retrieves and removes the earliest buffered message, waiting up to {@code timeout}
+     * for one to arrive. Returns {@code null} if none arrived in time.
+     */
+    default Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long backoff = TimeUnit.MICROSECONDS.toNanos(50);
+        while (true) {
+            Map.Entry<String, String> entry = poll();
+            if (entry != null) return entry;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            LockSupport.parkNanos(Math.min(backoff, remaining));
+            if (Thread.interrupted()) throw new InterruptedException();
+            backoff = Math.min(backoff * 2, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    /**
+     * Retrieves and removes the earliest buffered message, waiting until one arrives.
+     */
+    default Map.Entry<String, String> take() throws InterruptedException {
+        while (true) {
+            Map.Entry<String, String> entry = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            if (entry != null) return entry;
+        }
+    }
+
+    /**
+     * Whether every added message is handed out exactly once, in the order it was added, so
+     * a consumer can tell which messages it has taken by counting them. Buffers that drop,
+     * merge or reorder messages return {@code false}, as does the default; custom buffers
+     * that qualify override it. Required by
+     * {@link MqttBufferedSubscriber.Builder#ackWindow(int)} and by the lanes of a
+     * {@link PartitionedMessageBuffer}.
+     */
+    default boolean isFifo() {
+        return false;
+    }
+
+    /**
+     * Removes up to {@code maxElements} buffered messages, oldest first, and adds them to
+     * {@code target} without waiting. Returns the number of messages transferred.
+     */
+    default int drainTo(Collection<? super Map.Entry<String, String>> target, int maxElements) {
+        int count = 0;
+        Map.Entry<String, String> entry;
+        while (count < maxElements && (entry = poll()) != null) {
+            target.add(entry);
+            count++;
+        }
+        return count;
+    }
 }
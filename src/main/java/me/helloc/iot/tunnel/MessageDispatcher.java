@@ -0,0 +1,275 @@
+package me.helloc.iot.tunnel;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which thread runs the delivery of an incoming message: the message listeners and
+ * {@link MessageBuffer#add}.
+ * <p>
+ * {@link #inline()} runs delivery on Paho's callback thread, as before. The other modes only
+ * enqueue on the callback thread and deliver on worker threads, so a slow listener no longer
+ * stalls ingestion of other topics. Messages of the same topic are still delivered one at a
+ * time, in arrival order. At most {@code maxPending} messages wait for delivery; beyond that
+ * the callback thread blocks, which lets MQTT flow control slow the broker down instead of
+ * growing the heap.
+ *
+ * <pre>{@code
+ * MqttBufferedSubscriber subscriber = MqttBufferedSubscriber.builder()
+ *         .brokerUrl("tcp://broker.hivemq.com:1883")
+ *         .dispatcher(MessageDispatcher.pool(4, 10_000))
+ *         .build();
+ * }</pre>
+ */
+public final class MessageDispatcher implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LatencyHistogram handlerTimes = new LatencyHistogram();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private MessageDispatcher(ExecutorService executor, int maxPending) {
+        this.executor = executor;
+        this.permits = executor == null ? null : new Semaphore(maxPending);
+    }
+
+    /**
+     * Delivers on the MQTT callback thread. Exceptions thrown by listeners or the buffer
+     * propagate to the MQTT client, as without a dispatcher.
+     */
+    public static MessageDispatcher inline() {
+        return new MessageDispatcher(null, 0);
+    }
+
+    /**
+     * Delivers on a fixed pool of {@code threads} daemon platform threads.
+     *
+     * @throws IllegalArgumentException if {@code threads} or {@code maxPending} is not positive
+     */
+    public static MessageDispatcher pool(int threads, int maxPending) {
+        if (threads <= 0) throw new IllegalArgumentException("threads must be positive");
+        checkMaxPending(maxPending);
+        AtomicInteger sequence = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "mqtt-dispatch-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new MessageDispatcher(Executors.newFixedThreadPool(threads, factory), maxPending);
+    }
+
+    /**
+     * Delivers each topic's messages on a virtual thread, so listeners can block on I/O
+     * without tying up platform threads. The library targets Java 11, so the executor is
+     * looked up at run time.
+     *
+     * @throws IllegalStateException if the running JVM has no virtual threads (before Java 21)
+     */
+    public static MessageDispatcher virtualThreads(int maxPending) {
+        checkMaxPending(maxPending);
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            return new MessageDispatcher(executor, maxPending);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later", e);
+        }
+    }
+
+    /**
+     * Returns {@code true} if {@link #virtualThreads(int)} is supported by the running JVM.
+     */
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static void checkMaxPending(int maxPending) {
+        if (maxPending <= 0) throw new IllegalArgumentException("maxPending must be positive");
+    }
+
+    /**
+     * Runs {@code delivery} for a message of {@code topic}, or queues it behind earlier
+     * messages of the same topic. Blocks while {@code maxPending} messages are waiting. An
+     * interrupted wait drops the message and leaves the thread's interrupt flag set.
+     */
+    void dispatch(String topic, Runnable delivery) {
+        if (executor == null) {
+            long start = System.nanoTime();
+            try {
+                delivery.run();
+            } finally {
+                handlerTimes.record(System.nanoTime() - start);
+            }
+            return;
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.increment();
+            return;
+        }
+        pending.incrementAndGet();
+        // Queued inside compute, so a lane being retired cannot take the message with it.
+        Lane lane = lanes.compute(topic, (t, current) -> {
+            Lane target = current == null ? new Lane(t) : current;
+            target.queue.add(delivery);
+            return target;
+        });
+        lane.schedule();
+    }
+
+    /**
+     * Number of messages queued for delivery and not yet started.
+     */
+    public int queueDepth() {
+        return pending.get();
+    }
+
+    /**
+     * Number of topics with messages queued or being delivered.
+     */
+    int laneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * Time spent delivering each message, listeners and buffer included.
+     */
+    public LatencyHistogram handlerTimes() {
+        return handlerTimes;
+    }
+
+    /**
+     * Total number of deliveries that threw on a worker thread. The exception is discarded
+     * so later messages of the topic are still delivered.
+     */
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Total number of messages dropped because the callback thread was interrupted while
+     * waiting for room, or because the dispatcher was already shut down.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops accepting new messages and waits at most {@code timeout} for queued deliveries
+     * to finish. Returns {@code true} if everything was delivered in time.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        if (executor == null) return true;
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Stops accepting new messages without waiting. Deliveries already queued still run.
+     * Called by {@link MqttBufferedSubscriber#disconnect()}.
+     */
+    @Override
+    public void close() {
+        if (executor != null) executor.shutdown();
+    }
+
+    /**
+     * Serializes the deliveries of one topic. At most one worker drains a lane at a time,
+     * and it keeps draining until the lane is empty instead of resubmitting itself. A lane
+     * that drained is removed, so topics that come and go do not accumulate.
+     */
+    private final class Lane implements Runnable {
+        private final String topic;
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Lane(String topic) {
+            this.topic = topic;
+        }
+
+        void schedule() {
+            if (!scheduled.compareAndSet(false, true)) return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Shut down: nothing will drain this lane any more.
+                scheduled.set(false);
+                while (queue.poll() != null) {
+                    pending.decrementAndGet();
+                    permits.release();
+                    dropped.increment();
+                }
+                retire();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean drained = false;
+            try {
+                do {
+                    Runnable delivery;
+                    while ((delivery = queue.poll()) != null) {
+                        deliver(delivery);
+                    }
+                    scheduled.set(false);
+                    // A message queued after the last poll but before the flag was cleared
+                    // found the lane scheduled; pick it up here.
+                } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+                drained = true;
+            } finally {
+                if (!drained) {
+                    // A delivery threw an Error; let another worker take over the rest.
+                    scheduled.set(false);
+                    if (!queue.isEmpty()) schedule();
+                }
+            }
+            retire();
+        }
+
+        /**
+         * Removes the lane if it is empty and idle. Runs under the map's lock for the
+         * topic, the same lock {@link #dispatch} queues under, so no message is lost.
+         */
+        private void retire() {
+            lanes.computeIfPresent(topic, (t, current) ->
+                    current == this && queue.isEmpty() && !scheduled.get() ? null : current);
+        }
+
+        private void deliver(Runnable delivery) {
+            pending.decrementAndGet();
+            permits.release();
+            long start = System.nanoTime();
+            try {
+                delivery.run();
+            } catch (RuntimeException e) {
+                failed.increment();
+            } catch (Error e) {
+                failed.increment();
+                throw e;
+            } finally {
+                handlerTimes.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package me.helloc.iot.tunnel;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link Flow.Publisher} of the messages received by a {@link MqttBufferedSubscriber} built
+ * with {@link MqttBufferedSubscriber.Builder#flowControl(boolean)}.
+ * <p>
+ * A message is acknowledged to the broker only after it has been passed to
+ * {@link Flow.Subscriber#onNext}. While the subscriber has no outstanding demand, received
+ * messages wait here unacknowledged, and once the broker's inflight window for the client
+ * is full it stops sending, throttling the publishers behind it. For QoS 1 and 2 the memory
+ * held is therefore bounded by that window rather than by how fast devices publish. QoS 0
+ * messages are never acknowledged and cannot be throttled this way, so at most
+ * {@code maxPendingQos0} of them wait; further QoS 0 messages are dropped and counted, as
+ * at-most-once delivery allows.
+ * <p>
+ * The publisher serves one subscriber at a time. After it cancels, the next subscriber
+ * receives the messages still waiting. {@code onNext} should not throw; if it does, the
+ * subscription is cancelled and the message is kept for the next subscriber.
+ *
+ * <pre>{@code
+ * MqttBufferedSubscriber subscriber = MqttBufferedSubscriber.builder()
+ *         .brokerUrl("tcp://broker.hivemq.com:1883")
+ *         .addTopic("sensors/#")
+ *         .flowControl(true)
+ *         .build();
+ * subscriber.publisher().subscribe(mySubscriber);
+ * subscriber.connect();
+ * }</pre>
+ */
+public final class MessagePublisher implements Flow.Publisher<MqttMessageView> {
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger pendingQos0 = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final int maxPendingQos0;
+    private final AtomicReference<Subscription> current = new AtomicReference<>();
+    private volatile boolean completed;
+
+    MessagePublisher(int maxPendingQos0) {
+        this.maxPendingQos0 = maxPendingQos0;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MqttMessageView> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        Subscription subscription = new Subscription(subscriber);
+        if (!current.compareAndSet(null, subscription)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Publisher already has a subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+    /**
+     * Number of received messages waiting for demand, and so not yet acknowledged.
+     */
+    public int pendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Total number of QoS 0 messages dropped because {@code maxPendingQos0} were already
+     * waiting for demand.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Queues a received message. {@code ack} runs after the message was passed to
+     * {@code onNext}.
+     */
+    void offer(MqttMessageView message, Runnable ack) {
+        if (message.qos() == 0 && pendingQos0.incrementAndGet() > maxPendingQos0) {
+            pendingQos0.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        queue.add(new Pending(message, ack));
+        pending.incrementAndGet();
+        Subscription subscription = current.get();
+        if (subscription != null) subscription.drain();
+    }
+
+    /**
+     * Discards the waiting messages, which the broker redelivers to a persistent session,
+     * and completes the current and any later subscriber.
+     */
+    void complete() {
+        completed = true;
+        Pending discarded;
+        while ((discarded = queue.poll()) != null) {
+            removed(discarded);
+        }
+        Subscription subscription = current.get();
+        if (subscription != null) subscription.drain();
+    }
+
+    private void removed(Pending message) {
+        pending.decrementAndGet();
+        if (message.message.qos() == 0) pendingQos0.decrementAndGet();
+    }
+
+    private static final class Pending {
+        final MqttMessageView message;
+        final Runnable ack;
+
+        Pending(MqttMessageView message, Runnable ack) {
+            this.message = message;
+            this.ack = ack;
+        }
+    }
+
+    /**
+     * Emits under a work-in-progress counter, so exactly one thread runs the drain loop at a
+     * time, whether it was triggered by an arriving message or by {@link #request(long)}.
+     */
+    private final class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super MqttMessageView> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private Throwable invalidRequest;
+
+        Subscription(Flow.Subscriber<? super MqttMessageView> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("request must be positive, was " + n);
+            } else {
+                requested.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                if (terminate()) return;
+                long demand = requested.get();
+                long emitted = 0;
+                Pending next;
+                while (emitted != demand && !cancelled && (next = queue.peek()) != null) {
+                    try {
+                        subscriber.onNext(next.message);
+                    } catch (RuntimeException e) {
+                        cancelled = true;
+                        break;
+                    }
+                    queue.poll();
+                    removed(next);
+                    next.ack.run();
+                    emitted++;
+                }
+                if (terminate()) return;
+                if (emitted != 0 && demand != Long.MAX_VALUE) requested.addAndGet(-emitted);
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Ends this subscription if it was cancelled, misused or the publisher completed.
+         * The work-in-progress counter is left raised so nothing is emitted afterwards.
+         */
+        private boolean terminate() {
+            if (cancelled) {
+                current.compareAndSet(this, null);
+                return true;
+            }
+            if (invalidRequest != null) {
+                cancelled = true;
+                current.compareAndSet(this, null);
+                subscriber.onError(invalidRequest);
+                return true;
+            }
+            if (completed && queue.isEmpty()) {
+                cancelled = true;
+                current.compareAndSet(this, null);
+                subscriber.onComplete();
+                return true;
+            }
+            return false;
+        }
+    }
+}
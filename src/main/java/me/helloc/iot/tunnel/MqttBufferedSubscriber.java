@@ -10,23 +10,51 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
 /**
  * Manages MQTT connection with automatic reconnection and subscription restoration.
+ * <p>
+ * With {@link Builder#shards(int)} greater than one, the subscriber opens that many client
+ * connections and subscribes each to {@code $share/<group>/<topic>}, so the broker spreads
+ * the messages across them and ingestion is no longer limited to one connection and one
+ * callback thread. All shards feed the same {@link MessageBuffer}, listeners and
+ * {@link MessageDispatcher}, so the buffer is added to from several threads at once. Each
+ * shard reconnects on its own and reports its own {@link ConnectionListener} events.
  */
 public class MqttBufferedSubscriber {
 
+    /**
+     * Connection events. Each shard connects, loses its connection and reconnects on its
+     * own, so with {@link Builder#shards(int)} greater than one every event is reported once
+     * per shard, through the overloads taking the shard index. By default those forward to
+     * the methods without it. With a single connection only the methods without an index
+     * are called.
+     */
     public interface ConnectionListener {
         void onConnected();
         void onConnectionLost(Throwable cause);
         void onDisconnected();
+
+        default void onConnected(int shard) {
+            onConnected();
+        }
+
+        default void onConnectionLost(int shard, Throwable cause) {
+            onConnectionLost(cause);
+        }
+
+        default void onDisconnected(int shard) {
+            onDisconnected();
+        }
     }
 
     public interface MessageListener {
@@ -35,41 +63,70 @@ public class MqttBufferedSubscriber {
         void onBufferedAfter(String topic, String message);
     }
 
+    /**
+     * Receives each message as an undecoded {@link MqttMessageView}, before any
+     * {@link MessageListener}. Suited to consumers that forward binary payloads.
+     */
+    public interface RawMessageListener {
+        void onMessageReceived(MqttMessageView message);
+    }
+
     private final String brokerUrl;
-    private final String clientId;
     private final String[] topics;
     private final MqttConnectOptions options;
     private final ScheduledExecutorService scheduler;
     public final MessageBuffer messageBuffer;
-    private final Supplier<MqttAsyncClient> clientSupplier;
-    private final MqttAsyncClient client;
+    private final Shard[] shards;
     private final CopyOnWriteArrayList<ConnectionListener> listeners = new CopyOnWriteArrayList<>();
-    private final CopyOnWriteArrayList<MessageListener> messageListeners = new CopyOnWriteArrayList<>();
+    private final List<MessageListener> messageListeners = new ArrayList<>();
+    private final List<RawMessageListener> rawMessageListeners = new ArrayList<>();
+    /** Rebuilt on every registration change, so delivery reads one immutable snapshot. */
+    private volatile Delivery delivery = new Delivery(new RawMessageListener[0], new MessageListener[0], new MessageListener[0], new MessageListener[0]);
     private final long initialDelay;
     private final long maxDelay;
     private final int qos;
-    private volatile long currentDelay;
+    private final MessageDispatcher dispatcher;
+    /** Receives the messages instead of the buffer and listeners when flow control is on. */
+    private final MessagePublisher publisher;
+    /** Tracks uncommitted messages when acknowledgement waits for the consumer. */
+    private final InflightWindow inflightWindow;
 
     private MqttBufferedSubscriber(Builder builder) {
         this.brokerUrl = Objects.requireNonNull(builder.brokerUrl, "brokerUrl");
-        this.clientId = builder.clientId != null ? builder.clientId : MqttAsyncClient.generateClientId();
-        this.topics = builder.topics.toArray(new String[0]);
+        this.topics = new String[builder.topics.size()];
+        for (int i = 0; i < topics.length; i++) {
+            String topic = builder.topics.get(i);
+            topics[i] = builder.sharedGroup != null ? "$share/" + builder.sharedGroup + "/" + topic : topic;
+        }
         this.options = builder.options;
         this.scheduler = builder.scheduler != null ? builder.scheduler : Executors.newSingleThreadScheduledExecutor();
         this.messageBuffer = builder.messageBuffer;
-        this.clientSupplier = builder.clientSupplier != null ? builder.clientSupplier : () -> {
-            try {
-                return new MqttAsyncClient(brokerUrl, clientId);
-            } catch (MqttException e) {
-                throw new RuntimeException(e);
-            }
-        };
-        this.client = clientSupplier.get();
-        this.client.setCallback(new InternalCallback());
         this.initialDelay = builder.initialDelay;
         this.maxDelay = builder.maxDelay;
         this.qos = builder.qos;
-        this.currentDelay = initialDelay;
+        this.dispatcher = builder.dispatcher;
+        this.publisher = builder.flowControl ? new MessagePublisher(builder.maxPendingQos0) : null;
+        this.inflightWindow = builder.ackWindow > 0 ? new InflightWindow(builder.effectiveAckWindow()) : null;
+        this.shards = new Shard[builder.shards];
+        for (int i = 0; i < shards.length; i++) {
+            MqttAsyncClient client = builder.clientSupplier != null
+                    ? builder.clientSupplier.get()
+                    : newClient(clientId(builder.clientId, i));
+            shards[i] = new Shard(i, client);
+        }
+    }
+
+    private String clientId(String configured, int shard) {
+        if (configured == null) return MqttAsyncClient.generateClientId();
+        return shards.length == 1 ? configured : configured + "-" + shard;
+    }
+
+    private MqttAsyncClient newClient(String clientId) {
+        try {
+            return new MqttAsyncClient(brokerUrl, clientId);
+        } catch (MqttException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public void addListener(ConnectionListener listener) {
@@ -80,77 +137,229 @@ public class MqttBufferedSubscriber {
         listeners.remove(listener);
     }
 
-    public void addMessageListener(MessageListener listener) {
+    public synchronized void addMessageListener(MessageListener listener) {
         messageListeners.add(listener);
+        delivery = compile();
     }
 
-    public void removeMessageListener(MessageListener listener) {
+    public synchronized void removeMessageListener(MessageListener listener) {
         messageListeners.remove(listener);
+        delivery = compile();
     }
 
-    public void connect() {
+    public synchronized void addRawMessageListener(RawMessageListener listener) {
+        rawMessageListeners.add(listener);
+        delivery = compile();
+    }
+
+    public synchronized void removeRawMessageListener(RawMessageListener listener) {
+        rawMessageListeners.remove(listener);
+        delivery = compile();
+    }
+
+    /**
+     * Sorts the listeners into one array per callback. A listener extending one of the
+     * adapters is left out of the callbacks it does not override, and the payload is not
+     * decoded at all when no registered listener or buffer needs the text.
+     */
+    private Delivery compile() {
+        List<MessageListener> received = new ArrayList<>();
+        List<MessageListener> before = new ArrayList<>();
+        List<MessageListener> after = new ArrayList<>();
+        for (MessageListener l : messageListeners) {
+            if (overrides(l, "onMessageReceived")) received.add(l);
+            if (overrides(l, "onBufferedBefore")) before.add(l);
+            if (overrides(l, "onBufferedAfter")) after.add(l);
+        }
+        return new Delivery(rawMessageListeners.toArray(new RawMessageListener[0]),
+                received.toArray(new MessageListener[0]),
+                before.toArray(new MessageListener[0]),
+                after.toArray(new MessageListener[0]));
+    }
+
+    private static boolean overrides(MessageListener listener, String callback) {
         try {
-            client.connect(options, null, new IMqttActionListener() {
-                @Override
-                public void onSuccess(IMqttToken asyncActionToken) {
-                    currentDelay = initialDelay;
-                    subscribeAll();
-                    for (ConnectionListener l : listeners) {
-                        l.onConnected();
-                    }
-                }
+            Class<?> declaring = listener.getClass().getMethod(callback, String.class, String.class).getDeclaringClass();
+            return declaring != DefaultMessageListener.class && declaring != DefaultMqttListener.class;
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+    }
 
-                @Override
-                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-                    scheduleReconnect();
-                }
-            });
-        } catch (MqttException e) {
-            scheduleReconnect();
+    public void connect() {
+        for (Shard shard : shards) {
+            shard.connect();
         }
     }
 
+    /**
+     * Returns the dispatcher delivering incoming messages, for example to read its metrics.
+     */
+    public MessageDispatcher dispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Returns the publisher of incoming messages.
+     *
+     * @throws IllegalStateException if the subscriber was not built with
+     *                               {@link Builder#flowControl(boolean)}
+     */
+    public MessagePublisher publisher() {
+        if (publisher == null) throw new IllegalStateException("Flow control is not enabled");
+        return publisher;
+    }
+
+    /**
+     * Returns the window through which the consumer commits processed messages.
+     *
+     * @throws IllegalStateException if the subscriber was not built with
+     *                               {@link Builder#ackWindow(int)}
+     */
+    public InflightWindow inflightWindow() {
+        if (inflightWindow == null) throw new IllegalStateException("Ack window is not enabled");
+        return inflightWindow;
+    }
+
+    /**
+     * Number of client connections opened by this subscriber.
+     */
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns a snapshot of each connection's state and counters, in shard order.
+     */
+    public List<ShardStats> shardStats() {
+        List<ShardStats> stats = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            stats.add(new ShardStats(shard.index, shard.client.getClientId(), shard.connected,
+                    shard.messages.sum(), shard.reconnects.sum()));
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
     public void disconnect() {
         scheduler.shutdownNow();
-        try {
-            client.disconnect();
-            for (ConnectionListener l : listeners) {
-                l.onDisconnected();
-            }
-        } catch (MqttException ignore) {
+        dispatcher.close();
+        for (Shard shard : shards) {
+            shard.disconnect();
         }
+        if (publisher != null) publisher.complete();
     }
 
-    private void scheduleReconnect() {
-        scheduler.schedule(this::connect, currentDelay, TimeUnit.MILLISECONDS);
-        currentDelay = Math.min(currentDelay * 2, maxDelay);
-    }
+    /**
+     * One client connection with its own reconnect back-off. Reconnects are offset by a
+     * fraction of the initial delay per shard, so shards that lost the broker together do
+     * not all retry at the same instant.
+     */
+    private class Shard implements MqttCallbackExtended {
+        private final int index;
+        private final MqttAsyncClient client;
+        private final LongAdder messages = new LongAdder();
+        private final LongAdder reconnects = new LongAdder();
+        private volatile long currentDelay = initialDelay;
+        private volatile boolean connected;
+        /**
+         * Incremented when the connection is lost. Packet ids are only meaningful on the
+         * connection that received the message, so acks for an older epoch are skipped.
+         */
+        private volatile int epoch;
+
+        Shard(int index, MqttAsyncClient client) {
+            this.index = index;
+            this.client = client;
+            client.setCallback(this);
+            if (publisher != null || inflightWindow != null) client.setManualAcks(true);
+        }
+
+        void connect() {
+            try {
+                client.connect(options, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken asyncActionToken) {
+                        currentDelay = initialDelay;
+                        connected = true;
+                        subscribeAll();
+                        notifyConnected();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                        scheduleReconnect();
+                    }
+                });
+            } catch (MqttException e) {
+                scheduleReconnect();
+            }
+        }
 
-    private void subscribeAll() {
-        for (String topic : topics) {
+        void disconnect() {
+            connected = false;
             try {
-                client.subscribe(topic, qos);
+                client.disconnect();
+                for (ConnectionListener l : listeners) {
+                    if (shards.length == 1) {
+                        l.onDisconnected();
+                    } else {
+                        l.onDisconnected(index);
+                    }
+                }
             } catch (MqttException ignore) {
             }
         }
-    }
 
-    private class InternalCallback implements MqttCallbackExtended {
+        /**
+         * With a single connection listeners get the original callbacks, so implementations
+         * that are proxies or mocks behave as before; shards report their index.
+         */
+        private void notifyConnected() {
+            for (ConnectionListener l : listeners) {
+                if (shards.length == 1) {
+                    l.onConnected();
+                } else {
+                    l.onConnected(index);
+                }
+            }
+        }
+
+        private void scheduleReconnect() {
+            reconnects.increment();
+            long stagger = index * initialDelay / shards.length;
+            scheduler.schedule(this::connect, currentDelay + stagger, TimeUnit.MILLISECONDS);
+            currentDelay = Math.min(currentDelay * 2, maxDelay);
+        }
+
+        private void subscribeAll() {
+            for (String topic : topics) {
+                try {
+                    client.subscribe(topic, qos);
+                } catch (MqttException ignore) {
+                }
+            }
+        }
+
         @Override
         public void connectComplete(boolean reconnect, String serverURI) {
             if (reconnect) {
+                connected = true;
                 subscribeAll();
-                for (ConnectionListener l : listeners) {
-                    l.onConnected();
-                }
+                notifyConnected();
             }
         }
 
         @Override
         public void connectionLost(Throwable cause) {
+            connected = false;
+            epoch++;
             if (cause != null) {
                 for (ConnectionListener l : listeners) {
-                    l.onConnectionLost(cause);
+                    if (shards.length == 1) {
+                        l.onConnectionLost(cause);
+                    } else {
+                        l.onConnectionLost(index, cause);
+                    }
                 }
             }
             scheduleReconnect();
@@ -159,25 +368,120 @@ public class MqttBufferedSubscriber {
         @Override
         public void messageArrived(String topic, MqttMessage message) {
             if (topic != null && message != null) {
-                String payload = new String(message.getPayload());
-                for (MessageListener l : messageListeners) {
-                    l.onMessageReceived(topic, payload);
-                }
-                for (MessageListener l : messageListeners) {
-                    l.onBufferedBefore(topic, payload);
-                }
-                messageBuffer.add(topic, payload);
-                for (MessageListener l : messageListeners) {
-                    l.onBufferedAfter(topic, payload);
+                messages.increment();
+                MqttMessageView view = new MqttMessageView(topic, message.getPayload(), message.getQos(),
+                        message.getId(), message.isRetained(), System.nanoTime());
+                if (publisher != null) {
+                    int received = epoch;
+                    publisher.offer(view, () -> ack(view, received));
+                } else if (inflightWindow != null) {
+                    int received = epoch;
+                    dispatcher.dispatch(topic, () -> delivery.deliver(view,
+                            () -> inflightWindow.add(() -> messageBuffer.add(view), () -> ack(view, received))));
+                } else {
+                    dispatcher.dispatch(topic, () -> delivery.deliver(view, () -> messageBuffer.add(view)));
                 }
             }
         }
 
+        private void ack(MqttMessageView message, int received) {
+            if (message.qos() == 0 || received != epoch) return;
+            try {
+                client.messageArrivedComplete(message.id(), message.qos());
+            } catch (MqttException ignore) {
+            }
+        }
+
         @Override
         public void deliveryComplete(IMqttDeliveryToken token) {
         }
     }
 
+    /**
+     * Point-in-time state of one client connection.
+     */
+    public static final class ShardStats {
+        private final int index;
+        private final String clientId;
+        private final boolean connected;
+        private final long messageCount;
+        private final long reconnectCount;
+
+        ShardStats(int index, String clientId, boolean connected, long messageCount, long reconnectCount) {
+            this.index = index;
+            this.clientId = clientId;
+            this.connected = connected;
+            this.messageCount = messageCount;
+            this.reconnectCount = reconnectCount;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public String clientId() {
+            return clientId;
+        }
+
+        public boolean connected() {
+            return connected;
+        }
+
+        /**
+         * Messages received on this connection since the subscriber was built.
+         */
+        public long messageCount() {
+            return messageCount;
+        }
+
+        /**
+         * Reconnect attempts scheduled for this connection since the subscriber was built.
+         */
+        public long reconnectCount() {
+            return reconnectCount;
+        }
+
+        @Override
+        public String toString() {
+            return "ShardStats{index=" + index + ", clientId=" + clientId + ", connected=" + connected
+                    + ", messages=" + messageCount + ", reconnects=" + reconnectCount + "}";
+        }
+    }
+
+    /**
+     * Immutable snapshot of the registered message listeners, one array per callback.
+     */
+    private static final class Delivery {
+        private final RawMessageListener[] raw;
+        private final MessageListener[] received;
+        private final MessageListener[] before;
+        private final MessageListener[] after;
+
+        Delivery(RawMessageListener[] raw, MessageListener[] received, MessageListener[] before, MessageListener[] after) {
+            this.raw = raw;
+            this.received = received;
+            this.before = before;
+            this.after = after;
+        }
+
+        void deliver(MqttMessageView view, Runnable add) {
+            for (RawMessageListener l : raw) {
+                l.onMessageReceived(view);
+            }
+            String topic = view.topic();
+            for (MessageListener l : received) {
+                l.onMessageReceived(topic, view.text());
+            }
+            for (MessageListener l : before) {
+                l.onBufferedBefore(topic, view.text());
+            }
+            add.run();
+            for (MessageListener l : after) {
+                l.onBufferedAfter(topic, view.text());
+            }
+        }
+    }
+
     public static class Builder {
         private String brokerUrl;
         private String clientId;
@@ -188,7 +492,14 @@ public class MqttBufferedSubscriber {
         private long initialDelay = 1000;
         private long maxDelay = 60000;
         private MessageBuffer messageBuffer = new InMemoryMessageBuffer();
+        private MessageDispatcher dispatcher = MessageDispatcher.inline();
         private int qos = 1;
+        private int shards = 1;
+        private String sharedGroup;
+        private boolean flowControl;
+        private int maxPendingQos0 = 1_000;
+        private int ackWindow;
+        private int brokerReceiveMaximum;
 
         public Builder brokerUrl(String brokerUrl) { this.brokerUrl = brokerUrl; return this; }
         public Builder clientId(String clientId) { this.clientId = clientId; return this; }
@@ -199,6 +510,95 @@ public class MqttBufferedSubscriber {
         public Builder initialDelay(long delay) { this.initialDelay = delay; return this; }
         public Builder maxDelay(long delay) { this.maxDelay = delay; return this; }
         public Builder messageBuffer(MessageBuffer buffer) { this.messageBuffer = buffer; return this; }
+        public Builder dispatcher(MessageDispatcher dispatcher) { this.dispatcher = Objects.requireNonNull(dispatcher, "dispatcher"); return this; }
+        /**
+         * Opens {@code shards} client connections. More than one requires
+         * {@link #sharedGroup(String)}, otherwise every connection would receive every
+         * message. With a configured {@link #clientId(String)}, shard {@code i} uses
+         * {@code clientId-i}; a {@link #clientSupplier(Supplier)} is called once per shard
+         * and must return clients with distinct ids. Each shard reconnects independently and
+         * {@link ConnectionListener}s are notified per shard, with its index.
+         */
+        public Builder shards(int shards) {
+            if (shards < 1) throw new IllegalArgumentException("shards must be at least 1");
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * Subscribes to each topic as {@code $share/<group>/<topic>}, an MQTT 5 shared
+         * subscription that brokers such as HiveMQ, EMQX and Mosquitto also accept over MQTT
+         * 3.1.1. The broker delivers each message to one member of the group.
+         */
+        public Builder sharedGroup(String group) {
+            if (group == null || group.isEmpty() || group.contains("/") || group.contains("+") || group.contains("#")) {
+                throw new IllegalArgumentException("group must be non-empty and must not contain '/', '+' or '#'");
+            }
+            this.sharedGroup = group;
+            return this;
+        }
+
+        /**
+         * Hands incoming messages to {@link MqttBufferedSubscriber#publisher()} instead of the
+         * message buffer, listeners and dispatcher, and acknowledges each message only once
+         * the publisher's subscriber has requested and received it.
+         */
+        public Builder flowControl(boolean enabled) { this.flowControl = enabled; return this; }
+        /**
+         * Most QoS 0 messages that wait for demand under {@link #flowControl(boolean)}. The
+         * broker does not throttle QoS 0, even on a QoS 1 subscription when the message was
+         * published at QoS 0, so later ones are dropped instead. 1,000 by default.
+         */
+        public Builder maxPendingQos0(int max) {
+            if (max < 0) throw new IllegalArgumentException("maxPendingQos0 must not be negative");
+            this.maxPendingQos0 = max;
+            return this;
+        }
+
+        /**
+         * Acknowledges messages only when the consumer commits them through
+         * {@link MqttBufferedSubscriber#inflightWindow()}, keeping at most
+         * {@code maxInflight} uncommitted messages. Use with QoS 1 or 2 and a persistent
+         * session ({@code cleanSession = false}) so uncommitted messages survive a crash.
+         * <p>
+         * The broker caps how many unacknowledged QoS 1 and 2 messages it sends each
+         * connection, 20 by default on Mosquitto ({@code max_inflight_messages}), so a larger
+         * window never fills: the broker stops first. Raise the broker's limit or declare it
+         * with {@link #brokerReceiveMaximum(int)}. When the window does fill, the delivering
+         * thread waits for a commit; with {@link MessageDispatcher#inline()} that is Paho's
+         * callback thread, and once its inbound queue is full the client stops reading the
+         * socket altogether, keepalive responses included.
+         * <p>
+         * Commits count messages in the order they were added, so the
+         * {@link #messageBuffer(MessageBuffer) message buffer} must be
+         * {@linkplain MessageBuffer#isFifo() first-in first-out}; a buffer that drops, merges
+         * or reorders messages would have unprocessed messages acknowledged, and building
+         * fails.
+         */
+        public Builder ackWindow(int maxInflight) {
+            if (maxInflight < 1) throw new IllegalArgumentException("maxInflight must be at least 1");
+            this.ackWindow = maxInflight;
+            return this;
+        }
+
+        /**
+         * The most unacknowledged QoS 1 and 2 messages the broker sends one connection, such
+         * as Mosquitto's {@code max_inflight_messages} or the MQTT 5 receive maximum. The
+         * {@link #ackWindow(int)} is clamped to this limit times the number of shards, the
+         * most that can ever be uncommitted. Not set by default, as MQTT 3.1.1 gives the
+         * client no way to learn it.
+         */
+        public Builder brokerReceiveMaximum(int limit) {
+            if (limit < 1) throw new IllegalArgumentException("brokerReceiveMaximum must be at least 1");
+            this.brokerReceiveMaximum = limit;
+            return this;
+        }
+
+        private int effectiveAckWindow() {
+            if (brokerReceiveMaximum == 0) return ackWindow;
+            return (int) Math.min(ackWindow, (long) brokerReceiveMaximum * shards);
+        }
+
         public Builder qos(int qos) {
             if (qos < 0 || qos > 2) throw new IllegalArgumentException("QoS must be between 0 and 2");
             this.qos = qos;
@@ -209,6 +609,19 @@ public class MqttBufferedSubscriber {
             if (brokerUrl == null || brokerUrl.isEmpty()) {
                 throw new IllegalArgumentException("brokerUrl must not be null or empty");
             }
+            if (flowControl && ackWindow > 0) {
+                throw new IllegalArgumentException("flowControl and ackWindow cannot be combined");
+            }
+            if (ackWindow > 0 && !messageBuffer.isFifo()) {
+                throw new IllegalArgumentException("ackWindow requires a first-in first-out messageBuffer that never drops messages, got "
+                        + messageBuffer.getClass().getSimpleName());
+            }
+            if (flowControl && qos == 0) {
+                throw new IllegalArgumentException("flowControl requires QoS 1 or 2; QoS 0 messages cannot be throttled");
+            }
+            if (shards > 1 && sharedGroup == null) {
+                throw new IllegalArgumentException("shards > 1 requires a sharedGroup");
+            }
             return new MqttBufferedSubscriber(this);
         }
     }
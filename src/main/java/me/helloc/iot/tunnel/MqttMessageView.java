@@ -0,0 +1,95 @@
+package me.helloc.iot.tunnel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Lightweight view of a received MQTT message, passed to
+ * {@link MqttBufferedSubscriber.RawMessageListener}s and {@link MessageBuffer#add(MqttMessageView)}.
+ * <p>
+ * The payload is the array received from the MQTT client, not a copy, and must not be
+ * modified. It is decoded as UTF-8 only when {@link #text()} is first called, so consumers
+ * that forward binary payloads never pay for decoding.
+ */
+public final class MqttMessageView {
+    private final String topic;
+    private final byte[] payload;
+    private final int qos;
+    private final int id;
+    private final boolean retained;
+    private final long arrivalNanos;
+    /** Decoded payload. A racy cache: concurrent first calls may both decode. */
+    private String text;
+
+    MqttMessageView(String topic, byte[] payload, int qos, int id, boolean retained, long arrivalNanos) {
+        this.topic = Objects.requireNonNull(topic, "topic");
+        this.payload = Objects.requireNonNull(payload, "payload");
+        this.qos = qos;
+        this.id = id;
+        this.retained = retained;
+        this.arrivalNanos = arrivalNanos;
+    }
+
+    public String topic() {
+        return topic;
+    }
+
+    /**
+     * The raw payload. The array is shared with every other consumer of the message and
+     * must not be modified.
+     */
+    public byte[] payload() {
+        return payload;
+    }
+
+    /**
+     * The raw payload as a read-only buffer positioned at the first byte.
+     */
+    public ByteBuffer payloadBuffer() {
+        return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    public int payloadLength() {
+        return payload.length;
+    }
+
+    /**
+     * The payload decoded as UTF-8. Decoded on the first call and cached.
+     */
+    public String text() {
+        String decoded = text;
+        if (decoded == null) {
+            decoded = new String(payload, StandardCharsets.UTF_8);
+            text = decoded;
+        }
+        return decoded;
+    }
+
+    public int qos() {
+        return qos;
+    }
+
+    /**
+     * The MQTT packet identifier, or {@code 0} for QoS 0 messages.
+     */
+    public int id() {
+        return id;
+    }
+
+    public boolean retained() {
+        return retained;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the message was handed over by the MQTT client.
+     */
+    public long arrivalNanos() {
+        return arrivalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "MqttMessageView{topic=" + topic + ", bytes=" + payload.length + ", qos=" + qos + ", id=" + id + "}";
+    }
+}
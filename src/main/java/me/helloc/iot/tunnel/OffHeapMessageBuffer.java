@@ -0,0 +1,430 @@
+package me.helloc.iot.tunnel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link MessageBuffer} that stores raw payload bytes in a preallocated off-heap ring.
+ * <p>
+ * Each message is a length-prefixed frame holding a topic id and the UTF-8 payload. Topics
+ * are interned in a registry that only holds topics with buffered messages: ids are
+ * reference counted and reused once a topic's last message leaves, so per-device topics do
+ * not accumulate. Buffered messages therefore cost their payload size
+ * plus eight bytes, and no objects the garbage collector has to trace, however many are
+ * held. {@link #poll(PayloadHandler)} and {@link #drain(PayloadHandler, int)} hand the
+ * payload to the consumer as a read-only view of the ring, without copying or decoding it.
+ * <p>
+ * The ring holds at most {@code capacityBytes} of frames. When a message does not fit, the
+ * {@link OverflowPolicy} decides; {@link OverflowPolicy#SPILL_TO_DISK} is not supported.
+ *
+ * <pre>{@code
+ * OffHeapMessageBuffer buffer = OffHeapMessageBuffer.builder()
+ *         .capacityBytes(256 * 1024 * 1024)
+ *         .build();
+ *
+ * buffer.drain((topic, payload) -> sink.write(topic, payload), 500);
+ * }</pre>
+ */
+public class OffHeapMessageBuffer implements MessageBuffer {
+    /** Frame header: payload length followed by topic id. */
+    private static final int HEADER = 8;
+    /** Written in place of a payload length when the writer wraps to the start of the ring. */
+    private static final int WRAP = -1;
+    /** Largest capacity that stays a positive {@code int} once aligned. */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE & ~3;
+
+    /**
+     * Receives a buffered message. {@code payload} is a read-only view into the ring, valid
+     * only until the method returns; copy it to keep it longer. The handler runs while the
+     * buffer is locked and must not call back into it.
+     */
+    @FunctionalInterface
+    public interface PayloadHandler {
+        void handle(String topic, ByteBuffer payload);
+    }
+
+    private final ByteBuffer ring;
+    private final ByteBuffer view;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final Map<String, Integer> topicIds = new HashMap<>();
+    /** Topic by id; {@code null} for a free id. */
+    private final List<String> topics = new ArrayList<>();
+    /** Number of buffered messages per topic id. */
+    private int[] topicRefs = new int[16];
+    private final ArrayDeque<Integer> freeTopicIds = new ArrayDeque<>();
+    /** Ever-increasing byte positions; the physical offset is the position modulo capacity. */
+    private long readPosition;
+    private long writePosition;
+    private int count;
+
+    private OffHeapMessageBuffer(Builder builder) {
+        this.capacity = builder.capacityBytes;
+        this.policy = builder.overflowPolicy;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+        this.view = ring.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void add(String topic, String message) {
+        add(topic, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Copies the payload bytes into the ring without decoding them.
+     */
+    @Override
+    public void add(MqttMessageView message) {
+        add(message.topic(), message.payload());
+    }
+
+    /**
+     * Adds a message whose payload is already encoded, such as the bytes of an MQTT message,
+     * without decoding it.
+     */
+    public void add(String topic, byte[] payload) {
+        add(topic, payload, 0, payload.length);
+    }
+
+    /**
+     * Adds {@code length} bytes of {@code payload} starting at {@code offset}. With
+     * {@link OverflowPolicy#BLOCK}, an interrupted wait drops the message and leaves the
+     * thread's interrupt flag set.
+     *
+     * @throws IllegalArgumentException if the message is larger than the ring
+     */
+    public void add(String topic, byte[] payload, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, payload.length);
+        if (length > capacity - HEADER) {
+            throw new IllegalArgumentException("Message of " + length + " bytes exceeds buffer capacity " + capacity);
+        }
+        int frame = align(HEADER + length);
+        lock.lock();
+        try {
+            long needed;
+            while ((needed = frame + padding(frame)) > capacity - (writePosition - readPosition)) {
+                if (!makeRoom()) return;
+            }
+            if (needed > frame) {
+                ring.putInt(physical(writePosition), WRAP);
+                writePosition += needed - frame;
+            }
+            int at = physical(writePosition);
+            ring.putInt(at, length);
+            ring.putInt(at + 4, topicId(topic));
+            ring.position(at + HEADER);
+            ring.put(payload, offset, length);
+            writePosition += frame;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Map.Entry<String, String>> target, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                target.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message and passes it to {@code handler} without copying the
+     * payload. Returns {@code false} if the buffer was empty. The message is removed even if
+     * the handler throws.
+     */
+    public boolean poll(PayloadHandler handler) {
+        return drain(handler, 1) == 1;
+    }
+
+    /**
+     * Removes up to {@code maxElements} messages, oldest first, passing each to
+     * {@code handler} without copying the payload. Returns the number of messages handled.
+     */
+    public int drain(PayloadHandler handler, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                int at = head();
+                int length = ring.getInt(at);
+                view.limit(at + HEADER + length).position(at + HEADER);
+                drained++;
+                try {
+                    handler.handle(topics.get(ring.getInt(at + 4)), view);
+                } finally {
+                    release(at);
+                }
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@code true} with {@link OverflowPolicy#BLOCK}, which never drops a message.
+     */
+    @Override
+    public boolean isFifo() {
+        return policy == OverflowPolicy.BLOCK;
+    }
+
+    public int capacityBytes() {
+        return capacity;
+    }
+
+    public OverflowPolicy overflowPolicy() {
+        return policy;
+    }
+
+    /**
+     * Number of buffered messages.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes of the ring currently occupied by frames, including alignment and wrap padding.
+     */
+    public long usedBytes() {
+        lock.lock();
+        try {
+            return writePosition - readPosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Total number of messages discarded by the overflow policy.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Total number of {@code add} calls that had to wait for room.
+     */
+    public long blockedCount() {
+        return blocked.sum();
+    }
+
+    /**
+     * Frees space according to the overflow policy. Returns {@code false} if the message
+     * being added was dropped instead.
+     */
+    private boolean makeRoom() {
+        switch (policy) {
+            case DROP_OLDEST:
+                release(head());
+                dropped.increment();
+                return true;
+            case DROP_NEWEST:
+                dropped.increment();
+                return false;
+            case BLOCK:
+                blocked.increment();
+                try {
+                    notFull.await();
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                    return false;
+                }
+            default:
+                throw new IllegalStateException("Unsupported overflow policy " + policy);
+        }
+    }
+
+    private Map.Entry<String, String> dequeue() {
+        int at = head();
+        int length = ring.getInt(at);
+        String topic = topics.get(ring.getInt(at + 4));
+        byte[] payload = new byte[length];
+        ring.position(at + HEADER);
+        ring.get(payload);
+        release(at);
+        return new AbstractMap.SimpleEntry<>(topic, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the physical offset of the oldest frame, skipping a wrap marker. Must be
+     * called with the lock held and at least one message buffered.
+     */
+    private int head() {
+        int at = physical(readPosition);
+        if (ring.getInt(at) == WRAP) {
+            readPosition += capacity - at;
+            at = 0;
+        }
+        return at;
+    }
+
+    /**
+     * Removes the frame at physical offset {@code at}, the head, and drops its topic from the
+     * registry if it was the topic's last buffered message.
+     */
+    private void release(int at) {
+        int id = ring.getInt(at + 4);
+        if (--topicRefs[id] == 0) {
+            topicIds.remove(topics.set(id, null));
+            freeTopicIds.push(id);
+        }
+        readPosition += align(HEADER + ring.getInt(at));
+        count--;
+        if (count == 0) {
+            // Restart at offset 0 so the next frames are contiguous without wrapping.
+            readPosition = writePosition = 0;
+        }
+        notFull.signal();
+    }
+
+    /**
+     * Bytes skipped at the end of the ring if a frame of {@code frame} bytes does not fit
+     * before it.
+     */
+    private int padding(int frame) {
+        int at = physical(writePosition);
+        return at + frame > capacity ? capacity - at : 0;
+    }
+
+    /**
+     * Returns the id of {@code topic}, registering it if needed, and counts one more
+     * buffered message for it.
+     */
+    private int topicId(String topic) {
+        Integer id = topicIds.get(topic);
+        if (id == null) {
+            id = freeTopicIds.poll();
+            if (id == null) {
+                id = topics.size();
+                topics.add(topic);
+                if (id == topicRefs.length) topicRefs = Arrays.copyOf(topicRefs, id * 2);
+            } else {
+                topics.set(id, topic);
+            }
+            topicIds.put(topic, id);
+        }
+        topicRefs[id]++;
+        return id;
+    }
+
+    /**
+     * Number of topics with buffered messages, which is the size of the topic registry.
+     */
+    public int topicCount() {
+        lock.lock();
+        try {
+            return topicIds.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int physical(long position) {
+        return (int) (position % capacity);
+    }
+
+    /** Keeps frame headers 4-byte aligned, so a wrap marker always fits. */
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int capacityBytes = 64 * 1024 * 1024;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+        public Builder capacityBytes(int bytes) {
+            if (bytes < 64 || bytes > MAX_CAPACITY) {
+                throw new IllegalArgumentException("capacityBytes must be between 64 and " + MAX_CAPACITY);
+            }
+            this.capacityBytes = align(bytes);
+            return this;
+        }
+        public Builder overflowPolicy(OverflowPolicy policy) { this.overflowPolicy = Objects.requireNonNull(policy, "overflowPolicy"); return this; }
+
+        public OffHeapMessageBuffer build() {
+            if (overflowPolicy == OverflowPolicy.SPILL_TO_DISK) {
+                throw new IllegalArgumentException("SPILL_TO_DISK is not supported by OffHeapMessageBuffer");
+            }
+            return new OffHeapMessageBuffer(this);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package me.helloc.iot.tunnel;
+
+/**
+ * What a {@link BoundedMessageBuffer} does with a message that arrives while it is full.
+ */
+public enum OverflowPolicy {
+    /** Evicts the oldest buffered message to make room for the new one. */
+    DROP_OLDEST,
+    /** Discards the new message. */
+    DROP_NEWEST,
+    /**
+     * Blocks the adding thread until a consumer makes room. When the buffer is fed from the
+     * MQTT callback, this stops reading from the socket so backpressure reaches the broker.
+     */
+    BLOCK,
+    /** Appends the message to a spill file and reads it back once there is room again. */
+    SPILL_TO_DISK
+}
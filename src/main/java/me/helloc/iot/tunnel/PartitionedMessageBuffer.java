@@ -0,0 +1,346 @@
+package me.helloc.iot.tunnel;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * {@link MessageBuffer} that splits messages into independent lanes by topic.
+ * <p>
+ * By default every topic gets a lane of its own. With {@link Builder#lanes(int)} topics are
+ * hashed onto a fixed number of lanes instead. Order is kept within a lane. A busy topic
+ * never delays messages of topics in other lanes: {@link #poll()} visits lanes round-robin,
+ * and {@link #poll(String)} or a handle from {@link #lane(String)} reads a single lane. Give
+ * each consumer thread its own lanes to scale consumption across cores without contending on
+ * a shared queue head.
+ * <p>
+ * Only lanes holding messages are visited, so polling costs the same with ten topics or a
+ * million. A lane per topic is removed as soon as it runs empty, unless a handle to it was
+ * taken, so per-device topics do not accumulate. Each lane is a {@link MessageBuffer} from
+ * the configured factory, {@link InMemoryMessageBuffer} by default. Lanes count their
+ * messages to know when they run empty, so the factory must produce
+ * {@linkplain MessageBuffer#isFifo() first-in first-out} buffers that never drop or merge
+ * messages; a lane can still be bounded with {@link OverflowPolicy#BLOCK}.
+ *
+ * <pre>{@code
+ * PartitionedMessageBuffer buffer = PartitionedMessageBuffer.builder().build();
+ * MessageBuffer alarms = buffer.lane("plant/alarms");
+ * Map.Entry<String, String> alarm = alarms.take();
+ * }</pre>
+ */
+public class PartitionedMessageBuffer implements MessageBuffer {
+    /** Lane state bit marking a lane that must never be retired. */
+    private static final int PINNED = 1 << 30;
+    /** Lane state of a per-topic lane that was removed after it ran empty. */
+    private static final int RETIRED = -1;
+
+    private final Supplier<? extends MessageBuffer> laneFactory;
+    /** The fixed lanes when topics are hashed, or {@code null} for a lane per topic. */
+    private final Lane[] hashedLanes;
+    private final ConcurrentHashMap<String, Lane> topicLanes = new ConcurrentHashMap<>();
+    /** A checked buffer from the factory not yet given to a lane. */
+    private final AtomicReference<MessageBuffer> spare = new AtomicReference<>();
+    /** Lanes that may hold messages, each at most once, in the order they get a turn. */
+    private final Queue<Lane> ready = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private PartitionedMessageBuffer(Builder builder) {
+        this.laneFactory = builder.laneFactory;
+        if (builder.lanes > 0) {
+            this.hashedLanes = new Lane[builder.lanes];
+            for (int i = 0; i < hashedLanes.length; i++) {
+                hashedLanes[i] = new Lane(null, PINNED);
+            }
+        } else {
+            this.hashedLanes = null;
+            // Checked now rather than on the first add, then kept for the first lane.
+            spare.set(newDelegate());
+        }
+    }
+
+    @Override
+    public void add(String topic, String message) {
+        Lane lane;
+        if (hashedLanes != null) {
+            lane = hashedLanes[hashedIndex(topic)];
+            lane.reserve();
+        } else {
+            while (!(lane = topicLanes.computeIfAbsent(topic, t -> new Lane(t, 0))).reserve()) {
+                // Retired between the lookup and the reservation; make room for a new lane.
+                topicLanes.remove(topic, lane);
+            }
+        }
+        lane.append(topic, message);
+    }
+
+    /**
+     * Retrieves and removes a message from the next non-empty lane. A lane that still holds
+     * messages goes to the back of the line, so each lane gets its turn. Only lanes holding
+     * messages are visited.
+     */
+    @Override
+    public Map.Entry<String, String> poll() {
+        Lane lane;
+        while ((lane = ready.poll()) != null) {
+            // Cleared before polling: a producer adding from now on queues the lane again.
+            lane.queued.set(false);
+            Map.Entry<String, String> entry = lane.delegate.poll();
+            // Empty means a lane handle took the messages, or an add is still in flight
+            // and will queue the lane itself.
+            if (entry == null) continue;
+            lane.removed(1);
+            if (lane.size() > 0) lane.schedule();
+            return entry;
+        }
+        return null;
+    }
+
+    @Override
+    public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Map.Entry<String, String> entry = poll();
+        if (entry != null) return entry;
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        // Registered before re-checking the lanes, so a producer that adds after the
+        // check is guaranteed to see the waiter and signal.
+        waiters.incrementAndGet();
+        try {
+            while ((entry = poll()) == null) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return entry;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> take() throws InterruptedException {
+        Map.Entry<String, String> entry;
+        while ((entry = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null) {
+            // Only reached after waiting Long.MAX_VALUE nanoseconds.
+        }
+        return entry;
+    }
+
+    /**
+     * Retrieves and removes the earliest message in the lane of {@code topic}, or returns
+     * {@code null} if it is empty. With hashed lanes the message may belong to another topic
+     * sharing the lane.
+     */
+    public Map.Entry<String, String> poll(String topic) {
+        Lane lane = hashedLanes != null ? hashedLanes[hashedIndex(topic)] : topicLanes.get(topic);
+        return lane == null ? null : lane.poll();
+    }
+
+    /**
+     * Returns the lane {@code topic} maps to, creating it if needed. The handle reads only
+     * that lane, including the blocking {@code poll(timeout)} and {@code take()}; adding
+     * through it bypasses the partitioning. A lane with a handle is kept even while empty.
+     */
+    public MessageBuffer lane(String topic) {
+        if (hashedLanes != null) return hashedLanes[hashedIndex(topic)];
+        Lane lane;
+        while (!(lane = topicLanes.computeIfAbsent(topic, t -> new Lane(t, 0))).pin()) {
+            topicLanes.remove(topic, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Returns the hashed lane at {@code index}.
+     *
+     * @throws IllegalStateException if the buffer keeps a lane per topic, whose lanes come
+     *                               and go and have no stable index
+     */
+    public MessageBuffer lane(int index) {
+        if (hashedLanes == null) {
+            throw new IllegalStateException("Lanes per topic are not indexed; use lane(topic)");
+        }
+        Objects.checkIndex(index, hashedLanes.length);
+        return hashedLanes[index];
+    }
+
+    /**
+     * Number of lanes: the fixed count for hashed lanes, otherwise the number of topics
+     * that currently hold messages or have a lane handle. Empty lanes per topic are removed
+     * so topics that come and go, such as one per device, do not accumulate.
+     */
+    public int laneCount() {
+        return hashedLanes != null ? hashedLanes.length : topicLanes.size();
+    }
+
+    private MessageBuffer newDelegate() {
+        MessageBuffer delegate = spare.getAndSet(null);
+        if (delegate != null) return delegate;
+        delegate = Objects.requireNonNull(laneFactory.get(), "laneFactory returned null");
+        if (!delegate.isFifo()) {
+            throw new IllegalArgumentException("laneFactory must produce first-in first-out buffers that never drop messages, got "
+                    + delegate.getClass().getSimpleName());
+        }
+        return delegate;
+    }
+
+    private int hashedIndex(String topic) {
+        int hash = topic.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), hashedLanes.length);
+    }
+
+    /**
+     * One lane: a buffer from the factory plus the bookkeeping that lets {@link #poll()}
+     * skip empty lanes and lets an empty lane per topic be removed.
+     * <p>
+     * {@code state} counts the messages added to or reserved in the lane and not yet taken,
+     * plus {@link #PINNED} for lanes that must stay, or is {@link #RETIRED}. The count only
+     * matches the delegate because the delegate never drops or merges messages. A lane retires
+     * only from exactly zero, so no message can be left behind in a removed lane: a producer
+     * that finds its lane retired creates a new one.
+     */
+    private final class Lane implements MessageBuffer {
+        private final String topic;
+        private final MessageBuffer delegate;
+        private final AtomicInteger state;
+        /** Whether the lane is in {@link #ready}. */
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        Lane(String topic, int state) {
+            this.topic = topic;
+            this.delegate = newDelegate();
+            this.state = new AtomicInteger(state);
+        }
+
+        /**
+         * Counts an upcoming message. Returns {@code false} if the lane has retired.
+         */
+        boolean reserve() {
+            while (true) {
+                int current = state.get();
+                if (current < 0) return false;
+                if (state.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        /**
+         * Keeps the lane even when it runs empty. Returns {@code false} if it has retired.
+         */
+        boolean pin() {
+            while (true) {
+                int current = state.get();
+                if (current < 0) return false;
+                if ((current & PINNED) != 0 || state.compareAndSet(current, current | PINNED)) return true;
+            }
+        }
+
+        int size() {
+            int current = state.get();
+            return current < 0 ? 0 : current & ~PINNED;
+        }
+
+        /**
+         * Adds a message already counted by {@link #reserve()} and gives the lane a turn.
+         */
+        void append(String topic, String message) {
+            delegate.add(topic, message);
+            schedule();
+            if (waiters.get() > 0) {
+                lock.lock();
+                try {
+                    notEmpty.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        void schedule() {
+            if (queued.compareAndSet(false, true)) ready.add(this);
+        }
+
+        void removed(int messages) {
+            if (state.addAndGet(-messages) == 0 && topic != null && state.compareAndSet(0, RETIRED)) {
+                topicLanes.remove(topic, this);
+            }
+        }
+
+        @Override
+        public void add(String topic, String message) {
+            // Lanes with a handle are pinned and never retire.
+            reserve();
+            append(topic, message);
+        }
+
+        @Override
+        public Map.Entry<String, String> poll() {
+            return taken(delegate.poll());
+        }
+
+        @Override
+        public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return taken(delegate.poll(timeout, unit));
+        }
+
+        @Override
+        public Map.Entry<String, String> take() throws InterruptedException {
+            return taken(delegate.take());
+        }
+
+        @Override
+        public int drainTo(Collection<? super Map.Entry<String, String>> target, int maxElements) {
+            int drained = delegate.drainTo(target, maxElements);
+            if (drained > 0) removed(drained);
+            return drained;
+        }
+
+        @Override
+        public boolean isFifo() {
+            return true;
+        }
+
+        private Map.Entry<String, String> taken(Map.Entry<String, String> entry) {
+            if (entry != null) removed(1);
+            return entry;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int lanes;
+        private Supplier<? extends MessageBuffer> laneFactory = InMemoryMessageBuffer::new;
+
+        /**
+         * Hashes topics onto a fixed number of lanes instead of giving each topic its own.
+         */
+        public Builder lanes(int lanes) {
+            if (lanes <= 0) throw new IllegalArgumentException("lanes must be positive");
+            this.lanes = lanes;
+            return this;
+        }
+        public Builder lanePerTopic() { this.lanes = 0; return this; }
+        /**
+         * Creates the buffer behind each lane. The buffers must be
+         * {@linkplain MessageBuffer#isFifo() first-in first-out}, or building fails.
+         */
+        public Builder laneFactory(Supplier<? extends MessageBuffer> factory) { this.laneFactory = Objects.requireNonNull(factory, "laneFactory"); return this; }
+
+        public PartitionedMessageBuffer build() {
+            return new PartitionedMessageBuffer(this);
+        }
+    }
+}
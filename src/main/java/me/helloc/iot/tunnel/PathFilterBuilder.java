@@ -1,170 +1,133 @@
 package me.helloc.iot.tunnel;
 
-import java.util.AbstractMap;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Filters JSON messages using simple path expressions and extracts values when
  * all path filters match. Does not rely on external JSON libraries.
+ * <p>
+ * Messages can be supplied as UTF-8 bytes, in which case they are parsed in place
+ * without being decoded into a {@link String} first.
+ * <p>
+ * This builder is a per-message convenience over {@link PathQuery}. Hot consumers should
+ * compile a {@code PathQuery} once and reuse it instead.
  */
 public final class PathFilterBuilder {
-    private final String message;
-    private final List<Map.Entry<String, Object>> pathFilters = new ArrayList<>();
-    private final List<String> valueFilters = new ArrayList<>();
+    private final byte[] message;
+    private final int offset;
+    private final int length;
+    private final IndexedMessage indexed;
+    private PathQuery query = PathQuery.compile();
 
-    private PathFilterBuilder(String message) {
+    private PathFilterBuilder(byte[] message, int offset, int length) {
         this.message = message;
+        this.offset = offset;
+        this.length = length;
+        this.indexed = null;
+    }
+
+    private PathFilterBuilder(IndexedMessage indexed) {
+        this.message = indexed.json;
+        this.offset = indexed.offset;
+        this.length = indexed.length;
+        this.indexed = indexed;
     }
 
     public PathFilterBuilder addPathFilter(String path, Object expectedValue) {
-        pathFilters.add(new AbstractMap.SimpleEntry<>(path, expectedValue));
+        query = query.where(path, expectedValue);
         return this;
     }
 
     public PathFilterBuilder addValueFilter(String path) {
-        valueFilters.add(path);
+        query = query.select(path);
         return this;
     }
 
     public <T> T extractFirst(Class<T> clazz) {
-        Object root;
-        try {
-            root = new SimpleJsonParser(message).parse();
-        } catch (Exception e) {
-            return null;
-        }
+        PathMatcher matcher = scan();
+        return matcher != null ? query.firstValue(matcher, clazz) : null;
+    }
 
-        for (Map.Entry<String, Object> entry : pathFilters) {
-            Object actual = evaluatePath(root, entry.getKey());
-            if (actual == null) {
-                return null;
-            }
-            Object expected = entry.getValue();
-            if (actual instanceof Number && expected instanceof Number) {
-                if (((Number) actual).doubleValue() != ((Number) expected).doubleValue()) {
-                    return null;
-                }
-            } else if (!actual.equals(expected)) {
-                return null;
-            }
-        }
+    public long extractLong(long defaultValue) {
+        PathMatcher matcher = scan();
+        return matcher != null && query.firstNumber(matcher) ? matcher.number.longValue : defaultValue;
+    }
 
-        for (String path : valueFilters) {
-            Object raw = evaluatePath(root, path);
-            if (raw != null) {
-                Class<?> targetClass = wrapperFor(clazz);
-                if (targetClass.isInstance(raw)) {
-                    @SuppressWarnings("unchecked")
-                    T result = (T) targetClass.cast(raw);
-                    return result;
-                } else if (raw instanceof Number) {
-                    Object converted = convertNumber((Number) raw, targetClass);
-                    if (converted != null && targetClass.isInstance(converted)) {
-                        @SuppressWarnings("unchecked")
-                        T result = (T) converted;
-                        return result;
-                    }
-                }
-            }
-        }
-        return null;
+    /**
+     * Returns the first numeric value if it is a whole number within the range of an
+     * {@code int}, or {@code defaultValue} otherwise.
+     */
+    public int extractInt(int defaultValue) {
+        PathMatcher matcher = scan();
+        return matcher != null && query.firstNumber(matcher) && matcher.number.fitsInt()
+                ? (int) matcher.number.doubleValue : defaultValue;
     }
 
-    private Object evaluatePath(Object root, String path) {
-        List<PathToken> tokens = parseTokens(path);
-        Object current = root;
-        for (PathToken token : tokens) {
-            if (token instanceof PathToken.Key) {
-                if (current instanceof Map) {
-                    current = ((Map<?, ?>) current).get(((PathToken.Key) token).name);
-                } else {
-                    return null;
-                }
-            } else if (token instanceof PathToken.Index) {
-                if (current instanceof List) {
-                    List<?> list = (List<?>) current;
-                    int index = ((PathToken.Index) token).index;
-                    if (index < 0 || index >= list.size()) return null;
-                    current = list.get(index);
-                } else {
-                    return null;
-                }
-            }
-            if (current == null) return null;
-        }
-        return current;
+    /**
+     * Returns the first numeric value without boxing, or {@code defaultValue} if the path
+     * filters do not match or no value filter resolves to a number.
+     */
+    public double extractDouble(double defaultValue) {
+        PathMatcher matcher = scan();
+        return matcher != null && query.firstNumber(matcher) ? matcher.number.doubleValue : defaultValue;
     }
 
-    private interface PathToken {
-        class Key implements PathToken {
-            final String name;
-            Key(String name) { this.name = name; }
-        }
-        class Index implements PathToken {
-            final int index;
-            Index(int index) { this.index = index; }
-        }
+    /**
+     * Resolves all value filters in one scan. Returns {@code null} if a path filter does not
+     * match; otherwise the values are in the order the value filters were added.
+     */
+    public QueryResult extractAll() {
+        QueryResult result = query.newResult();
+        boolean matched = indexed != null
+                ? query.extractAll(indexed, result)
+                : query.extractAll(message, offset, length, result);
+        return matched ? result : null;
     }
 
-    private List<PathToken> parseTokens(String path) {
-        if (!path.startsWith("$")) {
-            throw new IllegalArgumentException("Path must start with $");
-        }
-        List<PathToken> tokens = new ArrayList<>();
-        int i = 1;
-        while (i < path.length()) {
-            char c = path.charAt(i);
-            if (c == '.') {
-                i++;
-                int start = i;
-                while (i < path.length() && path.charAt(i) != '.' && path.charAt(i) != '[') i++;
-                String key = path.substring(start, i);
-                if (!key.isEmpty()) tokens.add(new PathToken.Key(key));
-            } else if (c == '[') {
-                i++;
-                int start = i;
-                while (i < path.length() && path.charAt(i) != ']') i++;
-                int idx;
-                try {
-                    idx = Integer.parseInt(path.substring(start, i));
-                } catch (NumberFormatException e) {
-                    throw new IllegalArgumentException("Invalid numeric index in path: '" + path + "'");
-                }
-                tokens.add(new PathToken.Index(idx));
-                if (i < path.length() && path.charAt(i) == ']') i++;
-            } else {
-                i++;
-            }
-        }
-        return tokens;
+    /**
+     * Runs the query with fresh matcher state rather than the query's thread-local one,
+     * since a builder's query is executed only once. Returns {@code null} if rejected.
+     */
+    private PathMatcher scan() {
+        PathMatcher matcher = query.newMatcher();
+        boolean matched = indexed != null
+                ? query.run(matcher, indexed)
+                : query.run(matcher, message, offset, length);
+        return matched ? matcher : null;
     }
 
-    private static Class<?> wrapperFor(Class<?> clazz) {
-        if (!clazz.isPrimitive()) return clazz;
-        if (clazz == boolean.class) return Boolean.class;
-        if (clazz == byte.class) return Byte.class;
-        if (clazz == char.class) return Character.class;
-        if (clazz == short.class) return Short.class;
-        if (clazz == int.class) return Integer.class;
-        if (clazz == long.class) return Long.class;
-        if (clazz == float.class) return Float.class;
-        if (clazz == double.class) return Double.class;
-        return clazz;
+    public static PathFilterBuilder from(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        return new PathFilterBuilder(bytes, 0, bytes.length);
     }
 
-    private static Object convertNumber(Number raw, Class<?> target) {
-        if (target == Byte.class) return raw.byteValue();
-        if (target == Short.class) return raw.shortValue();
-        if (target == Integer.class) return raw.intValue();
-        if (target == Long.class) return raw.longValue();
-        if (target == Float.class) return raw.floatValue();
-        if (target == Double.class) return raw.doubleValue();
-        return null;
+    /**
+     * Creates a builder over UTF-8 encoded JSON bytes, e.g. an MQTT payload.
+     * The array is not copied and must not be modified while the builder is in use.
+     */
+    public static PathFilterBuilder from(byte[] message) {
+        return new PathFilterBuilder(message, 0, message.length);
     }
 
-    public static PathFilterBuilder from(String message) {
+    /**
+     * Creates a builder over a message that has already been indexed, so several builders
+     * on the same payload do not scan it again.
+     */
+    public static PathFilterBuilder from(IndexedMessage message) {
         return new PathFilterBuilder(message);
     }
+
+    /**
+     * Creates a builder over the remaining bytes of the given buffer. The buffer position
+     * is left untouched. Heap buffers are read in place; direct buffers are copied once.
+     */
+    public static PathFilterBuilder from(ByteBuffer message) {
+        if (message.hasArray()) {
+            return new PathFilterBuilder(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        }
+        byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        return new PathFilterBuilder(bytes, 0, bytes.length);
+    }
 }
@@ -0,0 +1,413 @@
+package me.helloc.iot.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Resolves every path of a {@link PathTrie} in a single forward scan of a message.
+ * <p>
+ * Only objects and arrays lying on one of the paths are entered; everything else is
+ * skipped with {@link JsonCursor#skipValue()}. Resolved values are recorded as byte ranges
+ * and only turned into Java objects on request. The scan stops as soon as every path has
+ * been resolved, so trailing parts of the message are never looked at.
+ * <p>
+ * Filter paths are checked the moment their value has been scanned. The first mismatch
+ * aborts the scan and the message is reported as rejected; no exception is involved.
+ * Filters through a wildcard or predicate step are satisfied by any matching value, so
+ * they only reject the message once the scan is over.
+ * <p>
+ * Inside an element selected by a predicate, the predicate's own value may come after
+ * the values being extracted. Those are recorded tentatively and, when the element ends,
+ * either kept or rolled back depending on whether the predicate held.
+ * <p>
+ * Not thread-safe; a matcher holds per-scan state.
+ */
+final class PathMatcher {
+    private static final int CONTINUE = 0;
+    private static final int DONE = 1;
+    private static final int ABORT = 2;
+
+    private final PathTrie trie;
+    private final JsonCursor cursor = new JsonCursor();
+    final JsonNumber number = new JsonNumber();
+    private final SimpleJsonParser parser = new SimpleJsonParser();
+    private byte[] scratch = new byte[0];
+    private final PathTrie.Node[] active;
+    /** Per active entry: the predicate entry its recordings depend on, or -1. */
+    private final int[] owners;
+    /** Per predicate entry: the owner of the entry it was reached from. */
+    private final int[] outers;
+    /** Per predicate entry: whether the current element satisfies the predicate. */
+    private final boolean[] satisfied;
+    private final int[] starts;
+    private final int[] ends;
+    /** Undo log of slots recorded under a predicate that has not been decided yet. */
+    private final int[] pendingSlots;
+    private final int[] pendingOwners;
+    private int pending;
+    private int resolved;
+    private int abortedAt;
+
+    PathMatcher(PathTrie trie) {
+        this.trie = trie;
+        this.active = new PathTrie.Node[trie.nodeCount];
+        this.owners = new int[trie.nodeCount];
+        this.outers = new int[trie.nodeCount];
+        this.satisfied = new boolean[trie.nodeCount];
+        this.starts = new int[trie.slotCount];
+        this.ends = new int[trie.slotCount];
+        this.pendingSlots = new int[trie.slotCount];
+        this.pendingOwners = new int[trie.slotCount];
+    }
+
+    /**
+     * Scans the message and records the range of the first value found for every path.
+     * Returns {@code false} when a filter does not match or its path does not exist.
+     *
+     * @throws IllegalStateException if the scanned part of the message is not valid JSON
+     */
+    boolean match(byte[] json, int offset, int length) {
+        cursor.reset(json, offset, length);
+        Arrays.fill(starts, -1);
+        resolved = 0;
+        pending = 0;
+        abortedAt = -1;
+        if (trie.slotCount == 0) return true;
+        active[0] = trie.root;
+        owners[0] = -1;
+        if (visit(0, 1) == ABORT) {
+            return false;
+        }
+        for (int slot = 0; slot < trie.filterCount; slot++) {
+            if (starts[slot] < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Resolves the paths by walking the structural index of an already indexed message.
+     * Containers are entered only along the paths and siblings are skipped using the
+     * index, so no byte outside the visited keys and the resolved values is looked at.
+     */
+    boolean match(IndexedMessage message) {
+        cursor.reset(message.json, message.offset, message.length);
+        Arrays.fill(starts, -1);
+        resolved = 0;
+        abortedAt = -1;
+        if (trie.slotCount == 0) return true;
+        if (visit(message, trie.root, 0) == ABORT) {
+            return false;
+        }
+        for (int slot = 0; slot < trie.filterCount; slot++) {
+            if (starts[slot] < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Number of bytes that were left unscanned because a filter rejected the message.
+     */
+    int skippedBytes() {
+        return abortedAt < 0 ? 0 : cursor.limit() - abortedAt;
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer without a backing array into a scratch array
+     * owned by this matcher, growing it only when a larger message arrives. The buffer
+     * position is left untouched. The returned array is overwritten by the next copy.
+     */
+    byte[] copyOf(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        int position = buffer.position();
+        buffer.get(scratch, 0, length);
+        buffer.position(position);
+        return scratch;
+    }
+
+    byte[] json() {
+        return cursor.json();
+    }
+
+    /**
+     * Start offset of the value recorded for {@code slot}, or {@code -1} if unresolved.
+     */
+    int start(int slot) {
+        return starts[slot];
+    }
+
+    int end(int slot) {
+        return ends[slot];
+    }
+
+    /**
+     * Reads the value recorded for {@code slot} into {@link #number}. Returns {@code false}
+     * if the slot is unresolved or does not hold a number.
+     */
+    boolean readNumber(int slot) {
+        int start = starts[slot];
+        return start >= 0 && number.read(cursor.json(), start, ends[slot]);
+    }
+
+    /**
+     * Converts the recorded value of {@code slot} into a Java object the same way
+     * {@link SimpleJsonParser} would. Returns {@code null} for unresolved slots.
+     */
+    Object value(int slot) {
+        int start = starts[slot];
+        if (start < 0) return null;
+        return parser.reset(cursor.json(), start, ends[slot] - start).parse();
+    }
+
+    /**
+     * Visits the value at the cursor, which is reached by the {@code count} nodes stored
+     * in {@code active} from {@code base}. Returns {@link #DONE} once all slots are resolved
+     * and {@link #ABORT} when a filter rejects the message.
+     */
+    private int visit(int base, int count) {
+        int b = cursor.skipWhitespace();
+        int start = cursor.pos;
+        int mark = pending;
+        boolean descend = false;
+        for (int i = base; i < base + count; i++) {
+            if (active[i].children.length > 0) {
+                descend = true;
+                break;
+            }
+        }
+        int status;
+        if (descend && b == '{') {
+            status = visitObject(base, count);
+        } else if (descend && b == '[') {
+            status = visitArray(base, count);
+        } else {
+            cursor.skipValue();
+            status = CONTINUE;
+        }
+        if (status != CONTINUE) return status;
+        int end = cursor.pos;
+        for (int i = base; i < base + count; i++) {
+            PathTrie.Node node = active[i];
+            if (node.guard != null && node.guard.matches(cursor.json(), start, end, number)) {
+                satisfied[owners[i]] = true;
+            }
+            for (int slot : node.slots) {
+                if (starts[slot] >= 0) continue;
+                if (slot < trie.filterCount && !trie.expected[slot].matches(cursor.json(), start, end, number)) {
+                    if (!trie.singular[slot]) continue;
+                    abortedAt = end;
+                    return ABORT;
+                }
+                record(slot, start, end, owners[i]);
+            }
+        }
+        for (int i = base; i < base + count; i++) {
+            if (active[i].kind == PathTrie.PREDICATE) settle(i, mark);
+        }
+        return resolved < trie.slotCount || pending > 0 ? CONTINUE : DONE;
+    }
+
+    private void record(int slot, int start, int end, int owner) {
+        starts[slot] = start;
+        ends[slot] = end;
+        resolved++;
+        if (owner >= 0) {
+            pendingSlots[pending] = slot;
+            pendingOwners[pending++] = owner;
+        }
+    }
+
+    /**
+     * Called when the element of predicate entry {@code entry} ends. Slots recorded for it
+     * since {@code mark} are rolled back if the predicate did not hold, and otherwise
+     * handed to the enclosing predicate, or kept for good if there is none.
+     */
+    private void settle(int entry, int mark) {
+        int kept = mark;
+        for (int i = mark; i < pending; i++) {
+            int slot = pendingSlots[i];
+            int owner = pendingOwners[i];
+            if (owner == entry) {
+                if (!satisfied[entry]) {
+                    starts[slot] = -1;
+                    resolved--;
+                    continue;
+                }
+                owner = outers[entry];
+                if (owner < 0) continue;
+            }
+            pendingSlots[kept] = slot;
+            pendingOwners[kept++] = owner;
+        }
+        pending = kept;
+    }
+
+    /**
+     * Makes {@code child}, reached from active entry {@code parent}, the active entry at
+     * {@code at}.
+     */
+    private void push(int parent, PathTrie.Node child, int at) {
+        active[at] = child;
+        if (child.kind == PathTrie.PREDICATE) {
+            owners[at] = at;
+            outers[at] = owners[parent];
+            satisfied[at] = false;
+        } else {
+            owners[at] = owners[parent];
+        }
+    }
+
+    private int visitObject(int base, int count) {
+        cursor.expect('{');
+        if (cursor.skipWhitespace() == '}') {
+            cursor.pos++;
+            return CONTINUE;
+        }
+        int top = base + count;
+        while (true) {
+            cursor.skipWhitespace();
+            int keyStart = cursor.pos + 1;
+            int keyEnd = cursor.scanString();
+            boolean escaped = cursor.escaped;
+            cursor.skipWhitespace();
+            cursor.expect(':');
+            int matched = top;
+            for (int i = base; i < top; i++) {
+                for (PathTrie.Node child : active[i].children) {
+                    if (child.kind == PathTrie.KEY ? keyMatches(child, keyStart, keyEnd, escaped) : child.kind >= PathTrie.WILDCARD) {
+                        push(i, child, matched++);
+                    }
+                }
+            }
+            if (matched > top) {
+                int status = visit(top, matched - top);
+                if (status != CONTINUE) return status;
+            } else {
+                cursor.skipValue();
+            }
+            int next = cursor.skipWhitespace();
+            cursor.pos++;
+            if (next == '}') return CONTINUE;
+            if (next != ',') throw new IllegalStateException("Unexpected character at position " + (cursor.pos - 1));
+        }
+    }
+
+    private int visitArray(int base, int count) {
+        cursor.expect('[');
+        if (cursor.skipWhitespace() == ']') {
+            cursor.pos++;
+            return CONTINUE;
+        }
+        int top = base + count;
+        for (int index = 0; ; index++) {
+            int matched = top;
+            for (int i = base; i < top; i++) {
+                for (PathTrie.Node child : active[i].children) {
+                    if (child.kind == PathTrie.INDEX ? child.index == index : child.kind >= PathTrie.WILDCARD) {
+                        push(i, child, matched++);
+                    }
+                }
+            }
+            if (matched > top) {
+                int status = visit(top, matched - top);
+                if (status != CONTINUE) return status;
+            } else {
+                cursor.skipValue();
+            }
+            int next = cursor.skipWhitespace();
+            cursor.pos++;
+            if (next == ']') return CONTINUE;
+            if (next != ',') throw new IllegalStateException("Unexpected character at position " + (cursor.pos - 1));
+        }
+    }
+
+    private int visit(IndexedMessage message, PathTrie.Node node, int entry) {
+        for (int slot : node.slots) {
+            if (starts[slot] >= 0) continue;
+            int start = message.start(entry);
+            int end = message.end(entry);
+            if (slot < trie.filterCount && !trie.expected[slot].matches(cursor.json(), start, end, number)) {
+                if (!trie.singular[slot]) continue;
+                return ABORT;
+            }
+            record(slot, start, end, -1);
+        }
+        if (resolved == trie.slotCount) return DONE;
+        int kind = message.kind(entry);
+        int last = message.next(entry);
+        for (PathTrie.Node child : node.children) {
+            if (kind == IndexedMessage.OBJECT && child.kind != PathTrie.INDEX) {
+                // Members are key entries, each immediately followed by its value.
+                for (int key = entry + 1; key < last; key = message.next(key + 1)) {
+                    boolean selected;
+                    if (child.kind == PathTrie.KEY) {
+                        selected = keyMatches(child, message.start(key), message.end(key), message.kind(key) == IndexedMessage.ESCAPED_KEY);
+                    } else {
+                        selected = child.kind == PathTrie.WILDCARD || predicateHolds(message, child, key + 1);
+                    }
+                    if (selected) {
+                        int status = visit(message, child, key + 1);
+                        if (status != CONTINUE) return status;
+                    }
+                }
+            } else if (kind == IndexedMessage.ARRAY && child.kind == PathTrie.INDEX) {
+                // A negative index matches no element, as in the byte scan.
+                if (child.index < 0) continue;
+                int element = entry + 1;
+                for (int i = 0; i < child.index && element < last; i++) {
+                    element = message.next(element);
+                }
+                if (element < last) {
+                    int status = visit(message, child, element);
+                    if (status != CONTINUE) return status;
+                }
+            } else if (kind == IndexedMessage.ARRAY && child.kind != PathTrie.KEY) {
+                for (int element = entry + 1; element < last; element = message.next(element)) {
+                    if (child.kind == PathTrie.WILDCARD || predicateHolds(message, child, element)) {
+                        int status = visit(message, child, element);
+                        if (status != CONTINUE) return status;
+                    }
+                }
+            }
+        }
+        return CONTINUE;
+    }
+
+    /**
+     * Follows the relative path of a predicate node from {@code entry} on the tape and
+     * tests the value found there.
+     */
+    private boolean predicateHolds(IndexedMessage message, PathTrie.Node node, int entry) {
+        for (PathTrie.Node step : node.predicatePath) {
+            int last = message.next(entry);
+            if (step.kind == PathTrie.KEY) {
+                if (message.kind(entry) != IndexedMessage.OBJECT) return false;
+                int key = entry + 1;
+                while (key < last && !keyMatches(step, message.start(key), message.end(key), message.kind(key) == IndexedMessage.ESCAPED_KEY)) {
+                    key = message.next(key + 1);
+                }
+                if (key >= last) return false;
+                entry = key + 1;
+            } else {
+                if (message.kind(entry) != IndexedMessage.ARRAY || step.index < 0) return false;
+                int element = entry + 1;
+                for (int i = 0; i < step.index && element < last; i++) {
+                    element = message.next(element);
+                }
+                if (element >= last) return false;
+                entry = element;
+            }
+        }
+        return node.predicate.matches(cursor.json(), message.start(entry), message.end(entry), number);
+    }
+
+    private boolean keyMatches(PathTrie.Node node, int keyStart, int keyEnd, boolean escaped) {
+        if (!escaped) {
+            return cursor.regionEquals(keyStart, keyEnd, node.keyBytes);
+        }
+        Object key = parser.reset(cursor.json(), keyStart - 1, keyEnd - keyStart + 2).parse();
+        return node.key.equals(key);
+    }
+}
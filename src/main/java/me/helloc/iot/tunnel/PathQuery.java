@@ -0,0 +1,425 @@
+package me.helloc.iot.tunnel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compiled, reusable form of a {@link PathFilterBuilder} query.
+ * <p>
+ * Paths are parsed once when the query is built, so a single instance can be kept in a
+ * static field and applied to any number of messages. Instances are immutable and safe to
+ * share between consumer threads; {@link #where} and {@link #select} return new queries.
+ * <p>
+ * Extraction scans the message once and only descends into objects and arrays that lie on
+ * one of the query's paths. Unrelated subtrees are skipped without being parsed and the
+ * scan ends as soon as every path is resolved. Filters are checked while scanning, so a
+ * rejected message is abandoned at the first mismatching filter.
+ * <p>
+ * Scanning state is kept per thread and reused, and {@link #extractAll} fills a reusable
+ * {@link QueryResult}, so extracting numbers and booleans from byte arrays allocates
+ * nothing once warmed up. Only decoded strings, objects and arrays are new objects.
+ *
+ * <pre>{@code
+ * PathQuery query = PathQuery.compile("$.sensor[0].value")
+ *         .where("$.id", 1)
+ *         .where("$.companyCode", "0012");
+ * Integer value = query.extractFirst(payload, Integer.class);
+ * }</pre>
+ * <p>
+ * To read several values from one message, select all of them and use
+ * {@link #extractAll} with a reusable {@link QueryResult}.
+ */
+public final class PathQuery {
+    private static final PathQuery EMPTY = new PathQuery(new JsonPath[0], new ExpectedValue[0], new JsonPath[0]);
+
+    private final JsonPath[] filterPaths;
+    private final ExpectedValue[] expectedValues;
+    private final JsonPath[] valuePaths;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder rejectedBytesSkipped = new LongAdder();
+    /**
+     * Scratch state reused by every call on the same thread, so steady-state extraction
+     * from byte arrays allocates nothing. It keeps a reference to the last message scanned.
+     */
+    private final ThreadLocal<PathMatcher> matchers = ThreadLocal.withInitial(this::newMatcher);
+    private PathTrie trie;
+
+    private PathQuery(JsonPath[] filterPaths, ExpectedValue[] expectedValues, JsonPath[] valuePaths) {
+        this.filterPaths = filterPaths;
+        this.expectedValues = expectedValues;
+        this.valuePaths = valuePaths;
+    }
+
+    /**
+     * Compiles a query extracting the given value paths, tried in order.
+     *
+     * @throws IllegalArgumentException if a path is malformed
+     */
+    public static PathQuery compile(String... valuePaths) {
+        PathQuery query = EMPTY;
+        for (String path : valuePaths) {
+            query = query.select(path);
+        }
+        return query;
+    }
+
+    /**
+     * Returns a query that additionally requires the value at {@code path} to equal
+     * {@code expectedValue}. Numbers are compared by their double value.
+     */
+    public PathQuery where(String path, Object expectedValue) {
+        JsonPath compiled = JsonPath.compile(path);
+        JsonPath[] filters = Arrays.copyOf(filterPaths, filterPaths.length + 1);
+        filters[filterPaths.length] = compiled;
+        ExpectedValue[] expected = Arrays.copyOf(expectedValues, expectedValues.length + 1);
+        expected[expectedValues.length] = new ExpectedValue(expectedValue);
+        return new PathQuery(filters, expected, valuePaths);
+    }
+
+    /**
+     * Returns a query that additionally extracts the value at {@code path}.
+     */
+    public PathQuery select(String path) {
+        JsonPath compiled = JsonPath.compile(path);
+        JsonPath[] values = Arrays.copyOf(valuePaths, valuePaths.length + 1);
+        values[valuePaths.length] = compiled;
+        return new PathQuery(filterPaths, expectedValues, values);
+    }
+
+    public <T> T extractFirst(String message, Class<T> clazz) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        return extractFirst(bytes, 0, bytes.length, clazz);
+    }
+
+    public <T> T extractFirst(byte[] message, Class<T> clazz) {
+        return extractFirst(message, 0, message.length, clazz);
+    }
+
+    /**
+     * Reads the remaining bytes of {@code message} without changing its position.
+     */
+    public <T> T extractFirst(ByteBuffer message, Class<T> clazz) {
+        if (message.hasArray()) {
+            return extractFirst(message.array(), message.arrayOffset() + message.position(), message.remaining(), clazz);
+        }
+        PathMatcher matcher = matchers.get();
+        return run(matcher, matcher.copyOf(message), 0, message.remaining()) ? firstValue(matcher, clazz) : null;
+    }
+
+    /**
+     * Returns the first value path that resolves to a value convertible to {@code clazz},
+     * provided every filter matches. Returns {@code null} otherwise, including when the
+     * message is not valid JSON.
+     */
+    public <T> T extractFirst(byte[] message, int offset, int length, Class<T> clazz) {
+        PathMatcher matcher = matchers.get();
+        return run(matcher, message, offset, length) ? firstValue(matcher, clazz) : null;
+    }
+
+    /**
+     * Same as {@link #extractFirst(byte[], int, int, Class)}, but walks the structural index
+     * of the message instead of scanning its bytes.
+     */
+    public <T> T extractFirst(IndexedMessage message, Class<T> clazz) {
+        PathMatcher matcher = matchers.get();
+        return run(matcher, message) ? firstValue(matcher, clazz) : null;
+    }
+
+    public long extractLong(byte[] message, long defaultValue) {
+        return extractLong(message, 0, message.length, defaultValue);
+    }
+
+    /**
+     * Primitive counterpart of {@code extractFirst(message, Long.class)}: returns the first
+     * value path holding a number, truncated to a {@code long}, or {@code defaultValue} if
+     * a filter does not match or no value path holds a number. Nothing is boxed.
+     */
+    public long extractLong(byte[] message, int offset, int length, long defaultValue) {
+        PathMatcher matcher = matchers.get();
+        return run(matcher, message, offset, length) && firstNumber(matcher) ? matcher.number.longValue : defaultValue;
+    }
+
+    public long extractLong(IndexedMessage message, long defaultValue) {
+        PathMatcher matcher = matchers.get();
+        return run(matcher, message) && firstNumber(matcher) ? matcher.number.longValue : defaultValue;
+    }
+
+    public int extractInt(byte[] message, int defaultValue) {
+        return extractInt(message, 0, message.length, defaultValue);
+    }
+
+    /**
+     * Primitive counterpart of {@code extractFirst(message, Integer.class)}, except that the
+     * value is not truncated: returns {@code defaultValue} unless the first numeric value
+     * is a whole number within the range of an {@code int}.
+     */
+    public int extractInt(byte[] message, int offset, int length, int defaultValue) {
+        PathMatcher matcher = matchers.get();
+        return run(matcher, message, offset, length) && firstNumber(matcher) && matcher.number.fitsInt()
+                ? (int) matcher.number.doubleValue : defaultValue;
+    }
+
+    public int extractInt(IndexedMessage message, int defaultValue) {
+        PathMatcher matcher = matchers.get();
+        return run(matcher, message) && firstNumber(matcher) && matcher.number.fitsInt()
+                ? (int) matcher.number.doubleValue : defaultValue;
+    }
+
+    public double extractDouble(byte[] message, double defaultValue) {
+        return extractDouble(message, 0, message.length, defaultValue);
+    }
+
+    /**
+     * Primitive counterpart of {@code extractFirst(message, Double.class)}. Pass
+     * {@link Double#NaN} as {@code defaultValue} to tell a missing value from any reading.
+     */
+    public double extractDouble(byte[] message, int offset, int length, double defaultValue) {
+        PathMatcher matcher = matchers.get();
+        return run(matcher, message, offset, length) && firstNumber(matcher) ? matcher.number.doubleValue : defaultValue;
+    }
+
+    public double extractDouble(IndexedMessage message, double defaultValue) {
+        PathMatcher matcher = matchers.get();
+        return run(matcher, message) && firstNumber(matcher) ? matcher.number.doubleValue : defaultValue;
+    }
+
+    /**
+     * Creates a result holder sized for this query's value paths. Keep one per consumer
+     * thread and pass it to {@link #extractAll} for every message.
+     */
+    public QueryResult newResult() {
+        return new QueryResult(this, newMatcher(), filterPaths.length, valuePaths.length);
+    }
+
+    public boolean extractAll(String message, QueryResult result) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        return extractAll(bytes, 0, bytes.length, result);
+    }
+
+    public boolean extractAll(byte[] message, QueryResult result) {
+        return extractAll(message, 0, message.length, result);
+    }
+
+    /**
+     * Reads the remaining bytes of {@code message} without changing its position.
+     */
+    public boolean extractAll(ByteBuffer message, QueryResult result) {
+        if (message.hasArray()) {
+            return extractAll(message.array(), message.arrayOffset() + message.position(), message.remaining(), result);
+        }
+        return extractAll(result.matcher.copyOf(message), 0, message.remaining(), result);
+    }
+
+    /**
+     * Resolves every value path in a single scan and stores them in {@code result}.
+     * Returns {@code false}, leaving all slots missing, when a filter rejects the message
+     * or the message is not valid JSON.
+     *
+     * @throws IllegalArgumentException if {@code result} was created by another query
+     */
+    public boolean extractAll(byte[] message, int offset, int length, QueryResult result) {
+        checkOwner(result);
+        boolean matched = run(result.matcher, message, offset, length);
+        result.load(matched);
+        return matched;
+    }
+
+    /**
+     * Same as {@link #extractAll(byte[], int, int, QueryResult)}, but walks the structural
+     * index of the message instead of scanning its bytes.
+     */
+    public boolean extractAll(IndexedMessage message, QueryResult result) {
+        checkOwner(result);
+        boolean matched = run(result.matcher, message);
+        result.load(matched);
+        return matched;
+    }
+
+    public boolean matches(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        return matches(bytes, 0, bytes.length);
+    }
+
+    public boolean matches(byte[] message) {
+        return matches(message, 0, message.length);
+    }
+
+    /**
+     * Reads the remaining bytes of {@code message} without changing its position.
+     */
+    public boolean matches(ByteBuffer message) {
+        if (message.hasArray()) {
+            return matches(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        }
+        PathMatcher matcher = matchers.get();
+        return run(matcher, matcher.copyOf(message), 0, message.remaining());
+    }
+
+    /**
+     * Tests the filters only, without extracting anything. Scanning stops at the first
+     * filter that fails. Returns {@code false} for rejected and malformed messages.
+     */
+    public boolean matches(byte[] message, int offset, int length) {
+        return run(matchers.get(), message, offset, length);
+    }
+
+    public boolean matches(IndexedMessage message) {
+        return run(matchers.get(), message);
+    }
+
+    /**
+     * Number of messages this query has rejected because a filter did not match.
+     */
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Total number of payload bytes that did not need to be scanned because a filter
+     * rejected the message early.
+     */
+    public long rejectedBytesSkipped() {
+        return rejectedBytesSkipped.sum();
+    }
+
+    /**
+     * Creates fresh scratch state for this query. Used by callers that run the query only
+     * once, such as {@link PathFilterBuilder}, to avoid populating the thread-local cache.
+     */
+    PathMatcher newMatcher() {
+        return new PathMatcher(trie());
+    }
+
+    boolean run(PathMatcher matcher, byte[] message, int offset, int length) {
+        boolean matched;
+        try {
+            matched = matcher.match(message, offset, length);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        if (!matched) {
+            rejected.increment();
+            rejectedBytesSkipped.add(matcher.skippedBytes());
+        }
+        return matched;
+    }
+
+    boolean run(PathMatcher matcher, IndexedMessage message) {
+        boolean matched;
+        try {
+            matched = matcher.match(message);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        if (!matched) {
+            rejected.increment();
+        }
+        return matched;
+    }
+
+    /**
+     * Returns the first value path of a matched message that converts to {@code clazz}.
+     */
+    <T> T firstValue(PathMatcher matcher, Class<T> clazz) {
+        for (int i = 0; i < valuePaths.length; i++) {
+            T result;
+            try {
+                result = convert(matcher.value(filterPaths.length + i), clazz);
+            } catch (RuntimeException e) {
+                // Containers are only bracket-matched while scanning; a malformed one
+                // surfaces here and counts as no value.
+                continue;
+            }
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Leaves the first numeric value of a matched message in {@code matcher.number} and
+     * returns {@code true}, or returns {@code false} if no value path holds a number.
+     */
+    boolean firstNumber(PathMatcher matcher) {
+        for (int i = 0; i < valuePaths.length; i++) {
+            if (matcher.readNumber(filterPaths.length + i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkOwner(QueryResult result) {
+        if (result.query != this) {
+            throw new IllegalArgumentException("QueryResult was created by a different query");
+        }
+    }
+
+    /**
+     * Built lazily because intermediate queries created by {@link #where} and
+     * {@link #select} are usually never executed.
+     */
+    private PathTrie trie() {
+        PathTrie built = trie;
+        if (built == null) {
+            built = new PathTrie(filterPaths, expectedValues, valuePaths);
+            trie = built;
+        }
+        return built;
+    }
+
+    /**
+     * Converts a parsed JSON value to {@code clazz}, widening or narrowing numbers as
+     * needed. Returns {@code null} if the value cannot be represented as {@code clazz}.
+     */
+    static <T> T convert(Object raw, Class<T> clazz) {
+        if (raw == null) {
+            return null;
+        }
+        Class<?> targetClass = wrapperFor(clazz);
+        if (targetClass.isInstance(raw)) {
+            @SuppressWarnings("unchecked")
+            T result = (T) targetClass.cast(raw);
+            return result;
+        } else if (raw instanceof Number) {
+            Object converted = convertNumber((Number) raw, targetClass);
+            if (converted != null && targetClass.isInstance(converted)) {
+                @SuppressWarnings("unchecked")
+                T result = (T) converted;
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static Class<?> wrapperFor(Class<?> clazz) {
+        if (!clazz.isPrimitive()) return clazz;
+        if (clazz == boolean.class) return Boolean.class;
+        if (clazz == byte.class) return Byte.class;
+        if (clazz == char.class) return Character.class;
+        if (clazz == short.class) return Short.class;
+        if (clazz == int.class) return Integer.class;
+        if (clazz == long.class) return Long.class;
+        if (clazz == float.class) return Float.class;
+        if (clazz == double.class) return Double.class;
+        return clazz;
+    }
+
+    private static Object convertNumber(Number raw, Class<?> target) {
+        if (target == Byte.class) return raw.byteValue();
+        if (target == Short.class) return raw.shortValue();
+        if (target == Integer.class) return raw.intValue();
+        if (target == Long.class) return raw.longValue();
+        if (target == Float.class) return raw.floatValue();
+        if (target == Double.class) return raw.doubleValue();
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "PathQuery{filters=" + Arrays.toString(filterPaths) + ", values=" + Arrays.toString(valuePaths) + "}";
+    }
+}
@@ -0,0 +1,163 @@
+package me.helloc.iot.tunnel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prefix tree merging every path of a {@link PathQuery}. Each path gets a slot number and
+ * the node where it ends lists that slot, so a single scan of a message can resolve all
+ * paths at once. Filter paths take the first {@link #filterCount} slots, followed by the
+ * value paths. Immutable once built.
+ * <p>
+ * A {@link #PREDICATE} node also owns the relative path of its filter expression: it is
+ * added below the node like any other path, and the node where it ends carries the
+ * {@link Node#guard} value an element must hold to be selected.
+ */
+final class PathTrie {
+    static final int ROOT = 0;
+    static final int KEY = 1;
+    static final int INDEX = 2;
+    static final int WILDCARD = 3;
+    static final int PREDICATE = 4;
+
+    final Node root;
+    final int nodeCount;
+    final int slotCount;
+    final int filterCount;
+    final ExpectedValue[] expected;
+    /** Per slot: whether its path has no wildcard or predicate step. */
+    final boolean[] singular;
+
+    PathTrie(JsonPath[] filterPaths, ExpectedValue[] expected, JsonPath[] valuePaths) {
+        Builder rootBuilder = new Builder(ROOT, null, -1);
+        for (int i = 0; i < filterPaths.length; i++) {
+            rootBuilder.add(filterPaths[i], i);
+        }
+        for (int i = 0; i < valuePaths.length; i++) {
+            rootBuilder.add(valuePaths[i], filterPaths.length + i);
+        }
+        this.root = rootBuilder.build();
+        this.nodeCount = rootBuilder.count();
+        this.slotCount = filterPaths.length + valuePaths.length;
+        this.filterCount = filterPaths.length;
+        this.expected = expected;
+        this.singular = new boolean[slotCount];
+        for (int i = 0; i < filterPaths.length; i++) singular[i] = filterPaths[i].singular;
+        for (int i = 0; i < valuePaths.length; i++) singular[filterPaths.length + i] = valuePaths[i].singular;
+    }
+
+    static final class Node {
+        final int kind;
+        final String key;
+        final byte[] keyBytes;
+        final int index;
+        final Node[] children;
+        final int[] slots;
+        /** For a {@link #PREDICATE} node, the nodes of its relative path; otherwise {@code null}. */
+        final Node[] predicatePath;
+        /** For a {@link #PREDICATE} node, the value its relative path must hold. */
+        final ExpectedValue predicate;
+        /** Set on the end of a predicate's relative path: the value it must hold. */
+        final ExpectedValue guard;
+
+        private Node(Builder builder, Node[] children, int[] slots) {
+            this.kind = builder.kind;
+            this.key = builder.key;
+            this.keyBytes = key != null ? key.getBytes(StandardCharsets.UTF_8) : null;
+            this.index = builder.index;
+            this.children = children;
+            this.slots = slots;
+            if (builder.filter != null) {
+                this.predicatePath = new Node[builder.predicatePath.size()];
+                for (int i = 0; i < predicatePath.length; i++) predicatePath[i] = builder.predicatePath.get(i).built;
+            } else {
+                this.predicatePath = null;
+            }
+            this.predicate = builder.filter != null ? new ExpectedValue(builder.filter.expected) : null;
+            this.guard = builder.guard;
+        }
+    }
+
+    private static final class Builder {
+        final int kind;
+        final String key;
+        final int index;
+        final JsonPath.PathToken.Filter filter;
+        final List<Builder> children = new ArrayList<>();
+        final List<Integer> slots = new ArrayList<>();
+        final List<Builder> predicatePath = new ArrayList<>();
+        ExpectedValue guard;
+        Node built;
+
+        Builder(int kind, String key, int index) {
+            this(kind, key, index, null);
+        }
+
+        Builder(int kind, String key, int index, JsonPath.PathToken.Filter filter) {
+            this.kind = kind;
+            this.key = key;
+            this.index = index;
+            this.filter = filter;
+        }
+
+        void add(JsonPath path, int slot) {
+            Builder node = this;
+            for (JsonPath.PathToken token : path.tokens) {
+                node = node.child(token);
+            }
+            node.slots.add(slot);
+        }
+
+        Builder child(JsonPath.PathToken token) {
+            int kind;
+            String key = null;
+            int index = -1;
+            JsonPath.PathToken.Filter filter = null;
+            if (token instanceof JsonPath.PathToken.Key) {
+                kind = KEY;
+                key = ((JsonPath.PathToken.Key) token).name;
+            } else if (token instanceof JsonPath.PathToken.Index) {
+                kind = INDEX;
+                index = ((JsonPath.PathToken.Index) token).index;
+            } else if (token instanceof JsonPath.PathToken.Wildcard) {
+                kind = WILDCARD;
+            } else {
+                kind = PREDICATE;
+                filter = (JsonPath.PathToken.Filter) token;
+            }
+            for (Builder child : children) {
+                if (child.kind == kind && child.index == index && (key == null || key.equals(child.key))
+                        && (filter == null || filter.expression.equals(child.filter.expression))) {
+                    return child;
+                }
+            }
+            Builder child = new Builder(kind, key, index, filter);
+            if (filter != null) {
+                Builder end = child;
+                for (JsonPath.PathToken step : filter.path) {
+                    end = end.child(step);
+                    child.predicatePath.add(end);
+                }
+                end.guard = new ExpectedValue(filter.expected);
+            }
+            children.add(child);
+            return child;
+        }
+
+        int count() {
+            int count = 1;
+            for (Builder child : children) count += child.count();
+            return count;
+        }
+
+        Node build() {
+            Node[] childNodes = new Node[children.size()];
+            for (int i = 0; i < childNodes.length; i++) childNodes[i] = children.get(i).build();
+            int[] slotArray = new int[slots.size()];
+            for (int i = 0; i < slotArray.length; i++) slotArray[i] = slots.get(i);
+            built = new Node(this, childNodes, slotArray);
+            return built;
+        }
+    }
+}
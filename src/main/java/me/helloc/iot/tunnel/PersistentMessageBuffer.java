@@ -0,0 +1,555 @@
+package me.helloc.iot.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * {@link MessageBuffer} that keeps messages on disk, so they survive a restart of the
+ * process.
+ * <p>
+ * Messages are appended to fixed-size, memory-mapped segment files as CRC-framed records.
+ * The consumer position is kept in a small memory-mapped offset file and updated on every
+ * poll, so after a restart consumption resumes with the first message not yet polled.
+ * Segments that have been fully consumed are unmapped and deleted, so their disk and
+ * address space are released at once rather than when the garbage collector gets to them.
+ * On startup every segment is
+ * validated and a torn record at the end, left by a crash in the middle of a write, is
+ * discarded.
+ * <p>
+ * Appending is a copy into mapped memory, so throughput stays close to the in-memory
+ * buffers unless {@link FsyncPolicy#ALWAYS} is used. Only one instance may use a
+ * directory at a time.
+ *
+ * <pre>{@code
+ * PersistentMessageBuffer buffer = PersistentMessageBuffer.builder()
+ *         .directory(Paths.get("/var/lib/gateway/buffer"))
+ *         .fsyncPolicy(FsyncPolicy.INTERVAL)
+ *         .build();
+ * }</pre>
+ */
+public class PersistentMessageBuffer implements MessageBuffer, Closeable {
+    /** Record header: body length followed by the CRC32 of the body. */
+    private static final int HEADER = 8;
+    /** Written in place of a length when the rest of a segment is left unused. */
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String OFFSET_FILE = "consumer.offset";
+    /**
+     * {@code sun.misc.Unsafe#invokeCleaner}, the only way to unmap a file before Java 21
+     * without waiting for the garbage collector, or {@code null} if it is unavailable.
+     */
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Mappings are then released by the garbage collector.
+            invokeCleaner = null;
+            unsafe = null;
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+    /** Unconsumed segments, oldest first. The reader is at the head, the writer at the tail. */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final MappedByteBuffer offset;
+    private int readPosition;
+    private int count;
+    /** Whether anything was written since the last force. */
+    private boolean dirty;
+    private boolean closed;
+    private final ScheduledExecutorService ownedScheduler;
+    private final ScheduledFuture<?> forcer;
+
+    private PersistentMessageBuffer(Builder builder) {
+        this.directory = builder.directory;
+        this.segmentSize = builder.segmentSize;
+        this.fsyncPolicy = builder.fsyncPolicy;
+        try {
+            Files.createDirectories(directory);
+            this.offset = map(directory.resolve(OFFSET_FILE), Long.BYTES);
+            recover();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open message buffer in " + directory, e);
+        }
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            // Forced on a timer rather than on the next add or poll, so the last writes
+            // before an idle period reach the disk too.
+            ScheduledExecutorService scheduler = builder.scheduler;
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "persistent-message-buffer-fsync");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                this.ownedScheduler = scheduler;
+            } else {
+                this.ownedScheduler = null;
+            }
+            this.forcer = scheduler.scheduleWithFixedDelay(this::forceIfDirty,
+                    builder.fsyncIntervalMillis, builder.fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.ownedScheduler = null;
+            this.forcer = null;
+        }
+    }
+
+    /**
+     * Appends a message.
+     *
+     * @throws IllegalArgumentException if the message does not fit in one segment
+     * @throws UncheckedIOException     if a new segment file cannot be created
+     */
+    @Override
+    public void add(String topic, String message) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = Integer.BYTES + topicBytes.length + messageBytes.length;
+        if (HEADER + bodyLength > segmentSize) {
+            throw new IllegalArgumentException("Message of " + bodyLength + " bytes exceeds segment size " + segmentSize);
+        }
+        lock.lock();
+        try {
+            ensureOpen();
+            Segment writer = segments.peekLast();
+            if (writer.limit + HEADER + bodyLength > segmentSize) {
+                writer = roll(writer);
+            }
+            MappedByteBuffer buffer = writer.buffer;
+            int position = writer.limit;
+            buffer.position(position + HEADER);
+            buffer.putInt(topicBytes.length).put(topicBytes).put(messageBytes);
+            buffer.putInt(position, bodyLength);
+            buffer.putInt(position + Integer.BYTES, checksum(buffer, position + HEADER, bodyLength));
+            writer.limit = position + HEADER + bodyLength;
+            count++;
+            maybeForce(writer.buffer);
+            notEmpty.signal();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = dequeue()) == null) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Map.Entry<String, String>> target, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            Map.Entry<String, String> entry;
+            while (drained < maxElements && (entry = dequeue()) != null) {
+                target.add(entry);
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isFifo() {
+        return true;
+    }
+
+    /**
+     * Number of messages not yet polled.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of segment files currently on disk.
+     */
+    public int segmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces all written data and the consumer offset to the storage device.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            ensureOpen();
+            forceAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes and releases the buffer, unmapping its files. Unconsumed messages stay on
+     * disk and are delivered by the next instance opened on the same directory.
+     */
+    @Override
+    public void close() {
+        if (forcer != null) forcer.cancel(false);
+        if (ownedScheduler != null) ownedScheduler.shutdownNow();
+        lock.lock();
+        try {
+            if (closed) return;
+            forceAll();
+            closed = true;
+            for (Segment segment : segments) {
+                unmap(segment.buffer);
+            }
+            segments.clear();
+            unmap(offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Map.Entry<String, String> dequeue() {
+        ensureOpen();
+        while (true) {
+            Segment reader = segments.peekFirst();
+            if (readPosition < reader.limit) {
+                MappedByteBuffer buffer = reader.buffer;
+                int bodyLength = buffer.getInt(readPosition);
+                int topicLength = buffer.getInt(readPosition + HEADER);
+                int start = readPosition + HEADER + Integer.BYTES;
+                String topic = read(buffer, start, topicLength);
+                String message = read(buffer, start + topicLength, bodyLength - Integer.BYTES - topicLength);
+                readPosition += HEADER + bodyLength;
+                count--;
+                commit(reader);
+                return new AbstractMap.SimpleEntry<>(topic, message);
+            }
+            if (reader == segments.peekLast()) return null;
+            // Fully consumed and no longer written to: move on and reclaim the file.
+            segments.pollFirst();
+            readPosition = 0;
+            commit(segments.peekFirst());
+            unmap(reader.buffer);
+            reader.buffer = null;
+            try {
+                Files.deleteIfExists(reader.path);
+            } catch (IOException ignore) {
+                // Retried on the next startup, which deletes segments before the offset.
+            }
+        }
+    }
+
+    private void commit(Segment reader) {
+        offset.putLong(0, ((long) reader.index << 32) | (readPosition & 0xFFFFFFFFL));
+        maybeForce(offset);
+    }
+
+    private Segment roll(Segment writer) throws IOException {
+        if (segmentSize - writer.limit >= Integer.BYTES) {
+            writer.buffer.putInt(writer.limit, END_OF_SEGMENT);
+        }
+        if (fsyncPolicy != FsyncPolicy.NEVER) force(writer.buffer);
+        Segment next = new Segment(writer.index + 1, segmentPath(writer.index + 1));
+        next.buffer = map(next.path, segmentSize);
+        segments.addLast(next);
+        return next;
+    }
+
+    private void recover() throws IOException {
+        long stored = offset.getLong(0);
+        int readSegment = (int) (stored >>> 32);
+        readPosition = (int) stored;
+
+        List<Integer> indexes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                indexes.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(indexes);
+        for (int index : indexes) {
+            Segment segment = new Segment(index, segmentPath(index));
+            if (index < readSegment) {
+                // Consumed before the last shutdown but not yet deleted.
+                Files.deleteIfExists(segment.path);
+                continue;
+            }
+            segment.buffer = map(segment.path, segmentSize);
+            int records = scan(segment, index == readSegment ? readPosition : 0);
+            count += records;
+            segments.addLast(segment);
+        }
+        if (segments.isEmpty()) {
+            Segment first = new Segment(readSegment, segmentPath(readSegment));
+            first.buffer = map(first.path, segmentSize);
+            segments.add(first);
+        }
+        Segment reader = segments.peekFirst();
+        if (reader.index != readSegment) {
+            readPosition = 0;
+        } else if (readPosition > reader.limit) {
+            // The consumer had read past what survived, so nothing after the limit is
+            // pending. Resuming at 0 would replay consumed messages.
+            readPosition = reader.limit;
+        }
+        clearTail(segments.peekLast());
+        commit(reader);
+    }
+
+    /**
+     * Clears whatever follows the last valid record, such as a torn write. Pages of a
+     * mapped file can reach the disk out of order, so garbage is not necessarily adjacent
+     * to the limit: the extent is found with 8-byte reads, and only that range is zeroed,
+     * in bulk, so the untouched remainder of a sparse segment is not allocated.
+     */
+    private void clearTail(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int end = segment.limit;
+        int i = segment.limit;
+        for (; i + Long.BYTES <= segmentSize; i += Long.BYTES) {
+            if (buffer.getLong(i) != 0) end = i + Long.BYTES;
+        }
+        for (; i < segmentSize; i++) {
+            if (buffer.get(i) != 0) end = i + 1;
+        }
+        if (end == segment.limit) return;
+        byte[] zeros = new byte[Math.min(end - segment.limit, 64 * 1024)];
+        ByteBuffer target = buffer.duplicate();
+        target.position(segment.limit);
+        while (target.position() < end) {
+            target.put(zeros, 0, Math.min(zeros.length, end - target.position()));
+        }
+        buffer.force();
+    }
+
+    /**
+     * Validates the records of a segment, setting its limit after the last intact one.
+     * Returns the number of records at or after {@code from}.
+     */
+    private int scan(Segment segment, int from) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        int records = 0;
+        while (position + HEADER <= segmentSize) {
+            int bodyLength = buffer.getInt(position);
+            if (bodyLength < Integer.BYTES || position + HEADER + bodyLength > segmentSize) break;
+            if (buffer.getInt(position + Integer.BYTES) != checksum(buffer, position + HEADER, bodyLength)) break;
+            if (position >= from) records++;
+            position += HEADER + bodyLength;
+        }
+        segment.limit = position;
+        return records;
+    }
+
+    private int checksum(MappedByteBuffer buffer, int start, int length) {
+        ByteBuffer body = buffer.duplicate();
+        body.limit(start + length).position(start);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private void maybeForce(MappedByteBuffer written) {
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            force(written);
+        } else {
+            dirty = true;
+        }
+    }
+
+    private void forceIfDirty() {
+        lock.lock();
+        try {
+            if (dirty && !closed) forceAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void forceAll() {
+        dirty = false;
+        for (Segment segment : segments) {
+            force(segment.buffer);
+        }
+        force(offset);
+    }
+
+    private static void force(MappedByteBuffer buffer) {
+        buffer.force();
+    }
+
+    private void ensureOpen() {
+        if (closed) throw new IllegalStateException("Buffer is closed");
+    }
+
+    private Path segmentPath(int index) {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Releases a mapping immediately. The buffer must not be touched afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null || buffer == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException ignore) {
+            // Left to the garbage collector.
+        }
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static String read(MappedByteBuffer buffer, int start, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(start);
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Segment {
+        final int index;
+        final Path path;
+        MappedByteBuffer buffer;
+        /** End of the last record written to this segment. */
+        int limit;
+
+        Segment(int index, Path path) {
+            this.index = index;
+            this.path = path;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private Path directory;
+        private int segmentSize = 64 * 1024 * 1024;
+        private FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+        private long fsyncIntervalMillis = 1000;
+        private ScheduledExecutorService scheduler;
+
+        public Builder directory(Path directory) { this.directory = directory; return this; }
+        public Builder segmentSize(int bytes) {
+            if (bytes < 1024) throw new IllegalArgumentException("segmentSize must be at least 1024 bytes");
+            this.segmentSize = bytes;
+            return this;
+        }
+        public Builder fsyncPolicy(FsyncPolicy policy) { this.fsyncPolicy = Objects.requireNonNull(policy, "fsyncPolicy"); return this; }
+        /**
+         * How often {@link FsyncPolicy#INTERVAL} forces written data, in milliseconds.
+         */
+        public Builder fsyncInterval(long millis) {
+            if (millis <= 0) throw new IllegalArgumentException("fsyncInterval must be positive");
+            this.fsyncIntervalMillis = millis;
+            return this;
+        }
+        /**
+         * Runs the {@link FsyncPolicy#INTERVAL} force. By default the buffer starts a daemon
+         * thread of its own, stopped by {@link PersistentMessageBuffer#close()}.
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) { this.scheduler = scheduler; return this; }
+
+        public PersistentMessageBuffer build() {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory must not be null");
+            }
+            return new PersistentMessageBuffer(this);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package me.helloc.iot.tunnel;
+
+import java.util.Arrays;
+
+/**
+ * Reusable holder for the values extracted by {@link PathQuery#extractAll}.
+ * <p>
+ * One scan of a message fills a slot for every value path of the query, in the order the
+ * paths were selected. Numbers and booleans are stored in primitive slots; strings, objects
+ * and arrays are only decoded when they are read. A result is created once per consumer
+ * with {@link PathQuery#newResult()} and refilled for every message, so the values are only
+ * valid until the next extraction. Not thread-safe.
+ *
+ * <pre>{@code
+ * PathQuery row = PathQuery.compile("$.sensor[0].value", "$.sensor[1].value", "$.sensor[2].value")
+ *         .where("$.companyCode", "0012");
+ * QueryResult result = row.newResult();
+ * while (...) {
+ *     if (row.extractAll(payload, result)) {
+ *         double temp = result.getDouble(0);
+ *         long airFlow = result.getLong(1);
+ *         double humidity = result.getDouble(2, Double.NaN);
+ *     }
+ * }
+ * }</pre>
+ */
+public final class QueryResult {
+    /**
+     * JSON type of an extracted value.
+     */
+    public enum ValueType {
+        /** The path does not exist in the message. */
+        MISSING,
+        NULL,
+        BOOLEAN,
+        NUMBER,
+        STRING,
+        OBJECT,
+        ARRAY
+    }
+
+    private static final ValueType[] TYPES = ValueType.values();
+
+    final PathQuery query;
+    final PathMatcher matcher;
+    private final int firstSlot;
+    private final byte[] types;
+    private final long[] longs;
+    /** Per value: whether it is a number that {@link #getInt} can return unchanged. */
+    private final boolean[] ints;
+    private final double[] doubles;
+    private final Object[] objects;
+    private boolean matched;
+
+    QueryResult(PathQuery query, PathMatcher matcher, int firstSlot, int size) {
+        this.query = query;
+        this.matcher = matcher;
+        this.firstSlot = firstSlot;
+        this.types = new byte[size];
+        this.longs = new long[size];
+        this.ints = new boolean[size];
+        this.doubles = new double[size];
+        this.objects = new Object[size];
+    }
+
+    /**
+     * Number of value slots, i.e. the number of value paths of the query.
+     */
+    public int size() {
+        return types.length;
+    }
+
+    /**
+     * Whether the last extraction passed every filter. When {@code false} all slots
+     * are {@link ValueType#MISSING}.
+     */
+    public boolean matched() {
+        return matched;
+    }
+
+    public ValueType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    public boolean isPresent(int index) {
+        return types[index] != ValueType.MISSING.ordinal();
+    }
+
+    public long getLong(int index) {
+        requireType(index, ValueType.NUMBER);
+        return longs[index];
+    }
+
+    public long getLong(int index, long defaultValue) {
+        return types[index] == ValueType.NUMBER.ordinal() ? longs[index] : defaultValue;
+    }
+
+    /**
+     * @throws IllegalStateException if the value is not a whole number within the range of
+     *                               an {@code int}
+     */
+    public int getInt(int index) {
+        requireType(index, ValueType.NUMBER);
+        if (!ints[index]) {
+            throw new IllegalStateException("Value " + index + " does not fit in an int: " + doubles[index]);
+        }
+        return (int) doubles[index];
+    }
+
+    /**
+     * Returns {@code defaultValue} unless the value is a whole number within the range of
+     * an {@code int}.
+     */
+    public int getInt(int index, int defaultValue) {
+        return types[index] == ValueType.NUMBER.ordinal() && ints[index] ? (int) doubles[index] : defaultValue;
+    }
+
+    public double getDouble(int index) {
+        requireType(index, ValueType.NUMBER);
+        return doubles[index];
+    }
+
+    public double getDouble(int index, double defaultValue) {
+        return types[index] == ValueType.NUMBER.ordinal() ? doubles[index] : defaultValue;
+    }
+
+    public boolean getBoolean(int index) {
+        requireType(index, ValueType.BOOLEAN);
+        return longs[index] != 0;
+    }
+
+    public boolean getBoolean(int index, boolean defaultValue) {
+        return types[index] == ValueType.BOOLEAN.ordinal() ? longs[index] != 0 : defaultValue;
+    }
+
+    /**
+     * Returns the string value, decoding it on first access, or {@code null} if the value
+     * is missing or not a string.
+     */
+    public String getString(int index) {
+        if (types[index] != ValueType.STRING.ordinal()) return null;
+        return (String) decode(index);
+    }
+
+    /**
+     * Converts the value the same way {@link PathQuery#extractFirst} does. Returns
+     * {@code null} if the value is missing, JSON {@code null} or not convertible.
+     */
+    public <T> T get(int index, Class<T> clazz) {
+        if (!isPresent(index)) return null;
+        return PathQuery.convert(decode(index), clazz);
+    }
+
+    /**
+     * Called by {@link PathQuery} after the matcher has scanned a message.
+     */
+    void load(boolean matched) {
+        this.matched = matched;
+        Arrays.fill(objects, null);
+        byte[] json = matcher.json();
+        for (int i = 0; i < types.length; i++) {
+            int slot = firstSlot + i;
+            int start = matched ? matcher.start(slot) : -1;
+            if (start < 0) {
+                types[i] = (byte) ValueType.MISSING.ordinal();
+                continue;
+            }
+            ValueType type;
+            switch (json[start]) {
+                case '"': type = ValueType.STRING; break;
+                case '{': type = ValueType.OBJECT; break;
+                case '[': type = ValueType.ARRAY; break;
+                case 'n': type = ValueType.NULL; break;
+                case 't':
+                    type = ValueType.BOOLEAN;
+                    longs[i] = 1;
+                    break;
+                case 'f':
+                    type = ValueType.BOOLEAN;
+                    longs[i] = 0;
+                    break;
+                default:
+                    if (!matcher.readNumber(slot)) {
+                        type = ValueType.MISSING;
+                        break;
+                    }
+                    type = ValueType.NUMBER;
+                    longs[i] = matcher.number.longValue;
+                    ints[i] = matcher.number.fitsInt();
+                    doubles[i] = matcher.number.doubleValue;
+            }
+            types[i] = (byte) type.ordinal();
+        }
+    }
+
+    private Object decode(int index) {
+        Object value = objects[index];
+        if (value == null && types[index] != ValueType.NULL.ordinal()) {
+            try {
+                value = matcher.value(firstSlot + index);
+            } catch (RuntimeException e) {
+                // A malformed object or array is reported as having no value.
+                return null;
+            }
+            objects[index] = value;
+        }
+        return value;
+    }
+
+    private void requireType(int index, ValueType expected) {
+        if (types[index] != expected.ordinal()) {
+            throw new IllegalStateException("Value " + index + " is " + type(index) + ", not " + expected);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package me.helloc.iot.tunnel;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory {@link MessageBuffer} with secondary indexes on JSON fields.
+ * <p>
+ * The configured key paths, in the {@link PathFilterBuilder} grammar, are extracted once
+ * per message with a single scan when it is added. Each distinct key value is interned to
+ * a small integer id, and messages sharing a value are chained through per-index links
+ * stored in the message itself, so an index costs no objects per message. Looking up,
+ * counting or draining the messages for a value such as {@code companyCode == "0012"}
+ * touches only the matching messages, while {@link #poll()} still returns messages in
+ * arrival order. Numbers are compared by value, so {@code 17} and {@code 17.0} are the same
+ * key.
+ *
+ * <pre>{@code
+ * QueryableMessageBuffer buffer = QueryableMessageBuffer.builder()
+ *         .index("$.companyCode")
+ *         .index("$.id")
+ *         .build();
+ * List<Map.Entry<String, String>> company = buffer.find("$.companyCode", "0012");
+ * }</pre>
+ */
+public class QueryableMessageBuffer implements MessageBuffer {
+    private final String[] paths;
+    private final PathQuery query;
+    private final ThreadLocal<QueryResult> results;
+    private final Index[] indexes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    /** Arrival order, oldest first. */
+    private Node head;
+    private Node tail;
+    private int count;
+
+    private QueryableMessageBuffer(Builder builder) {
+        this.paths = builder.paths.toArray(new String[0]);
+        this.query = PathQuery.compile(paths);
+        this.results = ThreadLocal.withInitial(query::newResult);
+        this.indexes = new Index[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            indexes[i] = new Index(i);
+        }
+    }
+
+    @Override
+    public void add(String topic, String message) {
+        // Extract outside the lock, so parsing does not hold up consumers.
+        QueryResult result = results.get();
+        query.extractAll(message, result);
+        Object[] keys = new Object[paths.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key(result, i);
+        }
+        Node node = new Node(topic, message, paths.length);
+        lock.lock();
+        try {
+            node.prev = tail;
+            if (tail == null) head = node; else tail.next = node;
+            tail = node;
+            for (int i = 0; i < indexes.length; i++) {
+                if (keys[i] != null) indexes[i].link(node, keys[i]);
+            }
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll() {
+        lock.lock();
+        try {
+            return head == null ? null : remove(head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (head == null) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return remove(head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (head == null) {
+                notEmpty.await();
+            }
+            return remove(head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Map.Entry<String, String>> target, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && head != null) {
+                target.add(remove(head));
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the buffered messages whose value at {@code path} equals {@code value}, oldest
+     * first, without removing them.
+     *
+     * @throws IllegalArgumentException if {@code path} is not an indexed path
+     */
+    public List<Map.Entry<String, String>> find(String path, Object value) {
+        Index index = index(path);
+        Object key = normalize(value);
+        lock.lock();
+        try {
+            List<Map.Entry<String, String>> found = new ArrayList<>();
+            for (Node node = index.first(key); node != null; node = node.indexNext[index.slot]) {
+                found.add(new AbstractMap.SimpleEntry<>(node.topic, node.message));
+            }
+            return found;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of buffered messages whose value at {@code path} equals {@code value}.
+     *
+     * @throws IllegalArgumentException if {@code path} is not an indexed path
+     */
+    public int count(String path, Object value) {
+        Index index = index(path);
+        Object key = normalize(value);
+        lock.lock();
+        try {
+            Integer id = index.ids.get(key);
+            return id == null ? 0 : index.sizes[id];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to {@code maxElements} messages whose value at {@code path} equals
+     * {@code value}, oldest first, and adds them to {@code target}. Other messages keep
+     * their place. Returns the number of messages transferred.
+     *
+     * @throws IllegalArgumentException if {@code path} is not an indexed path
+     */
+    public int drainMatching(String path, Object value, Collection<? super Map.Entry<String, String>> target, int maxElements) {
+        Index index = index(path);
+        Object key = normalize(value);
+        lock.lock();
+        try {
+            int drained = 0;
+            Node node;
+            while (drained < maxElements && (node = index.first(key)) != null) {
+                target.add(remove(node));
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of buffered messages.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Map.Entry<String, String> remove(Node node) {
+        if (node.prev == null) head = node.next; else node.prev.next = node.next;
+        if (node.next == null) tail = node.prev; else node.next.prev = node.prev;
+        for (Index index : indexes) {
+            index.unlink(node);
+        }
+        count--;
+        return new AbstractMap.SimpleEntry<>(node.topic, node.message);
+    }
+
+    private Index index(String path) {
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i].equals(path)) return indexes[i];
+        }
+        throw new IllegalArgumentException("Path is not indexed: " + path);
+    }
+
+    private static Object key(QueryResult result, int i) {
+        switch (result.type(i)) {
+            case NUMBER:
+                return normalize(result.getDouble(i));
+            case STRING:
+                return result.getString(i);
+            case BOOLEAN:
+                return result.getBoolean(i);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Maps equal numbers to equal keys regardless of their boxed type. Also used by
+     * {@link ConflatingMessageBuffer} for its keys.
+     */
+    static Object normalize(Object value) {
+        Objects.requireNonNull(value, "value");
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            long integral = (long) number;
+            return integral == number ? (Object) integral : (Object) number;
+        }
+        return value;
+    }
+
+    private static final class Node {
+        final String topic;
+        final String message;
+        Node prev;
+        Node next;
+        /** Per index: value id, or -1 if the message has no value at that path. */
+        final int[] valueIds;
+        final Node[] indexPrev;
+        final Node[] indexNext;
+
+        Node(String topic, String message, int indexCount) {
+            this.topic = topic;
+            this.message = message;
+            this.valueIds = new int[indexCount];
+            Arrays.fill(valueIds, -1);
+            this.indexPrev = new Node[indexCount];
+            this.indexNext = new Node[indexCount];
+        }
+    }
+
+    /**
+     * One secondary index: distinct values interned to dense ids, and for each id a chain
+     * of the messages holding it, oldest first. Ids of values no longer buffered are reused.
+     */
+    private static final class Index {
+        final int slot;
+        final HashMap<Object, Integer> ids = new HashMap<>();
+        Object[] values = new Object[16];
+        Node[] heads = new Node[16];
+        Node[] tails = new Node[16];
+        int[] sizes = new int[16];
+        int[] free = new int[16];
+        int freeCount;
+        int nextId;
+
+        Index(int slot) {
+            this.slot = slot;
+        }
+
+        Node first(Object key) {
+            Integer id = ids.get(key);
+            return id == null ? null : heads[id];
+        }
+
+        void link(Node node, Object key) {
+            Integer boxed = ids.get(key);
+            int id;
+            if (boxed != null) {
+                id = boxed;
+            } else {
+                id = freeCount > 0 ? free[--freeCount] : allocate();
+                ids.put(key, id);
+                values[id] = key;
+            }
+            node.valueIds[slot] = id;
+            node.indexPrev[slot] = tails[id];
+            if (tails[id] == null) heads[id] = node; else tails[id].indexNext[slot] = node;
+            tails[id] = node;
+            sizes[id]++;
+        }
+
+        void unlink(Node node) {
+            int id = node.valueIds[slot];
+            if (id < 0) return;
+            Node prev = node.indexPrev[slot];
+            Node next = node.indexNext[slot];
+            if (prev == null) heads[id] = next; else prev.indexNext[slot] = next;
+            if (next == null) tails[id] = prev; else next.indexPrev[slot] = prev;
+            node.indexPrev[slot] = node.indexNext[slot] = null;
+            if (--sizes[id] == 0) {
+                ids.remove(values[id]);
+                values[id] = null;
+                if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+                free[freeCount++] = id;
+            }
+        }
+
+        private int allocate() {
+            int id = nextId++;
+            if (id == heads.length) {
+                int length = heads.length * 2;
+                values = Arrays.copyOf(values, length);
+                heads = Arrays.copyOf(heads, length);
+                tails = Arrays.copyOf(tails, length);
+                sizes = Arrays.copyOf(sizes, length);
+            }
+            return id;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private final List<String> paths = new ArrayList<>();
+
+        /**
+         * Indexes messages by the value at {@code path}. Strings, numbers and booleans are
+         * indexed; messages with another value or none at the path are not.
+         *
+         * @throws IllegalArgumentException if the path is malformed
+         */
+        public Builder index(String path) {
+            PathQuery.compile(Objects.requireNonNull(path, "path"));
+            if (!paths.contains(path)) paths.add(path);
+            return this;
+        }
+
+        public QueryableMessageBuffer build() {
+            if (paths.isEmpty()) {
+                throw new IllegalArgumentException("At least one index path is required");
+            }
+            return new QueryableMessageBuffer(this);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package me.helloc.iot.tunnel;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Preallocated multi-producer, multi-consumer {@link MessageBuffer} in the style of the
+ * LMAX Disruptor.
+ * <p>
+ * Messages go into a power-of-two array of slots. Every slot carries a sequence number
+ * telling whether it is free for a producer or published for consumers. Producers claim
+ * slots with a single compare-and-set on a shared sequence and write without allocating;
+ * consumers claim slots the same way on a sequence of their own. Both sequences sit on cache
+ * lines of their own, so producers and consumers do not invalidate each other's caches.
+ * Waiting is governed by a {@link WaitStrategy}.
+ * <p>
+ * {@link #add} may be called from several threads at once, as it is by a
+ * {@link MqttBufferedSubscriber} with several connections or a {@link MessageDispatcher}
+ * pool. A message claimed before another but published after it is invisible to consumers
+ * until it is published, so {@link #poll()} can briefly return {@code null} while a later
+ * message is already in place.
+ *
+ * <pre>{@code
+ * MqttBufferedSubscriber subscriber = MqttBufferedSubscriber.builder()
+ *         .messageBuffer(RingMessageBuffer.builder()
+ *                 .capacity(65_536)
+ *                 .waitStrategy(WaitStrategy.YIELD)
+ *                 .build())
+ *         .build();
+ * }</pre>
+ */
+public class RingMessageBuffer implements MessageBuffer {
+    private static final int SPIN_TRIES = 100;
+
+    private final int capacity;
+    private final int mask;
+    private final String[] topics;
+    private final String[] messages;
+    /**
+     * Per slot: {@code position} while free for the producer writing {@code position},
+     * {@code position + 1} once published, {@code position + capacity} once consumed.
+     */
+    private final AtomicLongArray sequences;
+    private final Sequence tail = new Sequence();
+    private final Sequence head = new Sequence();
+    private final OverflowPolicy policy;
+    private final WaitStrategy waitStrategy;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private RingMessageBuffer(Builder builder) {
+        this.capacity = builder.capacity;
+        this.mask = capacity - 1;
+        this.topics = new String[capacity];
+        this.messages = new String[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.policy = builder.overflowPolicy;
+        this.waitStrategy = builder.waitStrategy;
+    }
+
+    /**
+     * Publishes a message. Safe to call concurrently. With {@link OverflowPolicy#BLOCK},
+     * the producer waits for room using the wait strategy, and an interrupted wait drops the
+     * message and leaves the thread's interrupt flag set.
+     */
+    @Override
+    public void add(String topic, String message) {
+        long position;
+        int index;
+        boolean waited = false;
+        for (int tries = 0; ; ) {
+            position = tail.getVolatile();
+            index = (int) position & mask;
+            long free = sequences.getAcquire(index) - position;
+            if (free == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                // Another producer claimed this slot first; retry with the next one.
+                continue;
+            }
+            // The slot was already claimed and published for this position; re-read the tail.
+            if (free > 0) continue;
+            switch (policy) {
+                case DROP_OLDEST:
+                    if (poll() != null) {
+                        dropped.increment();
+                    } else {
+                        // A consumer has claimed the oldest slot but not released it yet.
+                        idle(tries++);
+                    }
+                    break;
+                case DROP_NEWEST:
+                    dropped.increment();
+                    return;
+                case BLOCK:
+                    if (!waited) {
+                        blocked.increment();
+                        waited = true;
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        dropped.increment();
+                        return;
+                    }
+                    idle(tries++);
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported overflow policy " + policy);
+            }
+        }
+        topics[index] = topic;
+        messages[index] = message;
+        sequences.setRelease(index, position + 1);
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            // Orders the publish before reading waiters, pairing with the consumer's increment.
+            VarHandle.fullFence();
+            if (waiters.get() > 0) {
+                lock.lock();
+                try {
+                    notEmpty.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll() {
+        while (true) {
+            long position = head.getVolatile();
+            int index = (int) position & mask;
+            long published = sequences.getAcquire(index) - (position + 1);
+            if (published < 0) return null;
+            if (published == 0 && head.compareAndSet(position, position + 1)) {
+                Map.Entry<String, String> entry = new AbstractMap.SimpleEntry<>(topics[index], messages[index]);
+                topics[index] = null;
+                messages[index] = null;
+                sequences.setRelease(index, position + capacity);
+                return entry;
+            }
+            // Another consumer claimed this slot first; retry with the next one.
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Map.Entry<String, String> entry = poll();
+        if (entry != null) return entry;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            return await(deadline);
+        }
+        for (int tries = 0; ; tries++) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            if (System.nanoTime() - deadline >= 0) return null;
+            idle(tries);
+            if ((entry = poll()) != null) return entry;
+        }
+    }
+
+    @Override
+    public Map.Entry<String, String> take() throws InterruptedException {
+        Map.Entry<String, String> entry;
+        while ((entry = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null) {
+            // Only reached after waiting Long.MAX_VALUE nanoseconds.
+        }
+        return entry;
+    }
+
+    /**
+     * {@code true} with {@link OverflowPolicy#BLOCK}, which never drops a message.
+     */
+    @Override
+    public boolean isFifo() {
+        return policy == OverflowPolicy.BLOCK;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public WaitStrategy waitStrategy() {
+        return waitStrategy;
+    }
+
+    public OverflowPolicy overflowPolicy() {
+        return policy;
+    }
+
+    /**
+     * Number of slots claimed by producers and not yet by a consumer, including messages
+     * still being written.
+     */
+    public int size() {
+        return (int) Math.max(0, tail.getVolatile() - head.getVolatile());
+    }
+
+    /**
+     * Total number of messages discarded by the overflow policy.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Total number of {@link #add} calls that had to wait for room.
+     */
+    public long blockedCount() {
+        return blocked.sum();
+    }
+
+    private Map.Entry<String, String> await(long deadline) throws InterruptedException {
+        lock.lockInterruptibly();
+        // Registered before re-checking, so a producer publishing after the check signals.
+        waiters.incrementAndGet();
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = poll()) == null) {
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0) return null;
+                notEmpty.awaitNanos(nanos);
+            }
+            return entry;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Backs off once while waiting for a sequence to move. {@link WaitStrategy#BLOCKING}
+     * behaves like {@link WaitStrategy#PARK} here; only consumers sleep on the condition.
+     */
+    private void idle(int tries) {
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || tries < SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else if (waitStrategy == WaitStrategy.YIELD) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(1_000);
+        }
+    }
+
+    /**
+     * Cache-line padded sequence counter. The padding fields on either side of the value
+     * keep it from sharing a 64-byte line with the other sequence or with unrelated objects.
+     */
+    @SuppressWarnings("unused")
+    private static class LeftPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private static class SequenceValue extends LeftPadding {
+        volatile long value;
+    }
+
+    @SuppressWarnings("unused")
+    private static final class Sequence extends SequenceValue {
+        private static final VarHandle VALUE;
+
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(SequenceValue.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        long p9, p10, p11, p12, p13, p14, p15;
+
+        long getVolatile() {
+            return value;
+        }
+
+        boolean compareAndSet(long expected, long newValue) {
+            return VALUE.compareAndSet(this, expected, newValue);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int capacity = 65_536;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+
+        /**
+         * Number of slots, rounded up to a power of two.
+         */
+        public Builder capacity(int capacity) {
+            if (capacity <= 0 || capacity > 1 << 30) throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+            this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+            return this;
+        }
+        public Builder overflowPolicy(OverflowPolicy policy) { this.overflowPolicy = Objects.requireNonNull(policy, "overflowPolicy"); return this; }
+        public Builder waitStrategy(WaitStrategy strategy) { this.waitStrategy = Objects.requireNonNull(strategy, "waitStrategy"); return this; }
+
+        public RingMessageBuffer build() {
+            if (overflowPolicy == OverflowPolicy.SPILL_TO_DISK) {
+                throw new IllegalArgumentException("SPILL_TO_DISK is not supported by RingMessageBuffer");
+            }
+            return new RingMessageBuffer(this);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package me.helloc.iot.tunnel;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -9,15 +10,43 @@ import java.util.Map;
  * Minimal JSON parser supporting objects, arrays, strings, numbers, booleans and null.
  * It converts JSON into Java types: Map for objects, List for arrays, String, Long/Double,
  * Boolean and null.
+ * <p>
+ * The parser works directly on UTF-8 encoded bytes, so MQTT payloads can be parsed
+ * without decoding them into a {@link String} first. Strings without escape sequences
+ * are decoded straight from the input bytes.
  */
 class SimpleJsonParser {
-    private final String json;
-    private int index = 0;
-    private final int length;
+    private byte[] json;
+    private int index;
+    private int length;
+    private final JsonNumber number = new JsonNumber();
+
+    /**
+     * Creates a parser without input; {@link #reset} must be called before parsing.
+     */
+    SimpleJsonParser() {
+    }
 
     SimpleJsonParser(String json) {
+        this(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    SimpleJsonParser(byte[] json) {
+        this(json, 0, json.length);
+    }
+
+    SimpleJsonParser(byte[] json, int offset, int length) {
+        reset(json, offset, length);
+    }
+
+    /**
+     * Points the parser at new input so one instance can be reused for many values.
+     */
+    SimpleJsonParser reset(byte[] json, int offset, int length) {
         this.json = json;
-        this.length = json.length();
+        this.index = offset;
+        this.length = offset + length;
+        return this;
     }
 
     public Object parse() {
@@ -30,7 +59,7 @@ class SimpleJsonParser {
     private Object parseValue() {
         skipWhitespace();
         if (index >= length) return null;
-        switch (json.charAt(index)) {
+        switch (json[index]) {
             case '{':
                 return parseObject();
             case '[':
@@ -55,7 +84,7 @@ class SimpleJsonParser {
         expect('{');
         skipWhitespace();
         Map<String, Object> map = new HashMap<>();
-        if (peek() != null && peek() == '}') {
+        if (peek() == '}') {
             index++;
             return map;
         }
@@ -68,8 +97,8 @@ class SimpleJsonParser {
             Object value = parseValue();
             map.put(key, value);
             skipWhitespace();
-            Character next = peek();
-            if (next == null) break;
+            int next = peek();
+            if (next < 0) break;
             switch (next) {
                 case ',':
                     index++;
@@ -88,7 +117,7 @@ class SimpleJsonParser {
         expect('[');
         skipWhitespace();
         List<Object> list = new ArrayList<>();
-        if (peek() != null && peek() == ']') {
+        if (peek() == ']') {
             index++;
             return list;
         }
@@ -96,8 +125,8 @@ class SimpleJsonParser {
             Object value = parseValue();
             list.add(value);
             skipWhitespace();
-            Character next = peek();
-            if (next == null) break;
+            int next = peek();
+            if (next < 0) break;
             switch (next) {
                 case ',':
                     index++;
@@ -114,67 +143,88 @@ class SimpleJsonParser {
 
     private String parseString() {
         expect('"');
+        int start = index;
+        index = ByteScanner.DEFAULT.indexOfQuoteOrBackslash(json, index, length);
+        if (index >= length) {
+            throw new IllegalStateException("Unterminated string");
+        }
+        if (json[index] == '\\') {
+            return parseEscapedString(start);
+        }
+        String value = new String(json, start, index - start, StandardCharsets.UTF_8);
+        index++;
+        return value;
+    }
+
+    /**
+     * Slow path for strings containing escape sequences. Runs of plain bytes between
+     * escapes are decoded as UTF-8 in one go.
+     */
+    private String parseEscapedString(int start) {
         StringBuilder sb = new StringBuilder();
-        while (index < length) {
-            char ch = json.charAt(index++);
-            switch (ch) {
-                case '\\':
-                    if (index >= length) throw new IllegalStateException("Incomplete escape sequence");
-                    char esc = json.charAt(index++);
-                    switch (esc) {
-                        case '"': sb.append('"'); break;
-                        case '\\': sb.append('\\'); break;
-                        case '/': sb.append('/'); break;
-                        case 'b': sb.append('\b'); break;
-                        case 'f': sb.append('\f'); break;
-                        case 'n': sb.append('\n'); break;
-                        case 'r': sb.append('\r'); break;
-                        case 't': sb.append('\t'); break;
-                        case 'u':
-                            String hex = json.substring(index, index + 4);
-                            index += 4;
-                            sb.append((char) Integer.parseInt(hex, 16));
-                            break;
-                        default:
-                            sb.append(esc);
-                    }
+        int run = start;
+        while ((index = ByteScanner.DEFAULT.indexOfQuoteOrBackslash(json, index, length)) < length) {
+            if (json[index] == '"') {
+                sb.append(new String(json, run, index - run, StandardCharsets.UTF_8));
+                index++;
+                return sb.toString();
+            }
+            sb.append(new String(json, run, index - run, StandardCharsets.UTF_8));
+            index++;
+            if (index >= length) throw new IllegalStateException("Incomplete escape sequence");
+            char esc = (char) json[index++];
+            switch (esc) {
+                case '"': sb.append('"'); break;
+                case '\\': sb.append('\\'); break;
+                case '/': sb.append('/'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (index + 4 > length) throw new IllegalStateException("Incomplete escape sequence");
+                    String hex = new String(json, index, 4, StandardCharsets.US_ASCII);
+                    index += 4;
+                    sb.append((char) Integer.parseInt(hex, 16));
                     break;
-                case '"':
-                    return sb.toString();
                 default:
-                    sb.append(ch);
+                    sb.append(esc);
             }
+            run = index;
         }
         throw new IllegalStateException("Unterminated string");
     }
 
     private Object parseNumber() {
         int start = index;
-        if (json.charAt(index) == '-') index++;
-        while (index < length && Character.isDigit(json.charAt(index))) index++;
-        if (index < length && json.charAt(index) == '.') {
+        if (json[index] == '-') index++;
+        while (index < length && isDigit(json[index])) index++;
+        if (index < length && json[index] == '.') {
             index++;
-            while (index < length && Character.isDigit(json.charAt(index))) index++;
+            while (index < length && isDigit(json[index])) index++;
         }
-        if (index < length && (json.charAt(index) == 'e' || json.charAt(index) == 'E')) {
+        if (index < length && (json[index] == 'e' || json[index] == 'E')) {
             index++;
-            if (index < length && (json.charAt(index) == '+' || json.charAt(index) == '-')) index++;
-            while (index < length && Character.isDigit(json.charAt(index))) index++;
+            if (index < length && (json[index] == '+' || json[index] == '-')) index++;
+            while (index < length && isDigit(json[index])) index++;
         }
-        String numberStr = json.substring(start, index);
-        try {
-            return Long.parseLong(numberStr);
-        } catch (NumberFormatException e) {
-            return Double.parseDouble(numberStr);
+        if (!number.read(json, start, index)) {
+            throw new IllegalStateException("Invalid number at position " + start);
         }
+        return number.boxed();
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
     }
 
     private void skipWhitespace() {
-        while (index < length && Character.isWhitespace(json.charAt(index))) index++;
+        while (index < length && json[index] <= ' ' && json[index] >= 0) index++;
     }
 
     private void expect(char ch) {
-        if (index >= length || json.charAt(index) != ch) {
+        if (index >= length || json[index] != ch) {
             throw new IllegalStateException("Expected '" + ch + "' at position " + index);
         }
         index++;
@@ -182,14 +232,14 @@ class SimpleJsonParser {
 
     private void consumeLiteral(String lit) {
         for (int i = 0; i < lit.length(); i++) {
-            if (index >= length || json.charAt(index) != lit.charAt(i)) {
+            if (index >= length || json[index] != lit.charAt(i)) {
                 throw new IllegalStateException("Expected literal " + lit + " at position " + index);
             }
             index++;
         }
     }
 
-    private Character peek() {
-        return index < length ? json.charAt(index) : null;
+    private int peek() {
+        return index < length ? json[index] & 0xFF : -1;
     }
 }
@@ -0,0 +1,299 @@
+package me.helloc.iot.tunnel;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory {@link MessageBuffer} whose entries carry their arrival time.
+ * <p>
+ * Every message is stamped with a monotonic clock reading when it is added, or with its
+ * arrival time when added as an {@link MqttMessageView}, and handed out as a
+ * {@link TimestampedMessage}, oldest stamp first. With a time-to-live, messages older than the TTL are
+ * dropped lazily when a consumer reaches them and, optionally, by a background sweeper, so
+ * a consumer catching up after an outage skips readings too old to act on. The time each
+ * delivered message spent in the buffer is recorded in a {@link LatencyHistogram}.
+ *
+ * <pre>{@code
+ * TimedMessageBuffer buffer = TimedMessageBuffer.builder()
+ *         .ttl(30, TimeUnit.SECONDS)
+ *         .sweepInterval(1, TimeUnit.SECONDS)
+ *         .build();
+ * TimestampedMessage message = buffer.take();
+ * long p99 = buffer.dwellTimes().percentile(99, TimeUnit.MILLISECONDS);
+ * }</pre>
+ */
+public class TimedMessageBuffer implements MessageBuffer, Closeable {
+    private final ArrayDeque<TimestampedMessage> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final long ttlNanos;
+    private final LongSupplier ticker;
+    private final LatencyHistogram dwellTimes = new LatencyHistogram();
+    private final LongAdder expired = new LongAdder();
+    private final ScheduledExecutorService ownedScheduler;
+    private final ScheduledFuture<?> sweeper;
+
+    private TimedMessageBuffer(Builder builder) {
+        this.ttlNanos = builder.ttlNanos;
+        this.ticker = builder.ticker;
+        if (builder.sweepIntervalNanos > 0) {
+            ScheduledExecutorService scheduler = builder.scheduler;
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "timed-message-buffer-sweeper");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                this.ownedScheduler = scheduler;
+            } else {
+                this.ownedScheduler = null;
+            }
+            this.sweeper = scheduler.scheduleWithFixedDelay(this::expire,
+                    builder.sweepIntervalNanos, builder.sweepIntervalNanos, TimeUnit.NANOSECONDS);
+        } else {
+            this.ownedScheduler = null;
+            this.sweeper = null;
+        }
+    }
+
+    @Override
+    public void add(String topic, String message) {
+        enqueue(new TimestampedMessage(topic, message, ticker.getAsLong()));
+    }
+
+    /**
+     * Stamps the message with the time it arrived from the MQTT client rather than the time
+     * it reached the buffer, so dwell times and the TTL include any time it spent queued in
+     * a {@link MessageDispatcher} or in listeners. The arrival time is translated onto the
+     * configured ticker by subtracting the time elapsed since arrival.
+     */
+    @Override
+    public void add(MqttMessageView message) {
+        long sinceArrival = Math.max(0, System.nanoTime() - message.arrivalNanos());
+        enqueue(new TimestampedMessage(message.topic(), message.text(), ticker.getAsLong() - sinceArrival));
+    }
+
+    /**
+     * Inserts in stamp order, behind messages with the same stamp, so the head is always the
+     * oldest message and expiry can stop at the first one that is still fresh. Messages
+     * delivered by a {@link MessageDispatcher} pool can reach the buffer slightly out of
+     * arrival order; only those few younger ones at the tail are stepped over.
+     */
+    private void enqueue(TimestampedMessage entry) {
+        lock.lock();
+        try {
+            TimestampedMessage tail = queue.peekLast();
+            if (tail == null || tail.arrivalNanos() - entry.arrivalNanos() <= 0) {
+                queue.addLast(entry);
+            } else {
+                ArrayDeque<TimestampedMessage> younger = new ArrayDeque<>();
+                while ((tail = queue.peekLast()) != null && tail.arrivalNanos() - entry.arrivalNanos() > 0) {
+                    younger.push(queue.pollLast());
+                }
+                queue.addLast(entry);
+                queue.addAll(younger);
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public TimestampedMessage poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public TimestampedMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            TimestampedMessage entry;
+            while ((entry = dequeue()) == null) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public TimestampedMessage take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            TimestampedMessage entry;
+            while ((entry = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Map.Entry<String, String>> target, int maxElements) {
+        lock.lock();
+        try {
+            int count = 0;
+            TimestampedMessage entry;
+            while (count < maxElements && (entry = dequeue()) != null) {
+                target.add(entry);
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every message older than the TTL and returns how many were removed. Called
+     * periodically by the sweeper, if one is configured.
+     */
+    public int expire() {
+        if (ttlNanos <= 0) return 0;
+        lock.lock();
+        try {
+            long now = ticker.getAsLong();
+            int removed = 0;
+            TimestampedMessage head;
+            while ((head = queue.peek()) != null && now - head.arrivalNanos() >= ttlNanos) {
+                queue.poll();
+                removed++;
+            }
+            expired.add(removed);
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of buffered messages, including expired ones not yet swept.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Arrival time of the oldest buffered message, or -1 if the buffer is empty. Its
+     * distance from {@link System#nanoTime()} shows how far consumers are behind.
+     */
+    public long oldestArrivalNanos() {
+        lock.lock();
+        try {
+            TimestampedMessage head = queue.peek();
+            return head == null ? -1 : head.arrivalNanos();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Total number of messages dropped because they outlived the TTL.
+     */
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Time delivered messages spent in the buffer, from {@code add}, or from arrival for
+     * messages added as an {@link MqttMessageView}, until a consumer received them.
+     */
+    public LatencyHistogram dwellTimes() {
+        return dwellTimes;
+    }
+
+    /**
+     * Stops the sweeper. Buffered messages stay available to consumers.
+     */
+    @Override
+    public void close() {
+        if (sweeper != null) sweeper.cancel(false);
+        if (ownedScheduler != null) ownedScheduler.shutdownNow();
+    }
+
+    /**
+     * Removes the oldest message that has not expired, dropping expired ones on the way.
+     * Must be called with the lock held.
+     */
+    private TimestampedMessage dequeue() {
+        TimestampedMessage entry;
+        while ((entry = queue.poll()) != null) {
+            long dwell = ticker.getAsLong() - entry.arrivalNanos();
+            if (ttlNanos > 0 && dwell >= ttlNanos) {
+                expired.increment();
+                continue;
+            }
+            dwellTimes.record(dwell);
+            return entry;
+        }
+        return null;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private long ttlNanos;
+        private long sweepIntervalNanos;
+        private ScheduledExecutorService scheduler;
+        private LongSupplier ticker = System::nanoTime;
+
+        /**
+         * Drops messages that stay buffered for {@code ttl} or longer. Disabled by default.
+         */
+        public Builder ttl(long ttl, TimeUnit unit) {
+            if (ttl <= 0) throw new IllegalArgumentException("ttl must be positive");
+            this.ttlNanos = unit.toNanos(ttl);
+            return this;
+        }
+        /**
+         * Also sweeps expired messages in the background every {@code interval}, so they do
+         * not hold memory while no consumer is polling. Requires a TTL.
+         */
+        public Builder sweepInterval(long interval, TimeUnit unit) {
+            if (interval <= 0) throw new IllegalArgumentException("sweepInterval must be positive");
+            this.sweepIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+        public Builder scheduler(ScheduledExecutorService scheduler) { this.scheduler = scheduler; return this; }
+        /**
+         * Monotonic nanosecond clock, {@link System#nanoTime()} by default.
+         */
+        public Builder ticker(LongSupplier ticker) { this.ticker = Objects.requireNonNull(ticker, "ticker"); return this; }
+
+        public TimedMessageBuffer build() {
+            if (sweepIntervalNanos > 0 && ttlNanos <= 0) {
+                throw new IllegalArgumentException("sweepInterval requires a ttl");
+            }
+            return new TimedMessageBuffer(this);
+        }
+    }
+}
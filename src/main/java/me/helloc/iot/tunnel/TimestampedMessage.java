@@ -0,0 +1,37 @@
+package me.helloc.iot.tunnel;
+
+import java.util.AbstractMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffered message that remembers when it arrived, as returned by {@link TimedMessageBuffer}.
+ * <p>
+ * The arrival time is a monotonic {@link System#nanoTime()} reading, so it is only
+ * meaningful relative to other readings of the same clock, such as {@link #age(TimeUnit)}.
+ */
+public final class TimestampedMessage extends AbstractMap.SimpleEntry<String, String> {
+    private static final long serialVersionUID = 1L;
+
+    private final long arrivalNanos;
+
+    TimestampedMessage(String topic, String message, long arrivalNanos) {
+        super(topic, message);
+        this.arrivalNanos = arrivalNanos;
+    }
+
+    /**
+     * Monotonic clock reading taken when the message arrived from the MQTT client, if it was
+     * added as an {@link MqttMessageView}, or else when it was added to the buffer.
+     */
+    public long arrivalNanos() {
+        return arrivalNanos;
+    }
+
+    /**
+     * Time elapsed since {@link #arrivalNanos()}, assuming the buffer uses the default
+     * {@link System#nanoTime()} ticker.
+     */
+    public long age(TimeUnit unit) {
+        return unit.convert(System.nanoTime() - arrivalNanos, TimeUnit.NANOSECONDS);
+    }
+}
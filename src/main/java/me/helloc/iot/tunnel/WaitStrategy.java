@@ -0,0 +1,18 @@
+package me.helloc.iot.tunnel;
+
+/**
+ * How a {@link RingMessageBuffer} consumer waits for a message in
+ * {@link MessageBuffer#poll(long, java.util.concurrent.TimeUnit)} and
+ * {@link MessageBuffer#take()}, and how a producer waits for room with
+ * {@link OverflowPolicy#BLOCK}. Strategies further down trade latency for CPU.
+ */
+public enum WaitStrategy {
+    /** Spins on the sequence. Lowest latency; keeps a core busy per waiting thread. */
+    BUSY_SPIN,
+    /** Spins briefly, then yields the CPU to other runnable threads between checks. */
+    YIELD,
+    /** Spins briefly, then parks for a microsecond at a time. */
+    PARK,
+    /** Sleeps on a condition signalled by the producer. Idle consumers use no CPU. */
+    BLOCKING
+}
@@ -0,0 +1,213 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedMessageBufferTest {
+    private static BoundedMessageBuffer buffer(int capacity, OverflowPolicy policy) {
+        return BoundedMessageBuffer.builder().capacity(capacity).overflowPolicy(policy).build();
+    }
+
+    private static void fill(MessageBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            buffer.add("t", "m" + i);
+        }
+    }
+
+    @Test
+    void dropOldestKeepsNewestMessages() {
+        BoundedMessageBuffer buffer = buffer(3, OverflowPolicy.DROP_OLDEST);
+        fill(buffer, 0, 5);
+
+        assertEquals(3, buffer.size());
+        assertEquals(2, buffer.droppedCount());
+        assertEquals("m2", buffer.poll().getValue());
+        assertEquals("m3", buffer.poll().getValue());
+        assertEquals("m4", buffer.poll().getValue());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    void dropNewestKeepsOldestMessages() {
+        BoundedMessageBuffer buffer = buffer(3, OverflowPolicy.DROP_NEWEST);
+        fill(buffer, 0, 5);
+
+        assertEquals(2, buffer.droppedCount());
+        assertEquals("m0", buffer.poll().getValue());
+        buffer.add("t", "m5");
+        assertEquals("m1", buffer.poll().getValue());
+        assertEquals("m2", buffer.poll().getValue());
+        assertEquals("m5", buffer.poll().getValue());
+    }
+
+    @Test
+    void blockWaitsForConsumer() throws Exception {
+        BoundedMessageBuffer buffer = buffer(2, OverflowPolicy.BLOCK);
+        fill(buffer, 0, 2);
+        CountDownLatch added = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            buffer.add("t", "m2");
+            added.countDown();
+        });
+        producer.start();
+
+        assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+        assertEquals("m0", buffer.poll().getValue());
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+        assertEquals(1, buffer.blockedCount());
+        assertEquals(0, buffer.droppedCount());
+        assertEquals("m1", buffer.poll().getValue());
+        assertEquals("m2", buffer.poll().getValue());
+    }
+
+    @Test
+    void interruptedBlockDropsMessage() throws Exception {
+        BoundedMessageBuffer buffer = buffer(1, OverflowPolicy.BLOCK);
+        buffer.add("t", "m0");
+        Thread producer = new Thread(() -> buffer.add("t", "m1"));
+        producer.start();
+        while (buffer.blockedCount() == 0) Thread.sleep(1);
+        producer.interrupt();
+        producer.join(5000);
+
+        assertEquals(1, buffer.droppedCount());
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    void spillsToDiskAndReplaysInArrivalOrder(@TempDir Path directory) throws Exception {
+        BoundedMessageBuffer buffer = BoundedMessageBuffer.builder()
+                .capacity(2)
+                .overflowPolicy(OverflowPolicy.SPILL_TO_DISK)
+                .spillDirectory(directory)
+                .build();
+        fill(buffer, 0, 6);
+        buffer.add("\uc13c\uc11c/1", "{\"v\":\"\uc628\ub3c4\"}");
+
+        assertEquals(7, buffer.size());
+        assertEquals(5, buffer.spilledSize());
+        assertEquals(5, buffer.spilledCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("m" + i, buffer.poll().getValue());
+        }
+        // Still spilling: new messages must queue behind the ones on disk.
+        buffer.add("t", "m6");
+        for (int i = 3; i < 6; i++) {
+            assertEquals("m" + i, buffer.poll().getValue());
+        }
+        Map.Entry<String, String> utf8 = buffer.poll();
+        assertEquals("\uc13c\uc11c/1", utf8.getKey());
+        assertEquals("{\"v\":\"\uc628\ub3c4\"}", utf8.getValue());
+        assertEquals("m6", buffer.poll().getValue());
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.droppedCount());
+
+        buffer.close();
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void closeReleasesBlockedProducer() throws Exception {
+        BoundedMessageBuffer buffer = buffer(1, OverflowPolicy.BLOCK);
+        buffer.add("t", "m0");
+        Thread producer = new Thread(() -> buffer.add("t", "m1"));
+        producer.start();
+        while (buffer.blockedCount() == 0) Thread.sleep(1);
+        buffer.close();
+        producer.join(5000);
+
+        assertFalse(producer.isAlive());
+        assertEquals(1, buffer.droppedCount());
+        assertEquals("m0", buffer.poll().getValue());
+    }
+
+    @Test
+    void corruptSpillRecordIsDroppedNotThrown(@TempDir Path directory) throws Exception {
+        BoundedMessageBuffer buffer = BoundedMessageBuffer.builder()
+                .capacity(1)
+                .overflowPolicy(OverflowPolicy.SPILL_TO_DISK)
+                .spillDirectory(directory)
+                .build();
+        fill(buffer, 0, 3);
+        Path spillFile;
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            spillFile = files.findFirst().orElseThrow();
+        }
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(spillFile,
+                java.nio.file.StandardOpenOption.WRITE)) {
+            channel.write(java.nio.ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE), 0);
+        }
+
+        assertEquals("m0", buffer.poll().getValue());
+        assertNull(buffer.poll());
+        assertEquals(2, buffer.droppedCount());
+        assertEquals(0, buffer.size());
+        buffer.add("t", "m3");
+        assertEquals("m3", buffer.poll().getValue());
+        buffer.close();
+    }
+
+    @Test
+    void spillFileIsCapped(@TempDir Path directory) throws Exception {
+        BoundedMessageBuffer buffer = BoundedMessageBuffer.builder()
+                .capacity(1)
+                .overflowPolicy(OverflowPolicy.SPILL_TO_DISK)
+                .spillDirectory(directory)
+                .maxSpillBytes(25)
+                .build();
+        // Each spilled "t"/"mN" record takes 4 + 1 + 4 + 2 = 11 bytes.
+        fill(buffer, 0, 5);
+        assertEquals(2, buffer.spilledSize());
+        assertEquals(2, buffer.droppedCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("m" + i, buffer.poll().getValue());
+        }
+        buffer.close();
+        assertThrows(IllegalArgumentException.class, () -> BoundedMessageBuffer.builder().maxSpillBytes(0));
+    }
+
+    @Test
+    void validatesConfiguration() {
+        assertThrows(IllegalArgumentException.class, () -> BoundedMessageBuffer.builder().capacity(0));
+        assertThrows(IllegalArgumentException.class, () -> BoundedMessageBuffer.builder()
+                .overflowPolicy(OverflowPolicy.SPILL_TO_DISK)
+                .build());
+    }
+
+    @Test
+    void consumersWaitForMessagesAndDrainInBatches(@TempDir Path directory) throws Exception {
+        BoundedMessageBuffer buffer = BoundedMessageBuffer.builder()
+                .capacity(4)
+                .overflowPolicy(OverflowPolicy.SPILL_TO_DISK)
+                .spillDirectory(directory)
+                .build();
+        assertNull(buffer.poll(20, TimeUnit.MILLISECONDS));
+
+        new Thread(() -> fill(buffer, 0, 10)).start();
+        assertEquals("m0", buffer.take().getValue());
+        List<Map.Entry<String, String>> batch = new ArrayList<>();
+        while (batch.size() < 9) {
+            Map.Entry<String, String> first = buffer.poll(5, TimeUnit.SECONDS);
+            assertNotNull(first);
+            batch.add(first);
+            buffer.drainTo(batch, 100);
+        }
+        for (int i = 0; i < 9; i++) {
+            assertEquals("m" + (i + 1), batch.get(i).getValue());
+        }
+        assertEquals(0, buffer.size());
+        buffer.close();
+    }
+}
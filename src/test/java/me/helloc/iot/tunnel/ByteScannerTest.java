@@ -0,0 +1,167 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteScannerTest {
+    private static final String[] TEXT = {
+            "temp", "airFlow", "humidity", "say \"hi\"", "back\\slash", "tab\there", "line\nbreak",
+            "{not} [structural]", "\uc628\ub3c4", "\u00b0C", "a/b", ""
+    };
+
+    @Test
+    void swarFindsTheSameBytesAsScalar() {
+        Random random = new Random(7);
+        for (int n = 0; n < 300; n++) {
+            byte[] json = sensorJson(random).getBytes(StandardCharsets.UTF_8);
+            for (int from = 0; from <= json.length; from++) {
+                int to = from + random.nextInt(json.length - from + 1);
+                assertEquals(ByteScanner.SCALAR.indexOfQuoteOrBackslash(json, from, to),
+                        ByteScanner.SWAR.indexOfQuoteOrBackslash(json, from, to));
+                assertEquals(ByteScanner.SCALAR.indexOfStructural(json, from, to),
+                        ByteScanner.SWAR.indexOfStructural(json, from, to));
+            }
+        }
+    }
+
+    @Test
+    void swarAgreesOnEveryByteValue() {
+        byte[] bytes = new byte[256 + 16];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        for (int from = 0; from < bytes.length; from++) {
+            assertEquals(ByteScanner.SCALAR.indexOfQuoteOrBackslash(bytes, from, bytes.length),
+                    ByteScanner.SWAR.indexOfQuoteOrBackslash(bytes, from, bytes.length));
+            assertEquals(ByteScanner.SCALAR.indexOfStructural(bytes, from, bytes.length),
+                    ByteScanner.SWAR.indexOfStructural(bytes, from, bytes.length));
+        }
+    }
+
+    @Test
+    void cursorSkipsValuesIdenticallyWithEitherScanner() {
+        Random random = new Random(11);
+        JsonCursor scalar = new JsonCursor(ByteScanner.SCALAR);
+        JsonCursor swar = new JsonCursor(ByteScanner.SWAR);
+        for (int n = 0; n < 300; n++) {
+            byte[] json = sensorJson(random).getBytes(StandardCharsets.UTF_8);
+            // Start at every byte, including inside strings, so malformed input is compared too.
+            for (int start = 0; start < json.length; start++) {
+                assertEquals(skip(scalar, json, start), skip(swar, json, start), "start " + start);
+            }
+        }
+    }
+
+    @Test
+    void parsesRandomSensorMessagesExactly() {
+        Random random = new Random(13);
+        for (int n = 0; n < 500; n++) {
+            Object expected = sensorMessage(random);
+            String json = write(expected, random, new StringBuilder()).toString();
+            assertEquals(expected, new SimpleJsonParser(json).parse(), json);
+            assertEquals(expected, PathQuery.compile("$").extractFirst(json, Object.class), json);
+        }
+    }
+
+    private static String skip(JsonCursor cursor, byte[] json, int start) {
+        cursor.reset(json, start, json.length - start);
+        try {
+            cursor.skipValue();
+            return cursor.pos + "/" + cursor.escaped;
+        } catch (IllegalStateException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static String sensorJson(Random random) {
+        return write(sensorMessage(random), random, new StringBuilder()).toString();
+    }
+
+    private static Map<String, Object> sensorMessage(Random random) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("id", (long) random.nextInt(10_000));
+        message.put("companyCode", String.format("%04d", random.nextInt(100)));
+        message.put("name", TEXT[random.nextInt(TEXT.length)]);
+        message.put("active", random.nextBoolean());
+        message.put("note", random.nextInt(4) == 0 ? null : TEXT[random.nextInt(TEXT.length)]);
+        List<Object> sensors = new ArrayList<>();
+        int count = random.nextInt(6);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> sensor = new LinkedHashMap<>();
+            sensor.put("type", TEXT[random.nextInt(TEXT.length)]);
+            sensor.put("value", random.nextBoolean() ? (Object) (long) (random.nextInt(2000) - 1000) : (Object) (random.nextDouble() * 100 - 50));
+            if (random.nextBoolean()) {
+                Map<String, Object> meta = new LinkedHashMap<>();
+                meta.put("tags", new ArrayList<>(List.of(TEXT[random.nextInt(TEXT.length)], (long) i)));
+                meta.put("empty", random.nextBoolean() ? new LinkedHashMap<>() : new ArrayList<>());
+                sensor.put("meta", meta);
+            }
+            sensors.add(sensor);
+        }
+        message.put("sensor", sensors);
+        return message;
+    }
+
+    private static StringBuilder write(Object value, Random random, StringBuilder out) {
+        if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) out.append(',');
+                first = false;
+                space(random, out);
+                writeString((String) entry.getKey(), random, out);
+                out.append(':');
+                space(random, out);
+                write(entry.getValue(), random, out);
+            }
+            return out.append('}');
+        }
+        if (value instanceof List) {
+            out.append('[');
+            boolean first = true;
+            for (Object element : (List<?>) value) {
+                if (!first) out.append(", ");
+                first = false;
+                write(element, random, out);
+            }
+            return out.append(']');
+        }
+        if (value instanceof String) {
+            return writeString((String) value, random, out);
+        }
+        return out.append(value);
+    }
+
+    private static StringBuilder writeString(String value, Random random, StringBuilder out) {
+        out.append('"');
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\t': out.append("\\t"); break;
+                case '/': out.append(random.nextBoolean() ? "\\/" : "/"); break;
+                default:
+                    if (c > 0x7f && random.nextBoolean()) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"');
+    }
+
+    private static void space(Random random, StringBuilder out) {
+        if (random.nextInt(3) == 0) out.append(random.nextBoolean() ? " " : "\n  ");
+    }
+}
@@ -0,0 +1,136 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressedMessageBufferTest {
+    private static String reading(int i) {
+        return "{\"id\":" + i + ",\"gateways\":[{\"id\":1},{\"id\":2}],\"companyCode\":\"0012\",\"sensor\":["
+                + "{\"type\":\"temp\",\"value\":" + (20 + i % 17) + "},"
+                + "{\"type\":\"airFlow\",\"value\":" + (i % 13) + "},"
+                + "{\"type\":\"humidity\",\"value\":" + (40 + i % 29) + "}]}";
+    }
+
+    @Test
+    void roundTripsSameShapedPayloadsInOrderWithHighRatio() {
+        CompressedMessageBuffer buffer = CompressedMessageBuffer.builder().build();
+        for (int i = 0; i < 5_000; i++) {
+            buffer.add("sensors/" + (i % 4), reading(i));
+        }
+        assertEquals(5_000, buffer.size());
+        assertTrue(buffer.compressionRatio() >= 5, "ratio " + buffer.compressionRatio());
+
+        for (int i = 0; i < 5_000; i++) {
+            Map.Entry<String, String> entry = buffer.poll();
+            assertEquals("sensors/" + (i % 4), entry.getKey());
+            assertEquals(reading(i), entry.getValue());
+        }
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.compressedBytes());
+        buffer.close();
+    }
+
+    @Test
+    void interleavedReadsAcrossSealedAndOpenBlocks() {
+        CompressedMessageBuffer buffer = CompressedMessageBuffer.builder().blockSize(1024).build();
+        List<Map.Entry<String, String>> received = new ArrayList<>();
+        int next = 0;
+        for (int round = 0; round < 200; round++) {
+            buffer.add("t", reading(next++));
+            buffer.add("t", "\ud55c\uae00 " + next++);
+            buffer.drainTo(received, 1);
+        }
+        buffer.drainTo(received, Integer.MAX_VALUE);
+        assertEquals(400, received.size());
+        for (int i = 0; i < 400; i++) {
+            String expected = i % 2 == 0 ? reading(i) : "\ud55c\uae00 " + i;
+            assertEquals(expected, received.get(i).getValue());
+        }
+        buffer.close();
+    }
+
+    @Test
+    void usesProvidedDictionary() {
+        CompressedMessageBuffer buffer = CompressedMessageBuffer.builder()
+                .blockSize(1024)
+                .compressionLevel(9)
+                .dictionary(reading(0).getBytes(StandardCharsets.UTF_8))
+                .build();
+        for (int i = 0; i < 50; i++) {
+            buffer.add("t", reading(i));
+        }
+        assertTrue(buffer.compressedBytes() > 0);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(reading(i), buffer.poll().getValue());
+        }
+        buffer.close();
+    }
+
+    @Test
+    void closeWakesBlockedConsumers() throws Exception {
+        CompressedMessageBuffer buffer = CompressedMessageBuffer.builder().build();
+        Throwable[] failure = new Throwable[1];
+        Thread taker = new Thread(() -> {
+            try {
+                buffer.take();
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        });
+        Map.Entry<?, ?>[] polled = {Map.entry("unset", "unset")};
+        Thread poller = new Thread(() -> {
+            try {
+                polled[0] = buffer.poll(1, TimeUnit.HOURS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        taker.start();
+        poller.start();
+        Thread.sleep(50);
+        buffer.close();
+        taker.join(5000);
+        poller.join(5000);
+
+        assertFalse(taker.isAlive());
+        assertFalse(poller.isAlive());
+        assertTrue(failure[0] instanceof IllegalStateException);
+        assertNull(polled[0]);
+    }
+
+    @Test
+    void topicRegistryOnlyHoldsBufferedTopics() {
+        CompressedMessageBuffer buffer = CompressedMessageBuffer.builder().blockSize(1024).build();
+        for (int i = 0; i < 500; i++) {
+            buffer.add("device/" + i, "{\"v\":" + i + "}");
+        }
+        assertEquals(500, buffer.topicCount());
+        for (int i = 0; i < 500; i++) {
+            assertEquals("device/" + i, buffer.poll().getKey());
+        }
+        assertEquals(0, buffer.topicCount());
+        buffer.add("device/7", "again");
+        assertEquals(1, buffer.topicCount());
+        assertEquals("device/7", buffer.poll().getKey());
+    }
+
+    @Test
+    void takeWakesOnAddAndCloseRejectsAdds() throws Exception {
+        CompressedMessageBuffer buffer = CompressedMessageBuffer.builder().build();
+        Thread producer = new Thread(() -> buffer.add("t", "late"));
+        producer.start();
+        assertEquals("late", buffer.take().getValue());
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+        producer.join();
+        buffer.close();
+        assertThrows(IllegalStateException.class, () -> buffer.add("t", "m"));
+        assertThrows(IllegalArgumentException.class, () -> CompressedMessageBuffer.builder().compressionLevel(0));
+    }
+}
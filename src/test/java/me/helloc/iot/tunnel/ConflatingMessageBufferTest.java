@@ -0,0 +1,84 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConflatingMessageBufferTest {
+    @Test
+    void keepsLatestPerTopicInFirstArrivalOrder() {
+        ConflatingMessageBuffer buffer = ConflatingMessageBuffer.builder().build();
+        buffer.add("a", "a1");
+        buffer.add("b", "b1");
+        buffer.add("a", "a2");
+        buffer.add("a", "a3");
+
+        assertEquals(2, buffer.size());
+        assertEquals(2, buffer.conflatedCount());
+        Map.Entry<String, String> first = buffer.poll();
+        assertEquals("a", first.getKey());
+        assertEquals("a3", first.getValue());
+        assertEquals("b1", buffer.poll().getValue());
+        assertNull(buffer.poll());
+
+        buffer.add("a", "a4");
+        assertEquals("a4", buffer.poll().getValue());
+    }
+
+    @Test
+    void conflatesByTopicAndKeyPath() {
+        ConflatingMessageBuffer buffer = ConflatingMessageBuffer.builder().keyPath("$.id").build();
+        buffer.add("sensors", "{\"id\":1,\"v\":10}");
+        buffer.add("sensors", "{\"id\":2,\"v\":20}");
+        buffer.add("sensors", "{\"id\":1,\"v\":11}");
+        buffer.add("other", "{\"id\":1,\"v\":99}");
+        buffer.add("sensors", "not json");
+        buffer.add("sensors", "{\"v\":0}");
+
+        List<Map.Entry<String, String>> drained = new ArrayList<>();
+        assertEquals(4, buffer.drainTo(drained, 10));
+        assertEquals("{\"id\":1,\"v\":11}", drained.get(0).getValue());
+        assertEquals("{\"id\":2,\"v\":20}", drained.get(1).getValue());
+        assertEquals("{\"id\":1,\"v\":99}", drained.get(2).getValue());
+        assertEquals("{\"v\":0}", drained.get(3).getValue());
+    }
+
+    @Test
+    void equalNumericKeysConflateWhateverTheirForm() {
+        ConflatingMessageBuffer buffer = ConflatingMessageBuffer.builder().keyPath("$.id").build();
+        buffer.add("sensors", "{\"id\":1,\"v\":10}");
+        buffer.add("sensors", "{\"id\":1.0,\"v\":11}");
+        buffer.add("sensors", "{\"id\":1e0,\"v\":12}");
+        buffer.add("sensors", "{\"id\":1.5,\"v\":13}");
+
+        assertEquals(2, buffer.size());
+        assertEquals("{\"id\":1e0,\"v\":12}", buffer.poll().getValue());
+        assertEquals("{\"id\":1.5,\"v\":13}", buffer.poll().getValue());
+    }
+
+    @Test
+    void memoryIsBoundedByDistinctKeys() {
+        ConflatingMessageBuffer buffer = ConflatingMessageBuffer.builder().keyPath("$.id").build();
+        for (int i = 0; i < 10_000; i++) {
+            buffer.add("sensors", "{\"id\":" + (i % 5) + ",\"v\":" + i + "}");
+        }
+        assertEquals(5, buffer.size());
+        assertEquals(9_995, buffer.conflatedCount());
+    }
+
+    @Test
+    void takeWakesOnAddAndRejectsBadPath() throws Exception {
+        ConflatingMessageBuffer buffer = ConflatingMessageBuffer.builder().build();
+        Thread producer = new Thread(() -> buffer.add("t", "late"));
+        producer.start();
+        assertEquals("late", buffer.take().getValue());
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+        producer.join();
+        assertThrows(IllegalArgumentException.class, () -> ConflatingMessageBuffer.builder().keyPath("id"));
+    }
+}
@@ -0,0 +1,111 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryMessageBufferTest {
+    @Test
+    void pollWithTimeoutReturnsNullWhenNothingArrives() throws Exception {
+        InMemoryMessageBuffer buffer = new InMemoryMessageBuffer();
+        long start = System.nanoTime();
+
+        assertNull(buffer.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void takeWakesUpWhenMessageArrives() throws Exception {
+        InMemoryMessageBuffer buffer = new InMemoryMessageBuffer();
+        ExecutorService consumer = Executors.newSingleThreadExecutor();
+        try {
+            Future<Map.Entry<String, String>> taken = consumer.submit(buffer::take);
+            Thread.sleep(50);
+            assertFalse(taken.isDone());
+
+            buffer.add("t", "m0");
+            assertEquals("m0", taken.get(5, TimeUnit.SECONDS).getValue());
+        } finally {
+            consumer.shutdownNow();
+        }
+    }
+
+    @Test
+    void manyConsumersReceiveEveryMessageOnce() throws Exception {
+        InMemoryMessageBuffer buffer = new InMemoryMessageBuffer();
+        int messages = 20_000;
+        ExecutorService consumers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> counts = new ArrayList<>();
+            for (int c = 0; c < 4; c++) {
+                counts.add(consumers.submit(() -> {
+                    int received = 0;
+                    while (buffer.poll(200, TimeUnit.MILLISECONDS) != null) received++;
+                    return received;
+                }));
+            }
+            for (int i = 0; i < messages; i++) {
+                buffer.add("t", "m" + i);
+            }
+            int total = 0;
+            for (Future<Integer> count : counts) total += count.get(10, TimeUnit.SECONDS);
+            assertEquals(messages, total);
+        } finally {
+            consumers.shutdownNow();
+        }
+    }
+
+    @Test
+    void drainToTransfersABatchInOrder() {
+        InMemoryMessageBuffer buffer = new InMemoryMessageBuffer();
+        for (int i = 0; i < 5; i++) buffer.add("t", "m" + i);
+        List<Map.Entry<String, String>> batch = new ArrayList<>();
+
+        assertEquals(3, buffer.drainTo(batch, 3));
+        assertEquals(2, buffer.drainTo(batch, 100));
+        assertEquals(0, buffer.drainTo(batch, 100));
+        for (int i = 0; i < 5; i++) assertEquals("m" + i, batch.get(i).getValue());
+    }
+
+    @Test
+    void defaultMethodsWorkForCustomBuffers() throws Exception {
+        MessageBuffer custom = new MessageBuffer() {
+            private final Queue<Map.Entry<String, String>> queue = new ArrayDeque<>();
+
+            @Override
+            public synchronized void add(String topic, String message) {
+                queue.add(new AbstractMap.SimpleEntry<>(topic, message));
+            }
+
+            @Override
+            public synchronized Map.Entry<String, String> poll() {
+                return queue.poll();
+            }
+        };
+        assertNull(custom.poll(20, TimeUnit.MILLISECONDS));
+        new Thread(() -> {
+            try {
+                Thread.sleep(30);
+            } catch (InterruptedException ignore) {
+            }
+            custom.add("t", "late");
+        }).start();
+
+        assertEquals("late", custom.take().getValue());
+        custom.add("t", "a");
+        custom.add("t", "b");
+        List<Map.Entry<String, String>> batch = new ArrayList<>();
+        assertEquals(2, custom.drainTo(batch, 10));
+    }
+}
@@ -0,0 +1,96 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexedMessageTest {
+    private static final String MESSAGE = "{\"id\":7, \"companyCode\":\"0012\"," +
+            "\"meta\":{\"fw\":3,\"tags\":[\"a\",\"b\"]}," +
+            "\"na\\u006De\":\"escaped\"," +
+            "\"sensor\":[{\"type\":\"temp\",\"value\":39.5},{\"type\":\"airFlow\",\"value\":12},[]]}";
+
+    @Test
+    void recordsEveryKeyAndValueWithSubtreeBounds() {
+        IndexedMessage indexed = IndexedMessage.of("{\"a\":[1,{\"b\":null}],\"c\":\"x\"}");
+
+        // {  "a"  [  1  {  "b"  null  "c"  "x"
+        assertEquals(9, indexed.size());
+        assertEquals(IndexedMessage.OBJECT, indexed.kind(0));
+        assertEquals(9, indexed.next(0));
+        assertEquals(IndexedMessage.KEY, indexed.kind(1));
+        assertEquals(IndexedMessage.ARRAY, indexed.kind(2));
+        assertEquals(7, indexed.next(2));
+        assertEquals(IndexedMessage.OBJECT, indexed.kind(4));
+        assertEquals(IndexedMessage.SCALAR, indexed.kind(6));
+        assertEquals(7, indexed.next(4));
+        assertEquals("\"x\"", new String(indexed.json, indexed.start(8), indexed.end(8) - indexed.start(8), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void answersQueriesLikeADirectScan() {
+        IndexedMessage indexed = IndexedMessage.of(MESSAGE);
+        String[] paths = {
+                "$.id", "$.companyCode", "$.meta", "$.meta.fw", "$.meta.tags[1]", "$.name",
+                "$.sensor[0].value", "$.sensor[1].type", "$.sensor[2]", "$.sensor[3]", "$.missing", "$"
+        };
+        for (String path : paths) {
+            PathQuery query = PathQuery.compile(path);
+            assertEquals(query.extractFirst(MESSAGE, Object.class), query.extractFirst(indexed, Object.class), path);
+            PathQuery filtered = query.where("$.sensor[1].value", 12);
+            assertEquals(filtered.extractFirst(MESSAGE, Object.class), filtered.extractFirst(indexed, Object.class), path);
+            PathQuery rejected = query.where("$.meta.fw", 4);
+            assertNull(rejected.extractFirst(indexed, Object.class), path);
+        }
+    }
+
+    @Test
+    void servesManyQueriesFromOneIndex() {
+        IndexedMessage indexed = IndexedMessage.of(ByteBuffer.wrap(MESSAGE.getBytes(StandardCharsets.UTF_8)));
+        PathQuery row = PathQuery.compile("$.sensor[0].value", "$.sensor[1].value", "$.meta", "$.meta.tags")
+                .where("$.companyCode", "0012");
+        QueryResult result = row.newResult();
+
+        assertTrue(row.extractAll(indexed, result));
+        assertEquals(39.5, result.getDouble(0));
+        assertEquals(12L, result.getLong(1));
+        assertEquals(3L, result.get(2, Map.class).get("fw"));
+        assertEquals(Arrays.asList("a", "b"), result.get(3, List.class));
+
+        assertEquals(7L, PathQuery.compile("$.id").extractLong(indexed, -1L));
+        assertEquals(39.5, PathQuery.compile("$.sensor[0].value").extractDouble(indexed, Double.NaN));
+        assertTrue(PathQuery.compile().where("$.sensor[0].type", "temp").matches(indexed));
+        PathQuery wrongCompany = PathQuery.compile().where("$.companyCode", "0013");
+        assertFalse(wrongCompany.matches(indexed));
+        assertEquals(1, wrongCompany.rejectedCount());
+    }
+
+    @Test
+    void rejectsMalformedMessages() {
+        assertThrows(IllegalArgumentException.class, () -> IndexedMessage.of("{\"id\":1,"));
+        assertThrows(IllegalArgumentException.class, () -> IndexedMessage.of("{\"id\":1} trailing"));
+        assertThrows(IllegalArgumentException.class, () -> IndexedMessage.of(""));
+    }
+
+    @Test
+    void negativeIndexMatchesNothingOnBothPaths() {
+        String[][] cases = {
+                {"$.s[-1]", "{\"s\":[1,2]}"},
+                {"$.s[-1].v", "{\"s\":[{\"v\":1}]}"},
+                {"$.a[?(@.v[-1]==1)].n", "{\"a\":[{\"v\":[1],\"n\":5}]}"},
+        };
+        for (String[] c : cases) {
+            PathQuery query = PathQuery.compile(c[0]);
+            assertNull(query.extractFirst(c[1], Object.class), c[0]);
+            assertNull(query.extractFirst(IndexedMessage.of(c[1]), Object.class), c[0]);
+        }
+        PathQuery second = PathQuery.compile("$.s[1]");
+        assertEquals(2L, second.extractFirst(IndexedMessage.of("{\"s\":[1,2]}"), Object.class));
+    }
+}
@@ -0,0 +1,97 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InflightWindowTest {
+    @Test
+    void commitAcknowledgesOldestFirst() {
+        InflightWindow window = new InflightWindow(10);
+        List<Integer> added = new CopyOnWriteArrayList<>();
+        List<Integer> acked = new CopyOnWriteArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            int id = i;
+            window.add(() -> added.add(id), () -> acked.add(id));
+        }
+        assertEquals(List.of(1, 2, 3, 4, 5), added);
+        assertTrue(acked.isEmpty());
+        assertEquals(5, window.deliveredOffset());
+
+        window.commit(2);
+        assertEquals(List.of(1, 2), acked);
+        window.commitOffset(4);
+        window.commitOffset(3);
+        assertEquals(List.of(1, 2, 3, 4), acked);
+        assertEquals(4, window.committedOffset());
+        assertEquals(1, window.inflightCount());
+
+        assertThrows(IllegalArgumentException.class, () -> window.commit(2));
+        assertThrows(IllegalArgumentException.class, () -> window.commitOffset(6));
+    }
+
+    @Test
+    void fullWindowBlocksUntilCommit() throws Exception {
+        InflightWindow window = new InflightWindow(2);
+        window.add(() -> { }, () -> { });
+        window.add(() -> { }, () -> { });
+        CountDownLatch added = new CountDownLatch(1);
+        Thread producer = new Thread(() -> window.add(added::countDown, () -> { }));
+        producer.start();
+        assertFalse(added.await(50, TimeUnit.MILLISECONDS));
+
+        window.commit(1);
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+        producer.join();
+        assertEquals(2, window.inflightCount());
+        assertEquals(3, window.deliveredOffset());
+    }
+
+    @Test
+    void interruptedAddDropsAndAcknowledgesMessage() throws Exception {
+        InflightWindow window = new InflightWindow(1);
+        window.add(() -> { }, () -> { });
+        CountDownLatch acked = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            window.add(() -> fail("added while interrupted"), acked::countDown);
+            assertTrue(Thread.currentThread().isInterrupted());
+        });
+        producer.start();
+        producer.interrupt();
+        producer.join();
+        assertEquals(0, acked.getCount());
+        assertEquals(1, window.droppedCount());
+        assertEquals(1, window.deliveredOffset());
+        assertEquals(1, window.inflightCount());
+    }
+
+    @Test
+    void blockedBufferDoesNotHoldUpCommits() throws Exception {
+        InflightWindow window = new InflightWindow(4);
+        window.add(() -> { }, () -> { });
+        CountDownLatch adding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread producer = new Thread(() -> window.add(() -> {
+            adding.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, () -> { }));
+        producer.start();
+        assertTrue(adding.await(5, TimeUnit.SECONDS));
+
+        window.commit(1);
+        assertEquals(1, window.committedOffset());
+        release.countDown();
+        producer.join();
+        assertEquals(2, window.deliveredOffset());
+        assertEquals(1, window.inflightCount());
+    }
+}
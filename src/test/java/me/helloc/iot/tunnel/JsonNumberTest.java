@@ -0,0 +1,87 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonNumberTest {
+    private final JsonNumber number = new JsonNumber();
+
+    private boolean read(String text) {
+        byte[] bytes = ("[" + text + "]").getBytes(StandardCharsets.US_ASCII);
+        return number.read(bytes, 1, bytes.length - 1);
+    }
+
+    @Test
+    void readsIntegersAsLongs() {
+        assertTrue(read("0"));
+        assertTrue(number.integral);
+        assertEquals(0L, number.longValue);
+
+        assertTrue(read("-42"));
+        assertEquals(-42L, number.longValue);
+        assertEquals(-42.0, number.doubleValue);
+
+        assertTrue(read("9223372036854775807"));
+        assertTrue(number.integral);
+        assertEquals(Long.MAX_VALUE, number.longValue);
+
+        assertTrue(read("-9223372036854775808"));
+        assertTrue(number.integral);
+        assertEquals(Long.MIN_VALUE, number.longValue);
+    }
+
+    @Test
+    void readsDecimalsAndOverflowAsDoubles() {
+        assertTrue(read("39.5"));
+        assertFalse(number.integral);
+        assertEquals(39.5, number.doubleValue);
+        assertEquals(39L, number.longValue);
+
+        assertTrue(read("9223372036854775808"));
+        assertFalse(number.integral);
+        assertEquals(9.223372036854775808E18, number.doubleValue);
+
+        assertTrue(read("-1.5E2"));
+        assertEquals(-150.0, number.doubleValue);
+
+        assertTrue(read("-0.0"));
+        assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(number.doubleValue));
+
+        assertTrue(read("1e400"));
+        assertEquals(Double.POSITIVE_INFINITY, number.doubleValue);
+    }
+
+    @Test
+    void reportsMalformedNumbersWithoutThrowing() {
+        assertFalse(read("-"));
+        assertFalse(read("1e"));
+        assertFalse(read("1.2.3"));
+        assertFalse(read("12a"));
+        assertFalse(read(""));
+    }
+
+    @Test
+    void matchesJdkParsingOnRandomReadings() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            String text;
+            switch (i % 4) {
+                case 0: text = Double.toString(random.nextDouble() * 200 - 100); break;
+                case 1: text = String.format(Locale.ROOT, "%.3f", random.nextGaussian() * 1000); break;
+                case 2: text = Long.toString(random.nextLong()); break;
+                default: text = random.nextInt(100000) + "." + random.nextInt(1000) + "e" + (random.nextInt(40) - 20);
+            }
+            assertTrue(read(text), text);
+            if (number.integral) {
+                assertEquals(Long.parseLong(text), number.longValue, text);
+            } else {
+                assertEquals(Double.parseDouble(text), number.doubleValue, text);
+            }
+        }
+    }
+}
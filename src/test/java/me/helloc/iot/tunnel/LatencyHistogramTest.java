@@ -0,0 +1,39 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void percentilesAreBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1_000);
+        }
+        histogram.record(1_000_000);
+
+        assertEquals(100, histogram.count());
+        long p50 = histogram.percentile(50, TimeUnit.NANOSECONDS);
+        assertTrue(p50 >= 1_000 && p50 < 2_000, "p50=" + p50);
+        long p100 = histogram.percentile(100, TimeUnit.NANOSECONDS);
+        assertEquals(1_000_000, p100);
+        assertEquals(1, histogram.max(TimeUnit.MILLISECONDS));
+        assertEquals(10_990, histogram.mean(TimeUnit.NANOSECONDS), 0.001);
+    }
+
+    @Test
+    void emptyAndResetHistogramsReportZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(99, TimeUnit.NANOSECONDS));
+        histogram.record(-5);
+        histogram.record(0);
+        assertEquals(0, histogram.percentile(100, TimeUnit.NANOSECONDS));
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.mean(TimeUnit.NANOSECONDS));
+        assertThrows(IllegalArgumentException.class, () -> histogram.percentile(101, TimeUnit.NANOSECONDS));
+    }
+}
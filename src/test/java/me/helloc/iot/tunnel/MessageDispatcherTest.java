@@ -0,0 +1,126 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageDispatcherTest {
+    @Test
+    void inlineRunsOnCallingThread() {
+        MessageDispatcher dispatcher = MessageDispatcher.inline();
+        Thread caller = Thread.currentThread();
+        List<Thread> ran = new ArrayList<>();
+        dispatcher.dispatch("t", () -> ran.add(Thread.currentThread()));
+        assertSame(caller, ran.get(0));
+        assertEquals(1, dispatcher.handlerTimes().count());
+        assertThrows(IllegalStateException.class,
+                () -> dispatcher.dispatch("t", () -> { throw new IllegalStateException("boom"); }));
+    }
+
+    @Test
+    void poolKeepsPerTopicOrder() throws Exception {
+        MessageDispatcher dispatcher = MessageDispatcher.pool(4, 100);
+        Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+        for (int i = 0; i < 2_000; i++) {
+            String topic = "t" + (i % 8);
+            int sequence = i;
+            dispatcher.dispatch(topic, () -> seen.computeIfAbsent(topic, k -> Collections.synchronizedList(new ArrayList<>())).add(sequence));
+        }
+        assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+
+        assertEquals(8, seen.size());
+        for (List<Integer> sequences : seen.values()) {
+            assertEquals(250, sequences.size());
+            for (int i = 1; i < sequences.size(); i++) {
+                assertTrue(sequences.get(i - 1) < sequences.get(i));
+            }
+        }
+        assertEquals(2_000, dispatcher.handlerTimes().count());
+        assertEquals(0, dispatcher.queueDepth());
+    }
+
+    @Test
+    void slowTopicDoesNotStallOthers() throws Exception {
+        MessageDispatcher dispatcher = MessageDispatcher.pool(2, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch fast = new CountDownLatch(1);
+        dispatcher.dispatch("slow", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.dispatch("slow", () -> { });
+        dispatcher.dispatch("fast", fast::countDown);
+
+        assertTrue(fast.await(5, TimeUnit.SECONDS));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(1, dispatcher.queueDepth());
+        release.countDown();
+        assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.queueDepth());
+    }
+
+    @Test
+    void failuresAreCountedAndClosedDispatcherDrops() throws Exception {
+        MessageDispatcher dispatcher = MessageDispatcher.pool(1, 10);
+        CountDownLatch after = new CountDownLatch(1);
+        dispatcher.dispatch("t", () -> { throw new IllegalStateException("boom"); });
+        dispatcher.dispatch("t", after::countDown);
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        assertEquals(1, dispatcher.failedCount());
+
+        assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+        dispatcher.dispatch("t", () -> fail("delivered after shutdown"));
+        assertEquals(1, dispatcher.droppedCount());
+        assertEquals(0, dispatcher.queueDepth());
+    }
+
+    @Test
+    void errorDoesNotWedgeTheLane() throws Exception {
+        MessageDispatcher dispatcher = MessageDispatcher.pool(1, 10);
+        CountDownLatch after = new CountDownLatch(1);
+        dispatcher.dispatch("t", () -> { throw new AssertionError("boom"); });
+        dispatcher.dispatch("t", after::countDown);
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        assertEquals(1, dispatcher.failedCount());
+        assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void drainedLanesAreRemoved() throws Exception {
+        MessageDispatcher dispatcher = MessageDispatcher.pool(4, 100);
+        CountDownLatch delivered = new CountDownLatch(1_000);
+        for (int i = 0; i < 1_000; i++) {
+            dispatcher.dispatch("device/" + i, delivered::countDown);
+        }
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(0, dispatcher.laneCount());
+    }
+
+    @Test
+    void virtualThreadsDependOnRuntime() throws Exception {
+        if (MessageDispatcher.virtualThreadsAvailable()) {
+            MessageDispatcher dispatcher = MessageDispatcher.virtualThreads(10);
+            CountDownLatch ran = new CountDownLatch(1);
+            dispatcher.dispatch("t", ran::countDown);
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+            dispatcher.close();
+        } else {
+            assertThrows(IllegalStateException.class, () -> MessageDispatcher.virtualThreads(10));
+        }
+        assertThrows(IllegalArgumentException.class, () -> MessageDispatcher.pool(0, 10));
+    }
+}
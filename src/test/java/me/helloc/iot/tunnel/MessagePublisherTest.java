@@ -0,0 +1,153 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessagePublisherTest {
+    private static MqttMessageView message(int id) {
+        return new MqttMessageView("t", ("m" + id).getBytes(), 1, id, false, 0L);
+    }
+
+    /**
+     * Records signals and leaves requesting to the test.
+     */
+    private static class RecordingSubscriber implements Flow.Subscriber<MqttMessageView> {
+        final List<Integer> received = new CopyOnWriteArrayList<>();
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+        volatile boolean completed;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(MqttMessageView item) {
+            received.add(item.id());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Test
+    void emitsAndAcksOnlyWithinDemand() {
+        MessagePublisher publisher = new MessagePublisher(1_000);
+        List<Integer> acked = new CopyOnWriteArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            int id = i;
+            publisher.offer(message(i), () -> acked.add(id));
+        }
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        assertTrue(subscriber.received.isEmpty());
+        assertEquals(5, publisher.pendingCount());
+
+        subscriber.subscription.request(2);
+        assertEquals(List.of(1, 2), subscriber.received);
+        assertEquals(List.of(1, 2), acked);
+        assertEquals(3, publisher.pendingCount());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        publisher.offer(message(6), () -> acked.add(6));
+        assertEquals(List.of(1, 2, 3, 4, 5, 6), acked);
+        assertEquals(0, publisher.pendingCount());
+    }
+
+    @Test
+    void nextSubscriberGetsWhatTheCancelledOneLeft() {
+        MessagePublisher publisher = new MessagePublisher(1_000);
+        publisher.offer(message(1), () -> { });
+        publisher.offer(message(2), () -> { });
+        RecordingSubscriber first = new RecordingSubscriber();
+        publisher.subscribe(first);
+        RecordingSubscriber rejected = new RecordingSubscriber();
+        publisher.subscribe(rejected);
+        assertInstanceOf(IllegalStateException.class, rejected.error);
+
+        first.subscription.request(1);
+        first.subscription.cancel();
+        RecordingSubscriber second = new RecordingSubscriber();
+        publisher.subscribe(second);
+        second.subscription.request(10);
+        assertEquals(List.of(1), first.received);
+        assertEquals(List.of(2), second.received);
+    }
+
+    @Test
+    void throwingSubscriberKeepsMessageUnacked() {
+        MessagePublisher publisher = new MessagePublisher(1_000);
+        AtomicInteger acks = new AtomicInteger();
+        publisher.offer(message(1), acks::incrementAndGet);
+        publisher.subscribe(new RecordingSubscriber() {
+            @Override
+            public void onNext(MqttMessageView item) {
+                throw new IllegalStateException("boom");
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(1);
+            }
+        });
+        assertEquals(0, acks.get());
+        assertEquals(1, publisher.pendingCount());
+
+        RecordingSubscriber next = new RecordingSubscriber();
+        publisher.subscribe(next);
+        next.subscription.request(1);
+        assertEquals(List.of(1), next.received);
+        assertEquals(1, acks.get());
+    }
+
+    @Test
+    void qos0MessagesBeyondTheCapAreDropped() {
+        MessagePublisher publisher = new MessagePublisher(2);
+        for (int i = 1; i <= 4; i++) {
+            publisher.offer(new MqttMessageView("t", new byte[0], 0, 0, false, 0L), () -> { });
+        }
+        publisher.offer(message(9), () -> { });
+        assertEquals(3, publisher.pendingCount());
+        assertEquals(2, publisher.droppedCount());
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(3);
+        assertEquals(List.of(0, 0, 9), subscriber.received);
+        publisher.offer(new MqttMessageView("t", new byte[0], 0, 0, false, 0L), () -> { });
+        assertEquals(1, publisher.pendingCount());
+        assertEquals(2, publisher.droppedCount());
+    }
+
+    @Test
+    void invalidRequestAndCompletionTerminate() {
+        MessagePublisher publisher = new MessagePublisher(1_000);
+        RecordingSubscriber invalid = new RecordingSubscriber();
+        publisher.subscribe(invalid);
+        invalid.subscription.request(0);
+        assertInstanceOf(IllegalArgumentException.class, invalid.error);
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        publisher.offer(message(1), () -> fail("acked after completion"));
+        publisher.complete();
+        assertTrue(subscriber.completed);
+        assertEquals(0, publisher.pendingCount());
+        assertTrue(subscriber.received.isEmpty());
+    }
+}
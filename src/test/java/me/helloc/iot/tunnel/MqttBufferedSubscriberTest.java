@@ -4,10 +4,15 @@ import org.eclipse.paho.client.mqttv3.*;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -110,4 +115,309 @@ class MqttBufferedSubscriberTest {
         verify(client, times(2)).subscribe("test", 2);
         verify(listener, times(2)).onConnected();
     }
+
+    @Test
+    void dispatcherDeliversOffCallbackThread() throws Exception {
+        MqttAsyncClient client = mock(MqttAsyncClient.class);
+        InMemoryMessageBuffer buffer = new InMemoryMessageBuffer();
+        MqttBufferedSubscriber manager = MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .clientSupplier(() -> client)
+                .scheduler(mock(ScheduledExecutorService.class))
+                .messageBuffer(buffer)
+                .dispatcher(MessageDispatcher.pool(2, 16))
+                .build();
+        List<Thread> deliveredOn = new CopyOnWriteArrayList<>();
+        manager.addMessageListener(new MqttBufferedSubscriber.DefaultMessageListener() {
+            @Override
+            public void onMessageReceived(String topic, String message) {
+                deliveredOn.add(Thread.currentThread());
+            }
+        });
+
+        ArgumentCaptor<MqttCallbackExtended> callbackCaptor = ArgumentCaptor.forClass(MqttCallbackExtended.class);
+        verify(client).setCallback(callbackCaptor.capture());
+        callbackCaptor.getValue().messageArrived("sensors/1", new MqttMessage("{\"v\":1}".getBytes()));
+
+        Map.Entry<String, String> entry = buffer.poll(5, TimeUnit.SECONDS);
+        assertEquals("{\"v\":1}", entry.getValue());
+        assertNotSame(Thread.currentThread(), deliveredOn.get(0));
+        assertTrue(manager.dispatcher().shutdown(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void rawListenersSeeBytesAndAdaptersOnlyGetOverriddenCallbacks() throws Exception {
+        MqttAsyncClient client = mock(MqttAsyncClient.class);
+        OffHeapMessageBuffer buffer = OffHeapMessageBuffer.builder().build();
+        MqttBufferedSubscriber manager = MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .clientSupplier(() -> client)
+                .scheduler(mock(ScheduledExecutorService.class))
+                .messageBuffer(buffer)
+                .build();
+        List<MqttMessageView> raw = new CopyOnWriteArrayList<>();
+        List<String> received = new CopyOnWriteArrayList<>();
+        MqttBufferedSubscriber.RawMessageListener rawListener = raw::add;
+        manager.addRawMessageListener(rawListener);
+        MqttBufferedSubscriber.MessageListener adapter = new MqttBufferedSubscriber.DefaultMessageListener() {
+            @Override
+            public void onMessageReceived(String topic, String message) {
+                received.add(message);
+            }
+        };
+        manager.addMessageListener(adapter);
+
+        ArgumentCaptor<MqttCallbackExtended> callbackCaptor = ArgumentCaptor.forClass(MqttCallbackExtended.class);
+        verify(client).setCallback(callbackCaptor.capture());
+        MqttMessage message = new MqttMessage("{\"v\":1}".getBytes());
+        message.setQos(1);
+        message.setId(7);
+        callbackCaptor.getValue().messageArrived("sensors/1", message);
+
+        assertSame(message.getPayload(), raw.get(0).payload());
+        assertEquals(7, raw.get(0).id());
+        assertEquals(List.of("{\"v\":1}"), received);
+        assertEquals("{\"v\":1}", buffer.poll().getValue());
+
+        manager.removeMessageListener(adapter);
+        manager.removeRawMessageListener(rawListener);
+        callbackCaptor.getValue().messageArrived("sensors/1", message);
+        assertEquals(1, received.size());
+        assertEquals(1, raw.size());
+    }
+
+    @Test
+    void shardsSubscribeToSharedTopicAndFeedOneBuffer() throws Exception {
+        List<MqttAsyncClient> clients = new CopyOnWriteArrayList<>();
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        when(scheduler.schedule(any(Runnable.class), anyLong(), any()))
+                .thenReturn(mock(ScheduledFuture.class));
+        InMemoryMessageBuffer buffer = new InMemoryMessageBuffer();
+        MqttBufferedSubscriber manager = MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .addTopic("sensors/#")
+                .shards(3)
+                .sharedGroup("ingest")
+                .initialDelay(300)
+                .clientSupplier(() -> {
+                    MqttAsyncClient client = mock(MqttAsyncClient.class);
+                    when(client.getClientId()).thenReturn("c" + clients.size());
+                    clients.add(client);
+                    return client;
+                })
+                .scheduler(scheduler)
+                .messageBuffer(buffer)
+                .build();
+        assertEquals(3, manager.shardCount());
+        MqttBufferedSubscriber.ConnectionListener listener = mock(MqttBufferedSubscriber.ConnectionListener.class);
+        manager.addListener(listener);
+
+        List<IMqttActionListener> connects = new CopyOnWriteArrayList<>();
+        List<MqttCallbackExtended> callbacks = new CopyOnWriteArrayList<>();
+        for (MqttAsyncClient client : clients) {
+            when(client.connect(any(MqttConnectOptions.class), isNull(), any())).thenAnswer(invocation -> {
+                connects.add(invocation.getArgument(2));
+                return mock(IMqttToken.class);
+            });
+            ArgumentCaptor<MqttCallbackExtended> callbackCaptor = ArgumentCaptor.forClass(MqttCallbackExtended.class);
+            verify(client).setCallback(callbackCaptor.capture());
+            callbacks.add(callbackCaptor.getValue());
+        }
+
+        manager.connect();
+        for (IMqttActionListener connect : connects) {
+            connect.onSuccess(mock(IMqttToken.class));
+        }
+        for (MqttAsyncClient client : clients) {
+            verify(client).subscribe("$share/ingest/sensors/#", 1);
+        }
+
+        callbacks.get(0).messageArrived("sensors/1", new MqttMessage("a".getBytes()));
+        callbacks.get(2).messageArrived("sensors/2", new MqttMessage("b".getBytes()));
+        callbacks.get(2).connectionLost(new MqttException(0));
+        assertEquals("a", buffer.poll().getValue());
+        assertEquals("b", buffer.poll().getValue());
+        verify(scheduler).schedule(any(Runnable.class), eq(500L), eq(TimeUnit.MILLISECONDS));
+        for (int shard = 0; shard < 3; shard++) {
+            verify(listener).onConnected(shard);
+        }
+        verify(listener).onConnectionLost(eq(2), any(MqttException.class));
+        verify(listener, never()).onConnectionLost(eq(0), any());
+
+        List<MqttBufferedSubscriber.ShardStats> stats = manager.shardStats();
+        assertEquals("c2", stats.get(2).clientId());
+        assertEquals(1, stats.get(0).messageCount());
+        assertEquals(0, stats.get(1).messageCount());
+        assertFalse(stats.get(2).connected());
+        assertEquals(1, stats.get(2).reconnectCount());
+        assertTrue(stats.get(1).connected());
+
+        assertThrows(IllegalArgumentException.class, () -> MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883").shards(2).build());
+        assertThrows(IllegalArgumentException.class, () -> MqttBufferedSubscriber.builder().sharedGroup("a/b"));
+    }
+
+    @Test
+    void flowControlAcksOnlyRequestedMessages() throws Exception {
+        MqttAsyncClient client = mock(MqttAsyncClient.class);
+        InMemoryMessageBuffer buffer = new InMemoryMessageBuffer();
+        MqttBufferedSubscriber manager = MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .clientSupplier(() -> client)
+                .scheduler(mock(ScheduledExecutorService.class))
+                .messageBuffer(buffer)
+                .flowControl(true)
+                .build();
+        verify(client).setManualAcks(true);
+        List<String> received = new CopyOnWriteArrayList<>();
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        manager.publisher().subscribe(new Flow.Subscriber<MqttMessageView>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(MqttMessageView item) {
+                received.add(item.text());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        ArgumentCaptor<MqttCallbackExtended> callbackCaptor = ArgumentCaptor.forClass(MqttCallbackExtended.class);
+        verify(client).setCallback(callbackCaptor.capture());
+        MqttCallbackExtended callback = callbackCaptor.getValue();
+        for (int id = 1; id <= 3; id++) {
+            MqttMessage message = new MqttMessage(("m" + id).getBytes());
+            message.setQos(1);
+            message.setId(id);
+            callback.messageArrived("t", message);
+        }
+        verify(client, never()).messageArrivedComplete(anyInt(), anyInt());
+
+        subscription[0].request(1);
+        assertEquals(List.of("m1"), received);
+        verify(client).messageArrivedComplete(1, 1);
+
+        callback.connectionLost(new MqttException(0));
+        subscription[0].request(5);
+        assertEquals(List.of("m1", "m2", "m3"), received);
+        verify(client, never()).messageArrivedComplete(eq(2), anyInt());
+        assertNull(buffer.poll());
+        assertThrows(IllegalStateException.class, () -> MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883").clientSupplier(() -> client).build().publisher());
+        assertThrows(IllegalArgumentException.class, () -> MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883").flowControl(true).qos(0).build());
+    }
+
+    @Test
+    void ackWindowAcksOnCommitOnly() throws Exception {
+        MqttAsyncClient client = mock(MqttAsyncClient.class);
+        InMemoryMessageBuffer buffer = new InMemoryMessageBuffer();
+        MqttBufferedSubscriber manager = MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .clientSupplier(() -> client)
+                .scheduler(mock(ScheduledExecutorService.class))
+                .messageBuffer(buffer)
+                .ackWindow(8)
+                .build();
+        verify(client).setManualAcks(true);
+
+        ArgumentCaptor<MqttCallbackExtended> callbackCaptor = ArgumentCaptor.forClass(MqttCallbackExtended.class);
+        verify(client).setCallback(callbackCaptor.capture());
+        for (int id = 1; id <= 3; id++) {
+            MqttMessage message = new MqttMessage(("m" + id).getBytes());
+            message.setQos(1);
+            message.setId(id);
+            callbackCaptor.getValue().messageArrived("t", message);
+        }
+        assertEquals("m1", buffer.poll().getValue());
+        assertEquals("m2", buffer.poll().getValue());
+        verify(client, never()).messageArrivedComplete(anyInt(), anyInt());
+
+        InflightWindow window = manager.inflightWindow();
+        assertEquals(3, window.inflightCount());
+        window.commit(2);
+        verify(client).messageArrivedComplete(1, 1);
+        verify(client).messageArrivedComplete(2, 1);
+        verify(client, never()).messageArrivedComplete(eq(3), anyInt());
+
+        assertThrows(IllegalArgumentException.class, () -> MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883").ackWindow(8).flowControl(true).build());
+    }
+
+    @Test
+    void ackWindowRejectsBuffersThatDropMessages() {
+        BoundedMessageBuffer dropping = BoundedMessageBuffer.builder()
+                .capacity(2)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                .build();
+        assertThrows(IllegalArgumentException.class, () -> MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .clientSupplier(() -> mock(MqttAsyncClient.class))
+                .scheduler(mock(ScheduledExecutorService.class))
+                .messageBuffer(dropping)
+                .ackWindow(8)
+                .build());
+        assertThrows(IllegalArgumentException.class, () -> MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .messageBuffer(ConflatingMessageBuffer.builder().build())
+                .ackWindow(8)
+                .build());
+        assertThrows(IllegalArgumentException.class, () -> MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .messageBuffer(PartitionedMessageBuffer.builder().build())
+                .ackWindow(8)
+                .build());
+
+        MqttBufferedSubscriber blocking = MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .clientSupplier(() -> mock(MqttAsyncClient.class))
+                .scheduler(mock(ScheduledExecutorService.class))
+                .messageBuffer(BoundedMessageBuffer.builder().capacity(2).overflowPolicy(OverflowPolicy.BLOCK).build())
+                .ackWindow(8)
+                .build();
+        assertEquals(8, blocking.inflightWindow().maxInflight());
+    }
+
+    @Test
+    void ackWindowIsClampedToBrokerReceiveMaximum() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        MqttBufferedSubscriber single = MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .clientSupplier(() -> mock(MqttAsyncClient.class))
+                .scheduler(scheduler)
+                .ackWindow(1_000)
+                .brokerReceiveMaximum(20)
+                .build();
+        assertEquals(20, single.inflightWindow().maxInflight());
+
+        MqttBufferedSubscriber sharded = MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .clientSupplier(() -> mock(MqttAsyncClient.class))
+                .scheduler(scheduler)
+                .shards(3)
+                .sharedGroup("ingest")
+                .ackWindow(1_000)
+                .brokerReceiveMaximum(20)
+                .build();
+        assertEquals(60, sharded.inflightWindow().maxInflight());
+
+        MqttBufferedSubscriber small = MqttBufferedSubscriber.builder()
+                .brokerUrl("tcp://localhost:1883")
+                .clientSupplier(() -> mock(MqttAsyncClient.class))
+                .scheduler(scheduler)
+                .ackWindow(8)
+                .brokerReceiveMaximum(20)
+                .build();
+        assertEquals(8, small.inflightWindow().maxInflight());
+        assertThrows(IllegalArgumentException.class, () -> MqttBufferedSubscriber.builder().brokerReceiveMaximum(0));
+    }
 }
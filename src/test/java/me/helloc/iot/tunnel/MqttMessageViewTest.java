@@ -0,0 +1,36 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MqttMessageViewTest {
+    @Test
+    void decodesTextOnceAndSharesPayload() {
+        byte[] payload = "{\"temp\":\"\u00b0C\"}".getBytes(StandardCharsets.UTF_8);
+        MqttMessageView view = new MqttMessageView("sensors/1", payload, 1, 42, false, 7L);
+
+        assertSame(payload, view.payload());
+        assertEquals(payload.length, view.payloadLength());
+        String text = view.text();
+        assertEquals("{\"temp\":\"\u00b0C\"}", text);
+        assertSame(text, view.text());
+        assertEquals(1, view.qos());
+        assertEquals(42, view.id());
+        assertEquals(7L, view.arrivalNanos());
+    }
+
+    @Test
+    void payloadBufferIsReadOnly() {
+        MqttMessageView view = new MqttMessageView("t", new byte[]{1, 2, 3}, 0, 0, true, 0L);
+        ByteBuffer buffer = view.payloadBuffer();
+        assertEquals(3, buffer.remaining());
+        assertEquals(1, buffer.get(0));
+        assertThrows(ReadOnlyBufferException.class, () -> buffer.put(0, (byte) 9));
+        assertTrue(view.retained());
+    }
+}
@@ -0,0 +1,118 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapMessageBufferTest {
+    private static OffHeapMessageBuffer buffer(int capacityBytes, OverflowPolicy policy) {
+        return OffHeapMessageBuffer.builder().capacityBytes(capacityBytes).overflowPolicy(policy).build();
+    }
+
+    private static String utf8(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void keepsOrderAcrossWrapAround() {
+        OffHeapMessageBuffer buffer = buffer(128, OverflowPolicy.DROP_NEWEST);
+        List<String> received = new ArrayList<>();
+        int next = 0;
+        for (int round = 0; round < 50; round++) {
+            buffer.add("sensor/" + (round % 3), "message-" + next++);
+            buffer.add("sensor/" + (round % 3), "m" + next++);
+            received.add(buffer.poll().getValue());
+        }
+        buffer.drainTo(new ArrayList<Map.Entry<String, String>>() {
+            @Override
+            public boolean add(Map.Entry<String, String> entry) {
+                return received.add(entry.getValue());
+            }
+        }, Integer.MAX_VALUE);
+
+        assertEquals(100, received.size() + (int) buffer.droppedCount());
+        int previous = -1;
+        for (String message : received) {
+            int index = Integer.parseInt(message.replaceAll("\\D", ""));
+            assertTrue(index > previous, "out of order: " + received);
+            previous = index;
+        }
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.usedBytes());
+    }
+
+    @Test
+    void drainPassesPayloadWithoutCopy() {
+        OffHeapMessageBuffer buffer = buffer(1024, OverflowPolicy.DROP_OLDEST);
+        buffer.add("a", "{\"v\":1}".getBytes(StandardCharsets.UTF_8));
+        buffer.add("b", "\ud55c\uae00");
+        List<String> seen = new ArrayList<>();
+
+        int drained = buffer.drain((topic, payload) -> {
+            assertTrue(payload.isReadOnly());
+            assertTrue(payload.isDirect());
+            seen.add(topic + "=" + utf8(payload));
+        }, 10);
+
+        assertEquals(2, drained);
+        assertEquals("a={\"v\":1}", seen.get(0));
+        assertEquals("b=\ud55c\uae00", seen.get(1));
+        assertFalse(buffer.poll((topic, payload) -> fail("empty buffer")));
+    }
+
+    @Test
+    void dropOldestEvictsWholeFrames() {
+        OffHeapMessageBuffer buffer = buffer(64, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            buffer.add("t", "payload-" + i); // 8 + 9 bytes, aligned to 20
+        }
+        assertEquals(3, buffer.size());
+        assertEquals(3, buffer.droppedCount());
+        assertEquals("payload-3", buffer.poll().getValue());
+        assertEquals("payload-4", buffer.poll().getValue());
+        assertEquals("payload-5", buffer.poll().getValue());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    void rejectsOversizedMessagesAndSpill() {
+        OffHeapMessageBuffer buffer = buffer(64, OverflowPolicy.DROP_NEWEST);
+        assertThrows(IllegalArgumentException.class, () -> buffer.add("t", new byte[64]));
+        assertThrows(IllegalArgumentException.class,
+                () -> OffHeapMessageBuffer.builder().overflowPolicy(OverflowPolicy.SPILL_TO_DISK).build());
+        assertThrows(IllegalArgumentException.class, () -> OffHeapMessageBuffer.builder().capacityBytes(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void topicRegistryOnlyHoldsBufferedTopics() {
+        OffHeapMessageBuffer buffer = buffer(4096, OverflowPolicy.DROP_OLDEST);
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 10; i++) {
+                buffer.add("device/" + round + "/" + i, "m");
+            }
+            assertEquals(10, buffer.topicCount());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("device/" + round + "/" + i, buffer.poll().getKey());
+            }
+            assertEquals(0, buffer.topicCount());
+        }
+
+        buffer.add("a", "1");
+        buffer.add("b", "2");
+        buffer.add("a", "3");
+        assertEquals("a", buffer.poll().getKey());
+        assertEquals(2, buffer.topicCount());
+        assertTrue(buffer.poll((topic, payload) -> assertEquals("b", topic)));
+        assertEquals(1, buffer.topicCount());
+        assertEquals("a", buffer.poll().getKey());
+        assertEquals(0, buffer.topicCount());
+    }
+}
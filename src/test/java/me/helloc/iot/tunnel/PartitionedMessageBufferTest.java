@@ -0,0 +1,147 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartitionedMessageBufferTest {
+    @Test
+    void busyTopicDoesNotBlockOtherLanes() {
+        PartitionedMessageBuffer buffer = PartitionedMessageBuffer.builder().build();
+        for (int i = 0; i < 100; i++) {
+            buffer.add("diagnostics", "d" + i);
+        }
+        buffer.add("alarms", "fire");
+
+        assertEquals("fire", buffer.poll("alarms").getValue());
+        assertNull(buffer.poll("alarms"));
+        assertNull(buffer.poll("unknown"));
+        assertEquals("d0", buffer.poll("diagnostics").getValue());
+        assertEquals(1, buffer.laneCount());
+    }
+
+    @Test
+    void emptyLanesPerTopicAreRemovedUnlessHandedOut() {
+        PartitionedMessageBuffer buffer = PartitionedMessageBuffer.builder().build();
+        MessageBuffer alarms = buffer.lane("alarms");
+        for (int i = 0; i < 1000; i++) {
+            buffer.add("device/" + i, "m" + i);
+        }
+        assertEquals(1001, buffer.laneCount());
+        int polled = 0;
+        while (buffer.poll() != null) {
+            polled++;
+        }
+        assertEquals(1000, polled);
+        assertEquals(1, buffer.laneCount());
+
+        buffer.add("device/1", "again");
+        assertEquals("again", buffer.poll().getValue());
+        buffer.add("alarms", "fire");
+        assertSame(alarms, buffer.lane("alarms"));
+        assertEquals("fire", alarms.poll().getValue());
+        assertNull(buffer.poll());
+        assertThrows(IllegalStateException.class, () -> buffer.lane(0));
+    }
+
+    @Test
+    void concurrentProducersAndConsumersLoseNothing() throws Exception {
+        PartitionedMessageBuffer buffer = PartitionedMessageBuffer.builder().build();
+        int producers = 4;
+        int perProducer = 20000;
+        LongAdder consumed = new LongAdder();
+        Thread[] threads = new Thread[producers * 2];
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    buffer.add("device/" + (i % 50), id + ":" + i);
+                }
+            });
+            threads[producers + p] = new Thread(() -> {
+                try {
+                    while (buffer.poll(200, TimeUnit.MILLISECONDS) != null) {
+                        consumed.increment();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * perProducer, consumed.sum());
+        assertEquals(0, buffer.laneCount());
+    }
+
+    @Test
+    void pollRotatesAcrossLanesAndKeepsLaneOrder() {
+        PartitionedMessageBuffer buffer = PartitionedMessageBuffer.builder().build();
+        buffer.add("a", "a0");
+        buffer.add("a", "a1");
+        buffer.add("b", "b0");
+        buffer.add("b", "b1");
+
+        StringBuilder order = new StringBuilder();
+        Map.Entry<String, String> entry;
+        while ((entry = buffer.poll()) != null) {
+            order.append(entry.getValue()).append(' ');
+        }
+        assertEquals("a0 b0 a1 b1 ", order.toString());
+    }
+
+    @Test
+    void hashedLanesAreFixed() {
+        PartitionedMessageBuffer buffer = PartitionedMessageBuffer.builder().lanes(4).build();
+        for (int i = 0; i < 50; i++) {
+            buffer.add("sensor/" + i, "m" + i);
+        }
+        assertEquals(4, buffer.laneCount());
+        assertSame(buffer.lane("sensor/7"), buffer.lane("sensor/7"));
+        assertThrows(IllegalArgumentException.class, () -> PartitionedMessageBuffer.builder().lanes(0));
+    }
+
+    @Test
+    void lanesMustNotDropOrMergeMessages() {
+        assertThrows(IllegalArgumentException.class, () -> PartitionedMessageBuffer.builder()
+                .laneFactory(() -> BoundedMessageBuffer.builder().capacity(1).build())
+                .build());
+        assertThrows(IllegalArgumentException.class, () -> PartitionedMessageBuffer.builder()
+                .lanes(2)
+                .laneFactory(() -> ConflatingMessageBuffer.builder().build())
+                .build());
+
+        PartitionedMessageBuffer buffer = PartitionedMessageBuffer.builder()
+                .laneFactory(() -> BoundedMessageBuffer.builder().capacity(2).overflowPolicy(OverflowPolicy.BLOCK).build())
+                .build();
+        buffer.add("a", "a0");
+        buffer.add("a", "a1");
+        assertEquals("a0", buffer.poll().getValue());
+        assertEquals("a1", buffer.poll().getValue());
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.laneCount());
+    }
+
+    @Test
+    void laneHandleAndGlobalTakeWakeOnAdd() throws Exception {
+        PartitionedMessageBuffer buffer = PartitionedMessageBuffer.builder().build();
+        MessageBuffer alarms = buffer.lane("alarms");
+        Thread producer = new Thread(() -> {
+            buffer.add("alarms", "fire");
+            buffer.add("other", "x");
+        });
+        producer.start();
+        assertEquals("fire", alarms.take().getValue());
+        assertEquals("x", buffer.take().getValue());
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+        producer.join();
+    }
+}
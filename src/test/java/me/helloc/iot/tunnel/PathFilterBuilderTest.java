@@ -2,6 +2,9 @@ package me.helloc.iot.tunnel;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class PathFilterBuilderTest {
@@ -80,4 +83,123 @@ class PathFilterBuilderTest {
                 .extractFirst(Long.class);
         assertEquals(39L, result);
     }
+
+    @Test
+    void extractsValueFromUtf8Bytes() {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        Integer value = PathFilterBuilder.from(payload)
+                .addPathFilter("$.companyCode", "0012")
+                .addValueFilter("$.sensor[2].value")
+                .extractFirst(Integer.class);
+        assertEquals(57, value);
+    }
+
+    @Test
+    void extractsNonAsciiStringFromBytes() {
+        byte[] payload = "{\"name\":\"\uC628\uB3C4\uC13C\uC11C\",\"unit\":\"\u00b0C\"}".getBytes(StandardCharsets.UTF_8);
+        assertEquals("\uC628\uB3C4\uC13C\uC11C", PathFilterBuilder.from(payload)
+                .addValueFilter("$.name")
+                .extractFirst(String.class));
+        assertEquals("\u00b0C", PathFilterBuilder.from(payload)
+                .addValueFilter("$.unit")
+                .extractFirst(String.class));
+    }
+
+    @Test
+    void extractsValueFromByteBufferWithoutMovingPosition() {
+        byte[] bytes = ("xx" + message).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer heap = ByteBuffer.wrap(bytes);
+        heap.position(2);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip().position(2);
+
+        for (ByteBuffer buffer : new ByteBuffer[]{heap, direct}) {
+            Integer value = PathFilterBuilder.from(buffer)
+                    .addPathFilter("$.id", 1)
+                    .addValueFilter("$.sensor[1].value")
+                    .extractFirst(Integer.class);
+            assertEquals(12, value);
+            assertEquals(2, buffer.position());
+        }
+    }
+
+    @Test
+    void extractsAllValueFiltersInOneScan() {
+        QueryResult result = PathFilterBuilder.from(message)
+                .addPathFilter("$.companyCode", "0012")
+                .addValueFilter("$.sensor[0].value")
+                .addValueFilter("$.sensor[1].value")
+                .addValueFilter("$.sensor[2].type")
+                .extractAll();
+        assertNotNull(result);
+        assertEquals(39, result.getInt(0));
+        assertEquals(12L, result.getLong(1));
+        assertEquals("humidity", result.getString(2));
+
+        assertNull(PathFilterBuilder.from(message)
+                .addPathFilter("$.companyCode", "0013")
+                .addValueFilter("$.sensor[0].value")
+                .extractAll());
+    }
+
+    @Test
+    void extractsPrimitivesWithDefaults() {
+        String decimal = "{\"id\":1,\"sensor\":[{\"value\":39.75}]}";
+        assertEquals(39.75, PathFilterBuilder.from(decimal)
+                .addValueFilter("$.sensor[0].value")
+                .extractDouble(Double.NaN));
+        assertEquals(39L, PathFilterBuilder.from(decimal)
+                .addValueFilter("$.sensor[0].value")
+                .extractLong(-1L));
+        assertEquals(57, PathFilterBuilder.from(message)
+                .addValueFilter("$.companyCode")
+                .addValueFilter("$.sensor[2].value")
+                .extractInt(-1));
+        assertEquals(-1, PathFilterBuilder.from(message)
+                .addPathFilter("$.id", 2)
+                .addValueFilter("$.sensor[0].value")
+                .extractInt(-1));
+        assertTrue(Double.isNaN(PathFilterBuilder.from(message)
+                .addValueFilter("$.companyCode")
+                .extractDouble(Double.NaN)));
+    }
+
+    @Test
+    void runsSeveralBuildersOnOneIndexedMessage() {
+        IndexedMessage indexed = IndexedMessage.of(message.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(39, PathFilterBuilder.from(indexed)
+                .addPathFilter("$.gateways[1].id", 2)
+                .addValueFilter("$.sensor[0].value")
+                .extractFirst(Integer.class));
+        assertEquals("humidity", PathFilterBuilder.from(indexed)
+                .addValueFilter("$.sensor[2].type")
+                .extractFirst(String.class));
+        assertNull(PathFilterBuilder.from(indexed)
+                .addPathFilter("$.companyCode", "0013")
+                .addValueFilter("$.sensor[0].value")
+                .extractAll());
+        assertEquals(12L, PathFilterBuilder.from(indexed)
+                .addValueFilter("$.sensor[1].value")
+                .extractLong(-1L));
+    }
+
+    @Test
+    void selectsSensorsByTypeInsteadOfPosition() {
+        assertEquals(57, PathFilterBuilder.from(message)
+                .addPathFilter("$.sensor[?(@.type=='temp')].value", 39)
+                .addValueFilter("$.sensor[?(@.type=='humidity')].value")
+                .extractFirst(Integer.class));
+        assertNull(PathFilterBuilder.from(message)
+                .addPathFilter("$.sensor[*].type", "pressure")
+                .addValueFilter("$.sensor[0].value")
+                .extractFirst(Integer.class));
+    }
+
+    @Test
+    void truncatedLiteralsAndTrailingJunkReturnNull() {
+        assertNull(PathFilterBuilder.from("{\"a\": tru}").addValueFilter("$.a").extractFirst(Boolean.class));
+        assertNull(PathFilterBuilder.from("{\"a\": 12x}").addValueFilter("$.a").extractFirst(Integer.class));
+        assertNull(PathFilterBuilder.from("{\"a\": fals, \"b\": 1}").addValueFilter("$.b").extractFirst(Integer.class));
+    }
 }
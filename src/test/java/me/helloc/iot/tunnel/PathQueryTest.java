@@ -0,0 +1,302 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class PathQueryTest {
+    private static String message(int id, int value) {
+        return "{\"id\":" + id + ",\"companyCode\":\"0012\"," +
+                "\"sensor\":[{\"type\":\"temp\",\"value\":" + value + "}]}";
+    }
+
+    @Test
+    void reusesCompiledQueryAcrossMessages() {
+        PathQuery query = PathQuery.compile("$.sensor[0].value").where("$.id", 1);
+
+        assertEquals(39, query.extractFirst(message(1, 39), Integer.class));
+        assertEquals(40, query.extractFirst(message(1, 40).getBytes(StandardCharsets.UTF_8), Integer.class));
+        assertNull(query.extractFirst(message(2, 41), Integer.class));
+    }
+
+    @Test
+    void whereAndSelectReturnNewQueries() {
+        PathQuery base = PathQuery.compile("$.sensor[0].value");
+        PathQuery filtered = base.where("$.id", 2);
+
+        assertEquals(39, base.extractFirst(message(1, 39), Integer.class));
+        assertNull(filtered.extractFirst(message(1, 39), Integer.class));
+
+        PathQuery withFallback = PathQuery.compile("$.missing").select("$.companyCode");
+        assertEquals("0012", withFallback.extractFirst(message(1, 39), String.class));
+    }
+
+    @Test
+    void rejectsMalformedPathAtCompileTime() {
+        assertThrows(IllegalArgumentException.class, () -> PathQuery.compile("sensor"));
+        assertThrows(IllegalArgumentException.class, () -> PathQuery.compile("$.sensor[x]"));
+    }
+
+    @Test
+    void sharedQueryIsSafeAcrossThreads() throws Exception {
+        PathQuery query = PathQuery.compile("$.sensor[0].value").where("$.companyCode", "0012");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        if (query.extractFirst(message(i, i), Integer.class) != i) return false;
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void skipsUnrelatedSubtrees() {
+        String payload = "{\"diag\":{\"log\":[\"a]\\\"}\",{\"x\":[[1],[2,{\"y\":\"}\"}]]}],\"blob\":\"{[\"}," +
+                "\"id\":7,\"sensor\":[{\"value\":1.5,\"extra\":{\"value\":2}},{\"value\":3}]," +
+                "\"tail\":[true,false,null,-1e3]}";
+
+        PathQuery query = PathQuery.compile("$.sensor[1].value").where("$.id", 7);
+        assertEquals(3, query.extractFirst(payload, Integer.class));
+        assertEquals(1.5, PathQuery.compile("$.sensor[0].value").extractFirst(payload, Double.class));
+        assertEquals(-1000.0, PathQuery.compile("$.tail[3]").extractFirst(payload, Double.class));
+        assertNull(PathQuery.compile("$.sensor[0].extra.missing").extractFirst(payload, Integer.class));
+    }
+
+    @Test
+    void stopsScanningOnceAllPathsAreResolved() {
+        // Everything after the resolved paths is never read, including the broken tail.
+        String truncated = "{\"id\":1,\"sensor\":[{\"value\":39}],\"diag\":{\"log\":[1,2";
+
+        assertEquals(39, PathQuery.compile("$.sensor[0].value").where("$.id", 1)
+                .extractFirst(truncated, Integer.class));
+        assertNull(PathQuery.compile("$.missing").extractFirst(truncated, Integer.class));
+    }
+
+    @Test
+    void extractsContainersAndEscapedKeys() {
+        String payload = "{\"a\\u0062\":{\"c\":[1,2]},\"d\":\"x\"}";
+
+        Map<?, ?> ab = PathQuery.compile("$.ab").extractFirst(payload, Map.class);
+        assertEquals(Arrays.asList(1L, 2L), ab.get("c"));
+        assertEquals(2, PathQuery.compile("$.ab.c[1]").extractFirst(payload, Integer.class));
+    }
+
+    @Test
+    void rejectsAtFirstFailingFilterAndCountsSkippedBytes() {
+        String diag = "{\"diag\":[\"" + new String(new char[1000]).replace('\0', 'x') + "\"]}";
+        String payload = "{\"companyCode\":\"0099\",\"id\":1,\"blob\":" + diag + "}";
+        PathQuery query = PathQuery.compile("$.id").where("$.companyCode", "0012");
+
+        assertFalse(query.matches(payload));
+        assertNull(query.extractFirst(payload, Integer.class));
+        assertEquals(2, query.rejectedCount());
+        long skipped = payload.length() - "{\"companyCode\":\"0099\"".length();
+        assertEquals(2 * skipped, query.rejectedBytesSkipped());
+    }
+
+    @Test
+    void matchesReportsMissingAndMalformedWithoutThrowing() {
+        PathQuery query = PathQuery.compile().where("$.id", 1).where("$.gateways[1].id", 2);
+
+        assertTrue(query.matches("{\"id\":1,\"gateways\":[{\"id\":1},{\"id\":2}]}"));
+        assertFalse(query.matches("{\"id\":1}"));
+        assertFalse(query.matches("{\"id\":1,"));
+        assertFalse(query.matches("{\"id\":null,\"gateways\":[{\"id\":1},{\"id\":2}]}"));
+        assertEquals(2, query.rejectedCount());
+    }
+
+    @Test
+    void steadyStateExtractionDoesNotAllocate() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        PathQuery query = PathQuery.compile("$.sensor[0].value", "$.id").where("$.companyCode", "0012");
+        QueryResult result = query.newResult();
+        byte[][] messages = new byte[64][];
+        ByteBuffer[] direct = new ByteBuffer[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            String companyCode = i % 4 == 0 ? "0013" : "0012";
+            messages[i] = ("{\"id\":" + i + ",\"companyCode\":\"" + companyCode + "\"," +
+                    "\"sensor\":[{\"type\":\"temp\",\"value\":" + (i * 0.5) + "}]}").getBytes(StandardCharsets.UTF_8);
+            direct[i] = ByteBuffer.allocateDirect(messages[i].length).put(messages[i]);
+            direct[i].flip();
+        }
+
+        long checksum = 0;
+        long steadyState = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long thread = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(thread);
+            long overhead = threads.getThreadAllocatedBytes(thread) - before;
+            before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 10_000; i++) {
+                int m = i % messages.length;
+                if (query.extractAll(messages[m], result)) checksum += result.getLong(1);
+                if (query.extractAll(direct[m], result)) checksum += result.getLong(1);
+                checksum += query.extractLong(messages[m], -1);
+                checksum += (long) query.extractDouble(messages[m], 0, messages[m].length, 0.0);
+                if (query.matches(direct[m])) checksum++;
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+            // The first round warms up class loading and the thread-local scratch state. One-off
+            // JIT events may allocate a few bytes, but per-message garbage shows up in every round.
+            if (round > 0) steadyState = Math.min(steadyState, allocated);
+        }
+        assertEquals(0, steadyState, "bytes allocated in steady state");
+        assertNotEquals(0, checksum);
+    }
+
+    @Test
+    void selectsArrayElementsByPredicateWhateverTheirOrder() {
+        PathQuery temp = PathQuery.compile("$.sensor[?(@.type=='temp')].value");
+        String tempFirst = "{\"sensor\":[{\"type\":\"temp\",\"value\":39},{\"type\":\"airFlow\",\"value\":12}]}";
+        String tempLast = "{\"sensor\":[{\"value\":12,\"type\":\"airFlow\"},{\"value\":39,\"type\":\"temp\"}]}";
+        String noTemp = "{\"sensor\":[{\"value\":12,\"type\":\"airFlow\"},{\"value\":57}]}";
+
+        assertEquals(39, temp.extractFirst(tempFirst, Integer.class));
+        // The value precedes the type, so it is recorded tentatively and rolled back for airFlow.
+        assertEquals(39, temp.extractFirst(tempLast, Integer.class));
+        assertNull(temp.extractFirst(noTemp, Integer.class));
+        assertEquals(39, temp.extractFirst(IndexedMessage.of(tempLast), Integer.class));
+        assertNull(temp.extractFirst(IndexedMessage.of(noTemp), Integer.class));
+
+        PathQuery numeric = PathQuery.compile("$.sensor[?(@.value == 12)].type", "$.sensor[?(@.missing==1)]");
+        QueryResult result = numeric.newResult();
+        assertTrue(numeric.extractAll(tempLast, result));
+        assertEquals("airFlow", result.getString(0));
+        assertFalse(result.isPresent(1));
+    }
+
+    @Test
+    void wildcardsMatchEveryElementAndMember() {
+        String message = "{\"gateways\":[{\"id\":1},{\"id\":2,\"online\":true}]," +
+                "\"zones\":{\"a\":{\"temp\":20},\"b\":{\"temp\":21,\"alarm\":true}}}";
+
+        assertEquals(true, PathQuery.compile("$.gateways[*].online").extractFirst(message, Boolean.class));
+        assertEquals(true, PathQuery.compile("$.zones.*.alarm").extractFirst(message, Boolean.class));
+        assertEquals(20, PathQuery.compile("$.zones[*].temp").extractFirst(message, Integer.class));
+
+        // Filters through a wildcard hold if any value matches and never reject early.
+        PathQuery anyGateway = PathQuery.compile("$.zones.b.temp").where("$.gateways[*].id", 2);
+        assertEquals(21, anyGateway.extractFirst(message, Integer.class));
+        assertEquals(21, anyGateway.extractFirst(IndexedMessage.of(message), Integer.class));
+        assertFalse(PathQuery.compile().where("$.gateways[*].id", 3).matches(message));
+    }
+
+    @Test
+    void evaluatesNestedPredicatesInOneScan() {
+        String message = "{\"lines\":[" +
+                "{\"sensor\":[{\"type\":\"temp\",\"value\":1}],\"name\":\"b\"}," +
+                "{\"sensor\":[{\"value\":2,\"type\":\"hum\"},{\"value\":3,\"type\":\"temp\"}],\"name\":\"a\"}]}";
+        PathQuery query = PathQuery.compile("$.lines[?(@.name=='a')].sensor[?(@.type=='temp')].value");
+
+        assertEquals(3, query.extractFirst(message, Integer.class));
+        assertEquals(3, query.extractFirst(IndexedMessage.of(message), Integer.class));
+        assertEquals(1, PathQuery.compile("$.lines[?(@.sensor[0].type==\"temp\")].sensor[0].value")
+                .extractFirst(message, Integer.class));
+    }
+
+    @Test
+    void streamingAndIndexedEvaluationAgreeOnShuffledSensors() {
+        Random random = new Random(3);
+        String[] types = {"temp", "airFlow", "humidity"};
+        PathQuery query = PathQuery.compile(
+                        "$.sensor[?(@.type=='temp')].value", "$.sensor[?(@.type=='humidity')].value", "$.sensor[*].value")
+                .where("$.sensor[*].type", "airFlow");
+        QueryResult streamed = query.newResult();
+        QueryResult indexed = query.newResult();
+        for (int n = 0; n < 200; n++) {
+            List<String> sensors = new ArrayList<>();
+            for (String type : types) {
+                if (random.nextInt(4) == 0) continue;
+                int value = random.nextInt(100);
+                sensors.add(random.nextBoolean()
+                        ? "{\"type\":\"" + type + "\",\"value\":" + value + "}"
+                        : "{\"value\":" + value + ",\"type\":\"" + type + "\"}");
+            }
+            java.util.Collections.shuffle(sensors, random);
+            String message = "{\"sensor\":[" + String.join(",", sensors) + "]}";
+
+            assertEquals(query.extractAll(message, streamed), query.extractAll(IndexedMessage.of(message), indexed), message);
+            for (int i = 0; i < streamed.size(); i++) {
+                assertEquals(expected(message, types[i == 0 ? 0 : 2], i == 2), streamed.matched() ? streamed.get(i, Long.class) : null, message);
+                assertEquals(streamed.get(i, Long.class), indexed.get(i, Long.class), message);
+            }
+        }
+    }
+
+    /** Tree based oracle: the first sensor value, optionally of the given type. */
+    @SuppressWarnings("unchecked")
+    private static Long expected(String message, String type, boolean anyType) {
+        Map<String, Object> root = (Map<String, Object>) new SimpleJsonParser(message).parse();
+        List<Map<String, Object>> sensors = (List<Map<String, Object>>) root.get("sensor");
+        if (sensors.stream().noneMatch(sensor -> "airFlow".equals(sensor.get("type")))) return null;
+        for (Map<String, Object> sensor : sensors) {
+            if (anyType || type.equals(sensor.get("type"))) return (Long) sensor.get("value");
+        }
+        return null;
+    }
+
+    @Test
+    void rejectsMalformedFilterExpressions() {
+        assertThrows(IllegalArgumentException.class, () -> PathQuery.compile("$.sensor[?(@.type=='temp'"));
+        assertThrows(IllegalArgumentException.class, () -> PathQuery.compile("$.sensor[?(@.type)]"));
+        assertThrows(IllegalArgumentException.class, () -> PathQuery.compile("$.sensor[?(@.type==temp)].value"));
+    }
+
+    @Test
+    void malformedScalarsYieldNoValue() {
+        PathQuery query = PathQuery.compile("$.a");
+        for (String message : new String[]{"{\"a\": tru}", "{\"a\": nul}", "{\"a\": 12x}", "{\"a\": 1.}", "{\"a\": 1e}", "{\"a\": -}"}) {
+            assertNull(query.extractFirst(message, Object.class), message);
+            assertEquals(-1L, query.extractLong(message.getBytes(StandardCharsets.UTF_8), -1L), message);
+            QueryResult result = query.newResult();
+            assertFalse(query.extractAll(message, result), message);
+            assertThrows(IllegalArgumentException.class, () -> IndexedMessage.of(message), message);
+        }
+        assertEquals(true, query.extractFirst("{\"a\": true}", Boolean.class));
+        assertEquals(-1.5e3, query.extractFirst("{\"a\":-1.5E+3}", Double.class));
+        assertNull(PathQuery.compile("$.b").extractFirst("{\"b\":{\"c\":tru},\"d\":1}", Object.class));
+    }
+
+    @Test
+    void extractIntDoesNotTruncateOrWrap() {
+        PathQuery query = PathQuery.compile("$.v");
+        byte[] big = "{\"v\":3000000000}".getBytes(StandardCharsets.UTF_8);
+        byte[] fraction = "{\"v\":1.9}".getBytes(StandardCharsets.UTF_8);
+        assertEquals(-1, query.extractInt(big, -1));
+        assertEquals(-1, query.extractInt(IndexedMessage.of(big), -1));
+        assertEquals(-1, query.extractInt(fraction, -1));
+        assertEquals(Integer.MIN_VALUE, query.extractInt("{\"v\":-2147483648}".getBytes(StandardCharsets.UTF_8), -1));
+        assertEquals(3000000000L, query.extractLong(big, -1));
+
+        assertEquals(-1, PathFilterBuilder.from("{\"v\":3000000000}").addValueFilter("$.v").extractInt(-1));
+        assertEquals(-1, PathFilterBuilder.from("{\"v\":1.9}").addValueFilter("$.v").extractInt(-1));
+        assertEquals(2, PathFilterBuilder.from("{\"v\":2}").addValueFilter("$.v").extractInt(-1));
+    }
+}
@@ -0,0 +1,188 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class PersistentMessageBufferTest {
+    @TempDir
+    Path directory;
+
+    private PersistentMessageBuffer open(int segmentSize) {
+        return PersistentMessageBuffer.builder()
+                .directory(directory)
+                .segmentSize(segmentSize)
+                .fsyncPolicy(FsyncPolicy.NEVER)
+                .build();
+    }
+
+    private long segmentFiles() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().startsWith("segment-")).count();
+        }
+    }
+
+    @Test
+    void deliversInOrderAcrossRestart() {
+        PersistentMessageBuffer buffer = open(4096);
+        for (int i = 0; i < 5; i++) {
+            buffer.add("sensor/" + i, "{\"v\":" + i + "}");
+        }
+        assertEquals("{\"v\":0}", buffer.poll().getValue());
+        assertEquals("{\"v\":1}", buffer.poll().getValue());
+        buffer.close();
+
+        PersistentMessageBuffer reopened = open(4096);
+        assertEquals(3, reopened.size());
+        Map.Entry<String, String> entry = reopened.poll();
+        assertEquals("sensor/2", entry.getKey());
+        assertEquals("{\"v\":2}", entry.getValue());
+        reopened.add("sensor/5", "{\"v\":5}");
+        assertEquals("sensor/3", reopened.poll().getKey());
+        assertEquals("sensor/4", reopened.poll().getKey());
+        assertEquals("sensor/5", reopened.poll().getKey());
+        assertNull(reopened.poll());
+        reopened.close();
+    }
+
+    @Test
+    void rollsAndDeletesConsumedSegments() throws Exception {
+        PersistentMessageBuffer buffer = open(1024);
+        String payload = new String(new char[200]).replace('\0', 'x');
+        for (int i = 0; i < 20; i++) {
+            buffer.add("t", payload + i);
+        }
+        assertTrue(buffer.segmentCount() > 1);
+        assertEquals(buffer.segmentCount(), segmentFiles());
+
+        List<Map.Entry<String, String>> drained = new ArrayList<>();
+        assertEquals(20, buffer.drainTo(drained, 100));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(payload + i, drained.get(i).getValue());
+        }
+        assertNull(buffer.poll());
+        assertEquals(1, buffer.segmentCount());
+        assertEquals(1, segmentFiles());
+        buffer.close();
+    }
+
+    @Test
+    void discardsTornRecordOnRecovery() throws Exception {
+        PersistentMessageBuffer buffer = open(4096);
+        buffer.add("t", "first");
+        buffer.add("t", "second");
+        buffer.close();
+
+        // Corrupt the body of the second record, as if the process died mid-write.
+        Path segment = directory.resolve("segment-0000000000.log");
+        int second = 8 + 4 + 1 + "first".length();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(second + 8 + 4 + 1);
+            file.write('X');
+        }
+
+        PersistentMessageBuffer reopened = open(4096);
+        assertEquals(1, reopened.size());
+        assertEquals("first", reopened.poll().getValue());
+        assertNull(reopened.poll());
+        reopened.add("t", "third");
+        assertEquals("third", reopened.poll().getValue());
+        reopened.close();
+    }
+
+    @Test
+    void takeWakesOnAdd() throws Exception {
+        PersistentMessageBuffer buffer = open(4096);
+        Thread producer = new Thread(() -> buffer.add("t", "late"));
+        producer.start();
+        assertEquals("late", buffer.take().getValue());
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+        producer.join();
+        buffer.close();
+    }
+
+    @Test
+    void intervalPolicyForcesOnATimerAndCloseStopsIt() {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        ScheduledFuture<?> future = mock(ScheduledFuture.class);
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        doReturn(future).when(scheduler).scheduleWithFixedDelay(task.capture(), eq(250L), eq(250L), eq(TimeUnit.MILLISECONDS));
+        PersistentMessageBuffer buffer = PersistentMessageBuffer.builder()
+                .directory(directory)
+                .segmentSize(4096)
+                .fsyncPolicy(FsyncPolicy.INTERVAL)
+                .fsyncInterval(250)
+                .scheduler(scheduler)
+                .build();
+
+        buffer.add("t", "m0");
+        task.getValue().run();
+        task.getValue().run();
+        buffer.close();
+        verify(future).cancel(false);
+        task.getValue().run();
+
+        PersistentMessageBuffer reopened = open(4096);
+        assertEquals("m0", reopened.poll().getValue());
+        reopened.close();
+    }
+
+    @Test
+    void rejectsInvalidConfigurationAndOversizedMessages() {
+        assertThrows(IllegalArgumentException.class, () -> PersistentMessageBuffer.builder().build());
+        assertThrows(IllegalArgumentException.class, () -> PersistentMessageBuffer.builder().segmentSize(16));
+        assertThrows(IllegalArgumentException.class, () -> PersistentMessageBuffer.builder().fsyncInterval(0));
+        PersistentMessageBuffer buffer = open(1024);
+        assertThrows(IllegalArgumentException.class,
+                () -> buffer.add("t", new String(new char[2000]).replace('\0', 'x')));
+        buffer.close();
+        assertThrows(IllegalStateException.class, () -> buffer.add("t", "m"));
+    }
+
+    @Test
+    void consumedOffsetPastTornTailDoesNotReplay() throws Exception {
+        PersistentMessageBuffer buffer = open(4096);
+        buffer.add("t", "first");
+        buffer.add("t", "second");
+        assertEquals("first", buffer.poll().getValue());
+        assertEquals("second", buffer.poll().getValue());
+        buffer.close();
+
+        // The consumer offset now lies past a record that did not survive, and a stray
+        // page far beyond the limit was flushed.
+        Path segment = directory.resolve("segment-0000000000.log");
+        int second = 8 + 4 + 1 + "first".length();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(second + 8 + 4 + 1);
+            file.write('X');
+            file.seek(3001);
+            file.write('Y');
+        }
+
+        PersistentMessageBuffer reopened = open(4096);
+        assertEquals(0, reopened.size());
+        assertNull(reopened.poll());
+        reopened.add("t", "third");
+        assertEquals("third", reopened.poll().getValue());
+        reopened.close();
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "r")) {
+            file.seek(3001);
+            assertEquals(0, file.read());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryResultTest {
+    private final PathQuery row = PathQuery.compile(
+                    "$.sensor[0].value", "$.sensor[1].value", "$.sensor[2].value",
+                    "$.active", "$.name", "$.meta", "$.tags", "$.none", "$.missing")
+            .where("$.companyCode", "0012");
+
+    private static String message(String companyCode, double temp) {
+        return "{\"companyCode\":\"" + companyCode + "\",\"active\":false,\"name\":\"line-1\"," +
+                "\"meta\":{\"fw\":3},\"tags\":[1,2],\"none\":null," +
+                "\"sensor\":[{\"value\":" + temp + "},{\"value\":12},{\"value\":-5e-1}]}";
+    }
+
+    @Test
+    void fillsTypedSlotsFromOneScan() {
+        QueryResult result = row.newResult();
+
+        assertTrue(row.extractAll(message("0012", 39.5), result));
+        assertTrue(result.matched());
+        assertEquals(9, result.size());
+        assertEquals(39.5, result.getDouble(0));
+        assertEquals(39L, result.getLong(0));
+        assertEquals(12, result.getInt(1));
+        assertEquals(12.0, result.getDouble(1));
+        assertEquals(-0.5, result.getDouble(2));
+        assertFalse(result.getBoolean(3));
+        assertEquals("line-1", result.getString(4));
+        assertEquals(3L, result.get(5, Map.class).get("fw"));
+        assertEquals(Arrays.asList(1L, 2L), result.get(6, List.class));
+        assertEquals(QueryResult.ValueType.NULL, result.type(7));
+        assertEquals(QueryResult.ValueType.MISSING, result.type(8));
+        assertFalse(result.isPresent(8));
+        assertEquals(Integer.valueOf(12), result.get(1, Integer.class));
+    }
+
+    @Test
+    void isReusedAcrossMessages() {
+        QueryResult result = row.newResult();
+
+        assertTrue(row.extractAll(message("0012", 1.25), result));
+        assertEquals(1.25, result.getDouble(0));
+
+        assertFalse(row.extractAll(message("0099", 2.5), result));
+        assertFalse(result.matched());
+        assertFalse(result.isPresent(0));
+        assertEquals(-1.0, result.getDouble(0, -1.0));
+
+        assertTrue(row.extractAll(message("0012", 3.75), result));
+        assertEquals(3.75, result.getDouble(0));
+        assertEquals("line-1", result.getString(4));
+    }
+
+    @Test
+    void typedGettersRejectOtherTypes() {
+        QueryResult result = row.newResult();
+        row.extractAll(message("0012", 1.0), result);
+
+        assertThrows(IllegalStateException.class, () -> result.getLong(4));
+        assertThrows(IllegalStateException.class, () -> result.getBoolean(0));
+        assertEquals(7L, result.getLong(8, 7L));
+        assertNull(result.getString(0));
+    }
+
+    @Test
+    void rejectsResultOfAnotherQuery() {
+        QueryResult foreign = PathQuery.compile("$.a").newResult();
+        assertThrows(IllegalArgumentException.class, () -> row.extractAll("{}", foreign));
+    }
+
+    @Test
+    void getIntRejectsFractionsAndOutOfRangeValues() {
+        PathQuery query = PathQuery.compile("$.big", "$.fraction", "$.whole");
+        QueryResult result = query.newResult();
+        assertTrue(query.extractAll("{\"big\":3000000000,\"fraction\":1.9,\"whole\":17.0}", result));
+
+        assertEquals(-1, result.getInt(0, -1));
+        assertEquals(3000000000L, result.getLong(0));
+        assertThrows(IllegalStateException.class, () -> result.getInt(0));
+        assertEquals(-1, result.getInt(1, -1));
+        assertThrows(IllegalStateException.class, () -> result.getInt(1));
+        assertEquals(17, result.getInt(2));
+    }
+}
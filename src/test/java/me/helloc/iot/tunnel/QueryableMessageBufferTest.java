@@ -0,0 +1,91 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryableMessageBufferTest {
+    private static QueryableMessageBuffer buffer() {
+        return QueryableMessageBuffer.builder()
+                .index("$.companyCode")
+                .index("$.id")
+                .build();
+    }
+
+    private static String message(int id, String companyCode) {
+        return "{\"id\":" + id + ",\"companyCode\":\"" + companyCode + "\"}";
+    }
+
+    @Test
+    void findsAndCountsByIndexedValue() {
+        QueryableMessageBuffer buffer = buffer();
+        buffer.add("t", message(17, "0012"));
+        buffer.add("t", message(18, "0013"));
+        buffer.add("t", message(17, "0013"));
+        buffer.add("t", "not json");
+
+        assertEquals(2, buffer.count("$.companyCode", "0013"));
+        assertEquals(2, buffer.count("$.id", 17));
+        assertEquals(2, buffer.count("$.id", 17.0));
+        assertEquals(0, buffer.count("$.id", 99));
+        List<Map.Entry<String, String>> found = buffer.find("$.id", 17L);
+        assertEquals(message(17, "0012"), found.get(0).getValue());
+        assertEquals(message(17, "0013"), found.get(1).getValue());
+        assertEquals(4, buffer.size());
+        assertThrows(IllegalArgumentException.class, () -> buffer.find("$.missing", 1));
+    }
+
+    @Test
+    void drainMatchingKeepsOthersInArrivalOrder() {
+        QueryableMessageBuffer buffer = buffer();
+        for (int i = 0; i < 10; i++) {
+            buffer.add("t", message(i, i % 2 == 0 ? "even" : "odd"));
+        }
+
+        List<Map.Entry<String, String>> odd = new ArrayList<>();
+        assertEquals(3, buffer.drainMatching("$.companyCode", "odd", odd, 3));
+        assertEquals(message(1, "odd"), odd.get(0).getValue());
+        assertEquals(message(5, "odd"), odd.get(2).getValue());
+        assertEquals(2, buffer.count("$.companyCode", "odd"));
+        assertEquals(0, buffer.count("$.id", 3));
+
+        assertEquals(message(0, "even"), buffer.poll().getValue());
+        assertEquals(message(2, "even"), buffer.poll().getValue());
+        assertEquals(3, buffer.count("$.companyCode", "even"));
+        List<Map.Entry<String, String>> rest = new ArrayList<>();
+        assertEquals(5, buffer.drainTo(rest, 10));
+        assertEquals(message(4, "even"), rest.get(0).getValue());
+        assertEquals(message(7, "odd"), rest.get(2).getValue());
+        assertEquals(0, buffer.count("$.companyCode", "even"));
+    }
+
+    @Test
+    void valueIdsAreReusedAfterDrain() {
+        QueryableMessageBuffer buffer = buffer();
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 50; i++) {
+                buffer.add("t", message(round * 50 + i, "c" + i));
+            }
+            assertEquals(50, buffer.drainTo(new ArrayList<>(), 50));
+        }
+        buffer.add("t", message(1, "c1"));
+        assertEquals(1, buffer.find("$.companyCode", "c1").size());
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    void takeWakesOnAddAndRequiresIndex() throws Exception {
+        QueryableMessageBuffer buffer = buffer();
+        Thread producer = new Thread(() -> buffer.add("t", message(1, "x")));
+        producer.start();
+        assertEquals(message(1, "x"), buffer.take().getValue());
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+        producer.join();
+        assertThrows(IllegalArgumentException.class, () -> QueryableMessageBuffer.builder().build());
+    }
+}
@@ -0,0 +1,125 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingMessageBufferTest {
+    private static RingMessageBuffer buffer(int capacity, OverflowPolicy policy, WaitStrategy strategy) {
+        return RingMessageBuffer.builder().capacity(capacity).overflowPolicy(policy).waitStrategy(strategy).build();
+    }
+
+    @Test
+    void everyStrategyDeliversEachMessageExactlyOnce() throws Exception {
+        int total = 20_000;
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            RingMessageBuffer buffer = buffer(64, OverflowPolicy.BLOCK, strategy);
+            Map<String, Boolean> seen = new ConcurrentHashMap<>();
+            List<Thread> consumers = new ArrayList<>();
+            for (int c = 0; c < 3; c++) {
+                Thread consumer = new Thread(() -> {
+                    try {
+                        Map.Entry<String, String> entry;
+                        while ((entry = buffer.poll(200, TimeUnit.MILLISECONDS)) != null) {
+                            assertNull(seen.put(entry.getValue(), Boolean.TRUE), "duplicate " + entry.getValue());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                consumer.start();
+                consumers.add(consumer);
+            }
+            for (int i = 0; i < total; i++) {
+                buffer.add("t", "m" + i);
+            }
+            for (Thread consumer : consumers) {
+                consumer.join();
+            }
+            assertEquals(total, seen.size(), strategy.name());
+            assertEquals(0, buffer.droppedCount());
+        }
+    }
+
+    @Test
+    void concurrentProducersKeepTheirOwnOrder() throws Exception {
+        RingMessageBuffer buffer = buffer(64, OverflowPolicy.BLOCK, WaitStrategy.YIELD);
+        int producers = 4;
+        int perProducer = 20_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            String topic = "p" + p;
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    buffer.add(topic, String.valueOf(i));
+                }
+            });
+            producer.start();
+            threads.add(producer);
+        }
+        Map<String, Integer> last = new ConcurrentHashMap<>();
+        int received = 0;
+        Map.Entry<String, String> entry;
+        while ((entry = buffer.poll(500, TimeUnit.MILLISECONDS)) != null) {
+            int sequence = Integer.parseInt(entry.getValue());
+            Integer previous = last.put(entry.getKey(), sequence);
+            assertEquals(previous == null ? 0 : previous + 1, sequence, entry.getKey());
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * perProducer, received);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    void dropOldestKeepsNewestMessages() {
+        RingMessageBuffer buffer = buffer(4, OverflowPolicy.DROP_OLDEST, WaitStrategy.BUSY_SPIN);
+        for (int i = 0; i < 6; i++) {
+            buffer.add("t", "m" + i);
+        }
+        assertEquals(4, buffer.size());
+        assertEquals(2, buffer.droppedCount());
+        assertEquals("m2", buffer.poll().getValue());
+        List<Map.Entry<String, String>> batch = new ArrayList<>();
+        assertEquals(3, buffer.drainTo(batch, 10));
+        assertEquals("m5", batch.get(2).getValue());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    void dropNewestKeepsOldestMessages() {
+        RingMessageBuffer buffer = buffer(3, OverflowPolicy.DROP_NEWEST, WaitStrategy.PARK);
+        assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 6; i++) {
+            buffer.add("t", "m" + i);
+        }
+        assertEquals(2, buffer.droppedCount());
+        assertEquals("m0", buffer.poll().getValue());
+    }
+
+    @Test
+    void blockingTakeWakesOnAdd() throws Exception {
+        RingMessageBuffer buffer = buffer(8, OverflowPolicy.BLOCK, WaitStrategy.BLOCKING);
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            buffer.add("topic", "late");
+        });
+        producer.start();
+        Map.Entry<String, String> entry = buffer.take();
+        assertEquals("topic", entry.getKey());
+        assertEquals("late", entry.getValue());
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+        producer.join();
+    }
+}
@@ -2,6 +2,7 @@ package me.helloc.iot.tunnel;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 
@@ -18,4 +19,14 @@ class SimpleJsonParserTest {
         assertEquals(true, result.get("e"));
         assertEquals("str", result.get("f"));
     }
+
+    @Test
+    void parsesUtf8BytesWithEscapes() {
+        byte[] json = "{\"k\":\"\uC13C\uC11C \\\"A\\\"\\n\\u0041\",\"v\":[-1.5e2,12345678901234567890]}"
+                .getBytes(StandardCharsets.UTF_8);
+        Map<?,?> result = (Map<?,?>) new SimpleJsonParser(json).parse();
+        assertEquals("\uC13C\uC11C \"A\"\nA", result.get("k"));
+        assertEquals(-150.0, ((List<?>) result.get("v")).get(0));
+        assertEquals(1.2345678901234567E19, ((List<?>) result.get("v")).get(1));
+    }
 }
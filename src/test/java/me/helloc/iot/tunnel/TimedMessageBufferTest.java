@@ -0,0 +1,128 @@
+package me.helloc.iot.tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimedMessageBufferTest {
+    private final AtomicLong now = new AtomicLong(1_000);
+
+    private TimedMessageBuffer buffer(long ttlNanos) {
+        TimedMessageBuffer.Builder builder = TimedMessageBuffer.builder().ticker(now::get);
+        if (ttlNanos > 0) builder.ttl(ttlNanos, TimeUnit.NANOSECONDS);
+        return builder.build();
+    }
+
+    @Test
+    void stampsArrivalAndRecordsDwellTime() {
+        TimedMessageBuffer buffer = buffer(0);
+        buffer.add("t", "m0");
+        now.addAndGet(500);
+        buffer.add("t", "m1");
+        assertEquals(1_000, buffer.oldestArrivalNanos());
+        now.addAndGet(250);
+
+        TimestampedMessage first = buffer.poll();
+        assertEquals("m0", first.getValue());
+        assertEquals(1_000, first.arrivalNanos());
+        assertEquals(1_500, buffer.poll().arrivalNanos());
+        assertEquals(2, buffer.dwellTimes().count());
+        assertEquals(750, buffer.dwellTimes().max(TimeUnit.NANOSECONDS));
+        assertEquals(-1, buffer.oldestArrivalNanos());
+    }
+
+    @Test
+    void viewIsStampedWithItsArrivalTime() {
+        TimedMessageBuffer buffer = buffer(TimeUnit.SECONDS.toNanos(10));
+        long arrived = System.nanoTime() - TimeUnit.SECONDS.toNanos(3);
+        buffer.add(new MqttMessageView("t", "queued".getBytes(), 1, 7, false, arrived));
+
+        long dwell = now.get() - buffer.oldestArrivalNanos();
+        assertTrue(dwell >= TimeUnit.SECONDS.toNanos(3), "dwell " + dwell);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(7));
+        assertNull(buffer.poll());
+        assertEquals(1, buffer.expiredCount());
+    }
+
+    @Test
+    void viewsAddedOutOfArrivalOrderExpireAndReportOldestCorrectly() {
+        TimedMessageBuffer buffer = buffer(TimeUnit.SECONDS.toNanos(10));
+        long nanos = System.nanoTime();
+        buffer.add(new MqttMessageView("fast", "young".getBytes(), 1, 1, false, nanos - TimeUnit.SECONDS.toNanos(2)));
+        buffer.add(new MqttMessageView("slow", "old".getBytes(), 1, 2, false, nanos - TimeUnit.SECONDS.toNanos(8)));
+        buffer.add(new MqttMessageView("fast", "young2".getBytes(), 1, 3, false, nanos - TimeUnit.SECONDS.toNanos(1)));
+
+        long oldest = now.get() - buffer.oldestArrivalNanos();
+        assertTrue(oldest >= TimeUnit.SECONDS.toNanos(8), "oldest " + oldest);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, buffer.expire());
+        assertEquals("young", buffer.poll().getValue());
+        assertEquals("young2", buffer.poll().getValue());
+    }
+
+    @Test
+    void dropsExpiredMessagesLazilyOnPoll() {
+        TimedMessageBuffer buffer = buffer(100);
+        buffer.add("t", "stale0");
+        buffer.add("t", "stale1");
+        now.addAndGet(60);
+        buffer.add("t", "fresh");
+        now.addAndGet(60);
+
+        List<Map.Entry<String, String>> drained = new ArrayList<>();
+        assertEquals(1, buffer.drainTo(drained, 10));
+        assertEquals("fresh", drained.get(0).getValue());
+        assertEquals(2, buffer.expiredCount());
+        assertEquals(1, buffer.dwellTimes().count());
+    }
+
+    @Test
+    void expireRemovesOnlyExpiredHead() {
+        TimedMessageBuffer buffer = buffer(100);
+        buffer.add("t", "old");
+        now.addAndGet(50);
+        buffer.add("t", "new");
+        now.addAndGet(50);
+
+        assertEquals(1, buffer.expire());
+        assertEquals(1, buffer.size());
+        assertEquals(0, buffer.expire());
+        assertEquals("new", buffer.poll().getValue());
+    }
+
+    @Test
+    void backgroundSweeperExpiresWithoutConsumers() throws Exception {
+        TimedMessageBuffer buffer = TimedMessageBuffer.builder()
+                .ttl(1, TimeUnit.MILLISECONDS)
+                .sweepInterval(5, TimeUnit.MILLISECONDS)
+                .build();
+        buffer.add("t", "m");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (buffer.size() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        buffer.close();
+        assertEquals(0, buffer.size());
+        assertEquals(1, buffer.expiredCount());
+        assertThrows(IllegalArgumentException.class,
+                () -> TimedMessageBuffer.builder().sweepInterval(1, TimeUnit.SECONDS).build());
+    }
+
+    @Test
+    void takeWakesOnAdd() throws Exception {
+        TimedMessageBuffer buffer = TimedMessageBuffer.builder().build();
+        Thread producer = new Thread(() -> buffer.add("t", "late"));
+        producer.start();
+        TimestampedMessage message = buffer.take();
+        assertEquals("late", message.getValue());
+        assertTrue(message.age(TimeUnit.NANOSECONDS) >= 0);
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+        producer.join();
+    }
+}